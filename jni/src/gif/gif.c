@@ -6,7 +6,6 @@
 #include <jni.h>
 #include <stdlib.h>
 #include <string.h>
-#include <sys/time.h>
 #include <unistd.h>
 
 #define POINTER_CAST(addr) (void *) (long) addr
@@ -16,7 +15,6 @@ typedef struct ImageData ImageData;
 
 struct Decoder {
 	int errorCode;
-	int64_t startTime;
 	GifFileType * file;
 	ImageData * datas;
 	int duration;
@@ -116,16 +114,11 @@ jint getErrorCode(jlong pointer) {
 
 void getSummary(JNIEnv * env, jlong pointer, jintArray output) {
 	Decoder * decoder = POINTER_CAST(pointer);
-	jint result[2];
+	jint result[3];
 	result[0] = decoder->file->SWidth;
 	result[1] = decoder->file->SHeight;
-	(*env)->SetIntArrayRegion(env, output, 0, 2, result);
-}
-
-static int64_t getTime() {
-	struct timeval now;
-	gettimeofday(&now, NULL);
-	return (int64_t) now.tv_sec * 1000 + now.tv_usec / 1000;
+	result[2] = decoder->file->ImageCount;
+	(*env)->SetIntArrayRegion(env, output, 0, 3, result);
 }
 
 static void drawImage(Decoder * decoder, int index, int * colors) {
@@ -183,48 +176,30 @@ static void drawImage(Decoder * decoder, int index, int * colors) {
 	}
 }
 
-jint draw(JNIEnv * env, jlong pointer, jobject bitmap) {
+jint draw(JNIEnv * env, jlong pointer, jobject bitmap, jint index) {
 	Decoder * decoder = POINTER_CAST(pointer);
-	int position = 0;
-	if (decoder->duration > 0) {
-		int64_t time = getTime();
-		if (decoder->startTime == 0) {
-			decoder->startTime = time;
-		}
-		position = (int) ((time - decoder->startTime) % decoder->duration);
-	}
-	int index;
-	int delay = -1;
 	int count = decoder->file->ImageCount;
-	for (int i = 0; i < count; i++) {
-		ImageData * nextData = &decoder->datas[i];
-		if (position >= nextData->startTime) {
-			index = i;
-		} else {
-			break;
-		}
+	if (index < 0 || index >= count) {
+		return -1;
 	}
-	if (count > 1) {
-		delay = (index + 1 < count ? decoder->datas[index + 1].startTime : decoder->duration) - position;
+	int * colors = 0;
+	AndroidBitmap_lockPixels(env, bitmap, (void **) &colors);
+	if (!colors) {
+		return -1;
 	}
-	if (decoder->lastIndex != index) {
-		int * colors = 0;
-		AndroidBitmap_lockPixels(env, bitmap, (void **) &colors);
-		if (colors) {
-			if (index > decoder->lastIndex) {
-				for (int i = decoder->lastIndex + 1; i <= index; i++) {
-					drawImage(decoder, i, colors);
-				}
-			} else {
-				decoder->hasPrevious = 0;
-				memset(colors, 0, 4 * decoder->file->SWidth * decoder->file->SHeight);
-				for (int i = 0; i <= index; i++) {
-					drawImage(decoder, i, colors);
-				}
-			}
-			AndroidBitmap_unlockPixels(env, bitmap);
-			decoder->lastIndex = index;
+	if (index > decoder->lastIndex) {
+		for (int i = decoder->lastIndex + 1; i <= index; i++) {
+			drawImage(decoder, i, colors);
+		}
+	} else {
+		decoder->hasPrevious = 0;
+		memset(colors, 0, 4 * decoder->file->SWidth * decoder->file->SHeight);
+		for (int i = 0; i <= index; i++) {
+			drawImage(decoder, i, colors);
 		}
 	}
-	return delay;
+	AndroidBitmap_unlockPixels(env, bitmap);
+	decoder->lastIndex = index;
+	int endTime = index + 1 < count ? decoder->datas[index + 1].startTime : decoder->duration;
+	return endTime - decoder->datas[index].startTime;
 }
@@ -9,6 +9,6 @@ void destroy(jlong);
 jint getErrorCode(jlong);
 void getSummary(JNIEnv *, jlong, jintArray);
 
-jint draw(JNIEnv *, jlong, jobject);
+jint draw(JNIEnv *, jlong, jobject, jint);
 
 #endif // GIF_H
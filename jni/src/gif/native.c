@@ -19,6 +19,6 @@ void JCALL(getSummary)(JNIEnv * env, UNUSED jobject this, jlong pointer, jintArr
 	getSummary(env, pointer, output);
 }
 
-jint JCALL(draw)(JNIEnv * env, UNUSED jobject this, jlong pointer, jobject bitmap) {
-	return draw(env, pointer, bitmap);
+jint JCALL(draw)(JNIEnv * env, UNUSED jobject this, jlong pointer, jobject bitmap, jint index) {
+	return draw(env, pointer, bitmap, index);
 }
@@ -521,6 +521,7 @@ public class ChanPerformer implements Chan.Linked {
 	@Public
 	public static class ReadThreadSummariesData implements HttpRequest.Preset {
 		@Public public static final int TYPE_ARCHIVED_THREADS = 0;
+		@Public public static final int TYPE_ACTIVE_THREADS = 1;
 
 		@Public public final String boardName;
 		@Public public final int pageNumber;
@@ -613,14 +614,16 @@ public class ChanPerformer implements Chan.Linked {
 		public final HttpHolder holder;
 		public final long rangeStart;
 		public final long rangeEnd;
+		public final HttpValidator rangeValidator;
 
 		private ReadContentDirectPreset(int connectTimeout, int readTimeout, HttpHolder holder,
-				long rangeStart, long rangeEnd) {
+				long rangeStart, long rangeEnd, HttpValidator rangeValidator) {
 			this.holder = holder;
 			this.connectTimeout = connectTimeout;
 			this.readTimeout = readTimeout;
 			this.rangeStart = rangeStart;
 			this.rangeEnd = rangeEnd;
+			this.rangeValidator = rangeValidator;
 		}
 
 		@Override
@@ -647,6 +650,11 @@ public class ChanPerformer implements Chan.Linked {
 		public long getRangeEnd() {
 			return rangeEnd;
 		}
+
+		@Override
+		public HttpValidator getRangeValidator() {
+			return rangeValidator;
+		}
 	}
 
 	@Public
@@ -661,9 +669,15 @@ public class ChanPerformer implements Chan.Linked {
 
 		public ReadContentData(Uri uri, int connectTimeout, int readTimeout, HttpHolder holder,
 				long rangeStart, long rangeEnd) {
+			this(uri, connectTimeout, readTimeout, holder, rangeStart, rangeEnd, null);
+		}
+
+		public ReadContentData(Uri uri, int connectTimeout, int readTimeout, HttpHolder holder,
+				long rangeStart, long rangeEnd, HttpValidator rangeValidator) {
 			this.uri = uri;
 			this.holder = holder;
-			direct = new ReadContentDirectPreset(connectTimeout, readTimeout, holder, rangeStart, rangeEnd);
+			direct = new ReadContentDirectPreset(connectTimeout, readTimeout, holder,
+					rangeStart, rangeEnd, rangeValidator);
 		}
 
 		@Override
@@ -10,6 +10,7 @@ public final class ThreadSummary {
 	private final String description;
 
 	private int postsCount = -1;
+	private long lastModified;
 
 	@Public
 	public ThreadSummary(String boardName, String threadNumber, String description) {
@@ -44,4 +45,15 @@ public final class ThreadSummary {
 		this.postsCount = postsCount;
 		return this;
 	}
+
+	@Public
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Public
+	public ThreadSummary setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+		return this;
+	}
 }
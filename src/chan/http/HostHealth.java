@@ -0,0 +1,136 @@
+package chan.http;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import chan.content.Chan;
+import chan.util.StringUtils;
+import com.mishiranu.dashchan.content.NetworkObserver;
+import com.mishiranu.dashchan.content.model.ErrorItem;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+public class HostHealth {
+	private static final int MIN_BACKOFF = 30 * 1000;
+	private static final int MAX_BACKOFF = 60 * 60 * 1000;
+	private static final int PROBE_TIMEOUT = 60 * 1000;
+	private static final int OPEN_FAILURES = 3;
+	private static final float BACKOFF_JITTER = 0.2f;
+
+	private static final HostHealth INSTANCE = new HostHealth();
+
+	public static HostHealth getInstance() {
+		return INSTANCE;
+	}
+
+	private HostHealth() {}
+
+	private static class State {
+		public int failures;
+		public long retryAt;
+		public long probeUntil;
+	}
+
+	private final HashMap<String, State> hosts = new HashMap<>();
+	private final HashMap<String, State> chans = new HashMap<>();
+	private final Random random = new Random();
+
+	void onHostResult(Uri uri, boolean success) {
+		String host = uri != null ? uri.getHost() : null;
+		if (!StringUtils.isEmpty(host) && (success || NetworkObserver.getInstance().isConnected())) {
+			synchronized (this) {
+				onResult(hosts, host.toLowerCase(Locale.US), success);
+			}
+		}
+	}
+
+	public void onChanResult(Chan chan, boolean success) {
+		if (chan != null && chan.name != null && (success || NetworkObserver.getInstance().isConnected())) {
+			synchronized (this) {
+				onResult(chans, chan.name, success);
+			}
+		}
+	}
+
+	public synchronized void reset() {
+		hosts.clear();
+		chans.clear();
+	}
+
+	private void onResult(HashMap<String, State> states, String key, boolean success) {
+		if (success) {
+			states.remove(key);
+		} else {
+			State state = states.get(key);
+			if (state == null) {
+				state = new State();
+				states.put(key, state);
+			}
+			state.failures++;
+			state.probeUntil = 0;
+			long backoff = Math.min((long) MIN_BACKOFF << Math.min(state.failures - 1, 16), MAX_BACKOFF);
+			backoff += (long) (backoff * BACKOFF_JITTER * random.nextFloat());
+			state.retryAt = SystemClock.elapsedRealtime() + backoff;
+		}
+	}
+
+	static boolean isFailure(HttpException exception) {
+		return exception.isSocketException() ||
+				exception.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR ||
+				exception.getErrorItemType() == ErrorItem.Type.FIREWALL_BLOCK;
+	}
+
+	public static boolean isFailure(ErrorItem errorItem) {
+		if (errorItem.type == null) {
+			return errorItem.httpResponseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+		switch (errorItem.type) {
+			case CONNECT_TIMEOUT:
+			case READ_TIMEOUT:
+			case CONNECTION_RESET:
+			case DOWNLOAD:
+			case FIREWALL_BLOCK: {
+				return true;
+			}
+			default: {
+				return false;
+			}
+		}
+	}
+
+	public long acquireHost(String host) {
+		if (StringUtils.isEmpty(host)) {
+			return 0;
+		}
+		synchronized (this) {
+			return acquire(hosts, host.toLowerCase(Locale.US));
+		}
+	}
+
+	public long acquireChan(Chan chan) {
+		synchronized (this) {
+			return acquire(chans, chan.name);
+		}
+	}
+
+	// Returns time to wait before the next request, circuit is opened after several failures,
+	// and only one probe request is allowed after the backoff time
+	private long acquire(HashMap<String, State> states, String key) {
+		State state = states.get(key);
+		if (state == null) {
+			return 0;
+		}
+		long time = SystemClock.elapsedRealtime();
+		if (time < state.retryAt) {
+			return state.retryAt - time;
+		}
+		if (state.failures >= OPEN_FAILURES) {
+			if (time < state.probeUntil) {
+				return state.probeUntil - time;
+			}
+			state.probeUntil = time + PROBE_TIMEOUT;
+		}
+		return 0;
+	}
+}
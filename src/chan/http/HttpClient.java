@@ -342,11 +342,20 @@ public class HttpClient {
 		try {
 			while (true) {
 				try {
-					return executeInternal(session, request);
+					HttpResponse response = executeInternal(session, request);
+					HostHealth.getInstance().onHostResult(session.getCurrentRequestedUri(),
+							session.getResponseCode() < HttpURLConnection.HTTP_INTERNAL_ERROR);
+					return response;
 				} catch (RetryException e) {
 					// Continue
 				}
 			}
+		} catch (HttpException e) {
+			if (!session.holder.isInterrupted()) {
+				HostHealth.getInstance().onHostResult(session.getCurrentRequestedUri(),
+						!HostHealth.isFailure(e));
+			}
+			throw e;
 		} finally {
 			handshakeSessions.remove();
 		}
@@ -493,6 +502,9 @@ public class HttpClient {
 				connection.setRequestProperty("Range", "bytes=" +
 						(request.rangeStart >= 0 ? request.rangeStart : "") + "-" +
 						(request.rangeEnd >= 0 ? request.rangeEnd : ""));
+				if (request.rangeValidator != null) {
+					request.rangeValidator.writeRange(connection);
+				}
 			}
 
 			boolean forceGet = session.forceGet;
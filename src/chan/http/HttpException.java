@@ -58,6 +58,10 @@ public final class HttpException extends Exception implements ErrorItem.Holder {
 		return socketException;
 	}
 
+	ErrorItem.Type getErrorItemType() {
+		return errorItemType;
+	}
+
 	@NonNull
 	@Override
 	public ErrorItem getErrorItemAndHandle() {
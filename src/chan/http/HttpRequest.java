@@ -27,6 +27,10 @@ public final class HttpRequest {
 	public interface RangePreset extends Preset {
 		long getRangeStart();
 		long getRangeEnd();
+
+		default HttpValidator getRangeValidator() {
+			return null;
+		}
 	}
 
 	public interface OutputListener {
@@ -121,6 +125,7 @@ public final class HttpRequest {
 	OutputListener outputListener;
 	long rangeStart = -1;
 	long rangeEnd = -1;
+	HttpValidator rangeValidator;
 
 	int connectTimeout = 15000;
 	int readTimeout = 15000;
@@ -151,7 +156,7 @@ public final class HttpRequest {
 		}
 		if (preset instanceof RangePreset) {
 			RangePreset rangePreset = (RangePreset) preset;
-			setRange(rangePreset.getRangeStart(), rangePreset.getRangeEnd());
+			setRange(rangePreset.getRangeStart(), rangePreset.getRangeEnd(), rangePreset.getRangeValidator());
 		}
 	}
 
@@ -251,8 +256,13 @@ public final class HttpRequest {
 	}
 
 	public HttpRequest setRange(long start, long end) {
+		return setRange(start, end, null);
+	}
+
+	public HttpRequest setRange(long start, long end, HttpValidator validator) {
 		this.rangeStart = start;
 		this.rangeEnd = end;
+		this.rangeValidator = validator;
 		return this;
 	}
 
@@ -327,6 +337,7 @@ public final class HttpRequest {
 		request.setOutputListener(outputListener);
 		request.setTimeouts(connectTimeout, readTimeout);
 		request.setDelay(delay);
+		request.setRange(rangeStart, rangeEnd, rangeValidator);
 		if (headers != null) {
 			request.headers = new ArrayList<>(headers);
 		}
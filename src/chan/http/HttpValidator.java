@@ -37,6 +37,19 @@ public final class HttpValidator implements Parcelable {
 		}
 	}
 
+	public boolean isRangeValidator() {
+		return !StringUtils.isEmpty(entityTag) && !entityTag.startsWith("W/") || !StringUtils.isEmpty(lastModified);
+	}
+
+	void writeRange(HttpURLConnection connection) {
+		// Weak entity tags can't be used to validate ranges
+		if (!StringUtils.isEmpty(entityTag) && !entityTag.startsWith("W/")) {
+			connection.setRequestProperty("If-Range", entityTag);
+		} else if (!StringUtils.isEmpty(lastModified)) {
+			connection.setRequestProperty("If-Range", lastModified);
+		}
+	}
+
 	public void serialize(JsonSerial.Writer writer) throws IOException {
 		writer.startObject();
 		if (entityTag != null) {
@@ -0,0 +1,239 @@
+package com.mishiranu.dashchan.content;
+
+import chan.content.Chan;
+import chan.util.StringUtils;
+import com.mishiranu.dashchan.content.model.AttachmentItem;
+import com.mishiranu.dashchan.content.model.Post;
+import com.mishiranu.dashchan.content.model.PostItem;
+import com.mishiranu.dashchan.content.model.PostNumber;
+import com.mishiranu.dashchan.content.storage.AutohideStorage;
+import com.mishiranu.dashchan.text.MultiStringMatcher;
+import com.mishiranu.dashchan.text.RegexLiterals;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Runs regular expressions only for rules which literals are found in the post
+public class AutohideMatcher {
+	private static final int FIELD_SUBJECT = 0;
+	private static final int FIELD_COMMENT = 1;
+	private static final int FIELD_NAME = 2;
+	private static final int FIELD_FILE = 3;
+	private static final int FIELDS_COUNT = 4;
+
+	private final AutohideStorage.AutohideItem[] items;
+	private final MultiStringMatcher literalsMatcher;
+	private final int[][] literalItems;
+	private final int literalsCount;
+	private final BitSet unfilteredItems = new BitSet();
+	private final BitSet[] fieldItems = new BitSet[FIELDS_COUNT];
+	private final HashMap<String, BitSet> scopes = new HashMap<>();
+
+	public AutohideMatcher(List<AutohideStorage.AutohideItem> autohideItems) {
+		items = autohideItems.toArray(new AutohideStorage.AutohideItem[0]);
+		for (int i = 0; i < FIELDS_COUNT; i++) {
+			fieldItems[i] = new BitSet(items.length);
+		}
+		ArrayList<String> literals = new ArrayList<>();
+		HashMap<String, ArrayList<Integer>> literalItemsMap = new HashMap<>();
+		for (int i = 0; i < items.length; i++) {
+			AutohideStorage.AutohideItem autohideItem = items[i];
+			try {
+				AutohideStorage.AutohideItem.makePattern(autohideItem.value);
+			} catch (Exception e) {
+				// Invalid patterns never match
+				continue;
+			}
+			boolean[] fields = {autohideItem.optionSubject, autohideItem.optionComment,
+					autohideItem.optionName, autohideItem.optionFileName};
+			boolean hasFields = false;
+			for (int j = 0; j < FIELDS_COUNT; j++) {
+				if (fields[j]) {
+					fieldItems[j].set(i);
+					hasFields = true;
+				}
+			}
+			if (!hasFields) {
+				continue;
+			}
+			List<String> itemLiterals = RegexLiterals.extract(autohideItem.value);
+			if (itemLiterals == null) {
+				unfilteredItems.set(i);
+			} else {
+				for (String literal : itemLiterals) {
+					ArrayList<Integer> indices = literalItemsMap.get(literal);
+					if (indices == null) {
+						indices = new ArrayList<>(1);
+						literalItemsMap.put(literal, indices);
+						literals.add(literal);
+					}
+					indices.add(i);
+				}
+			}
+		}
+		literalsCount = literals.size();
+		literalsMatcher = literals.isEmpty() ? null : new MultiStringMatcher(literals);
+		literalItems = new int[literals.size()][];
+		for (int i = 0; i < literals.size(); i++) {
+			ArrayList<Integer> indices = literalItemsMap.get(literals.get(i));
+			int[] array = new int[indices.size()];
+			for (int j = 0; j < array.length; j++) {
+				array[j] = indices.get(j);
+			}
+			literalItems[i] = array;
+		}
+	}
+
+	private BitSet getScope(String chanName, String boardName) {
+		String key = chanName + '/' + StringUtils.emptyIfNull(boardName);
+		synchronized (scopes) {
+			BitSet scope = scopes.get(key);
+			if (scope == null) {
+				scope = new BitSet(items.length);
+				for (int i = 0; i < items.length; i++) {
+					AutohideStorage.AutohideItem autohideItem = items[i];
+					if ((autohideItem.chanNames == null || autohideItem.chanNames.contains(chanName)) &&
+							(StringUtils.isEmpty(autohideItem.boardName) || boardName == null ||
+							autohideItem.boardName.equals(boardName))) {
+						scope.set(i);
+					}
+				}
+				scopes.put(key, scope);
+			}
+			return scope;
+		}
+	}
+
+	private BitSet findCandidates(int field, List<String> texts, BitSet literals) {
+		BitSet candidates = new BitSet(items.length);
+		if (literalsMatcher != null) {
+			literals.clear();
+			for (String text : texts) {
+				literalsMatcher.find(text, literals);
+			}
+			for (int i = literals.nextSetBit(0); i >= 0; i = literals.nextSetBit(i + 1)) {
+				for (int index : literalItems[i]) {
+					candidates.set(index);
+				}
+			}
+			candidates.and(fieldItems[field]);
+		}
+		BitSet unfiltered = (BitSet) unfilteredItems.clone();
+		unfiltered.and(fieldItems[field]);
+		candidates.or(unfiltered);
+		return candidates;
+	}
+
+	public String find(Chan chan, PostItem postItem) {
+		if (items.length == 0) {
+			return null;
+		}
+		String boardName = postItem.getBoardName();
+		BitSet scope = getScope(chan.name, boardName);
+		if (scope.isEmpty()) {
+			return null;
+		}
+		BitSet literals = new BitSet(literalsCount);
+		BitSet candidates = new BitSet(items.length);
+		BitSet[] fieldCandidates = new BitSet[FIELDS_COUNT];
+
+		List<String> subjects = null;
+		if (fieldItems[FIELD_SUBJECT].intersects(scope)) {
+			subjects = Collections.singletonList(postItem.getSubject());
+			fieldCandidates[FIELD_SUBJECT] = findCandidates(FIELD_SUBJECT, subjects, literals);
+			candidates.or(fieldCandidates[FIELD_SUBJECT]);
+		}
+		String comment = null;
+		if (fieldItems[FIELD_COMMENT].intersects(scope)) {
+			comment = postItem.getComment(chan).toString();
+			fieldCandidates[FIELD_COMMENT] = findCandidates(FIELD_COMMENT,
+					Collections.singletonList(comment), literals);
+			candidates.or(fieldCandidates[FIELD_COMMENT]);
+		}
+		List<String> names = null;
+		if (fieldItems[FIELD_NAME].intersects(scope)) {
+			String name = postItem.getFullName(chan).toString();
+			List<Post.Icon> icons = postItem.getIcons();
+			if (!icons.isEmpty()) {
+				names = new ArrayList<>(1 + icons.size());
+				names.add(name);
+				for (Post.Icon icon : icons) {
+					names.add(icon.title);
+				}
+			} else {
+				names = Collections.singletonList(name);
+			}
+			fieldCandidates[FIELD_NAME] = findCandidates(FIELD_NAME, names, literals);
+			candidates.or(fieldCandidates[FIELD_NAME]);
+		}
+		List<String> fileNames = null;
+		if (postItem.hasAttachments() && fieldItems[FIELD_FILE].intersects(scope)) {
+			List<AttachmentItem> attachmentItems = postItem.getAttachmentItems();
+			fileNames = new ArrayList<>(attachmentItems.size());
+			for (AttachmentItem attachmentItem : attachmentItems) {
+				fileNames.add(StringUtils.emptyIfNull(attachmentItem.getOriginalName()));
+			}
+			fieldCandidates[FIELD_FILE] = findCandidates(FIELD_FILE, fileNames, literals);
+			candidates.or(fieldCandidates[FIELD_FILE]);
+		}
+		candidates.and(scope);
+		if (candidates.isEmpty()) {
+			return null;
+		}
+
+		PostNumber originalPostNumber = postItem.getOriginalPostNumber();
+		String originalPostNumberString = originalPostNumber != null
+				? originalPostNumber.toString() : null;
+		boolean originalPost = postItem.isOriginalPost();
+		boolean sage = postItem.isSage();
+		// Candidates are handled in the order of rules, so the first matching rule is reported
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			AutohideStorage.AutohideItem autohideItem = items[i];
+			// AND selection (only if thread, op, and sage match the rule)
+			if (StringUtils.isEmpty(autohideItem.threadNumber) || autohideItem.boardName != null &&
+					autohideItem.threadNumber.equals(originalPostNumberString)) {
+				if ((!autohideItem.optionOriginalPost || autohideItem.optionOriginalPost == originalPost)
+						&& (!autohideItem.optionSage || autohideItem.optionSage == sage)) {
+					String result;
+					// OR selection (hide if subject, comment, or name match the rule)
+					if (isCandidate(fieldCandidates, FIELD_SUBJECT, i)) {
+						String subject = subjects.get(0);
+						if ((result = autohideItem.find(subject)) != null) {
+							return autohideItem.getReason(AutohideStorage.AutohideItem
+									.ReasonSource.SUBJECT, comment, result);
+						}
+					}
+					if (isCandidate(fieldCandidates, FIELD_COMMENT, i)) {
+						if ((result = autohideItem.find(comment)) != null) {
+							return autohideItem.getReason(AutohideStorage.AutohideItem
+									.ReasonSource.COMMENT, comment, result);
+						}
+					}
+					if (isCandidate(fieldCandidates, FIELD_NAME, i)) {
+						for (String name : names) {
+							if ((result = autohideItem.find(name)) != null) {
+								return autohideItem.getReason(AutohideStorage.AutohideItem
+										.ReasonSource.NAME, name, result);
+							}
+						}
+					}
+					if (isCandidate(fieldCandidates, FIELD_FILE, i)) {
+						for (String fileName : fileNames) {
+							if ((result = autohideItem.find(fileName)) != null) {
+								return autohideItem.getReason(AutohideStorage.AutohideItem
+										.ReasonSource.FILE, fileName, result);
+							}
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isCandidate(BitSet[] fieldCandidates, int field, int index) {
+		return fieldCandidates[field] != null && fieldCandidates[field].get(index);
+	}
+}
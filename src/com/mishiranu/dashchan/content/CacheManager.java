@@ -3,25 +3,35 @@ package com.mishiranu.dashchan.content;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Environment;
 import android.util.Pair;
 import androidx.annotation.NonNull;
 import chan.content.Chan;
 import chan.util.StringUtils;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.util.AndroidUtils;
 import com.mishiranu.dashchan.util.Hasher;
 import com.mishiranu.dashchan.util.IOUtils;
 import com.mishiranu.dashchan.util.LruCache;
 import com.mishiranu.dashchan.util.MimeTypes;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Locale;
@@ -34,6 +44,22 @@ public class CacheManager implements Runnable {
 
 	private static final float TRIM_FACTOR = 0.3f;
 
+	private static final String INDEX_FILE_NAME = "index";
+	private static final String INDEX_HEADER = "dashchan-cache-index 2";
+	private static final int INDEX_MIN_REDUNDANT_RECORDS = 2000;
+	private static final int RECONCILE_MIN_AGE = 60 * 1000;
+
+	private static final char INDEX_RECORD_STORE = 'S';
+	private static final char INDEX_RECORD_LINK = 'L';
+	private static final char INDEX_RECORD_ACCESS = 'A';
+	private static final char INDEX_RECORD_DELETE = 'D';
+	// Written before the file is opened for writing, resolved by the following store or delete record
+	private static final char INDEX_RECORD_PENDING = 'P';
+
+	// Two levels of 16 directories keep each directory small even with hundreds of thousands
+	// of cached files, while 256 directories in total don't waste much space on FAT storage
+	private static final int SHARD_LEVELS = 2;
+
 	private static final CacheManager INSTANCE = new CacheManager();
 
 	public static CacheManager getInstance() {
@@ -66,22 +92,45 @@ public class CacheManager implements Runnable {
 			File file = null;
 			switch (cacheItem.type) {
 				case THUMBNAILS: {
-					file = new File(getThumbnailsDirectory(), cacheItem.name);
+					file = getCacheFile(getThumbnailsDirectory(), cacheItem.name);
 					break;
 				}
 				case MEDIA: {
-					file = new File(getMediaDirectory(), cacheItem.name);
+					file = getCacheFile(getMediaDirectory(), cacheItem.name);
 					break;
 				}
 			}
-			file.delete();
+			if (file != null) {
+				if (!cacheItem.link && (!file.exists() || file.length() != cacheItem.length)) {
+					invalidateIndex();
+				}
+				file.delete();
+			}
 		}
 	}
 
 	private volatile CountDownLatch cacheBuildingLatch;
 
 	private static class CacheItem {
-		public enum Type {THUMBNAILS, MEDIA}
+		public enum Type {
+			THUMBNAILS("t"),
+			MEDIA("m");
+
+			public final String key;
+
+			Type(String key) {
+				this.key = key;
+			}
+
+			public static Type find(String key) {
+				for (Type type : values()) {
+					if (type.key.equals(key)) {
+						return type;
+					}
+				}
+				return null;
+			}
+		}
 
 		public final String name;
 		public final String nameLc;
@@ -89,12 +138,26 @@ public class CacheManager implements Runnable {
 		public long lastModified;
 		public final Type type;
 
+		// Content hash of the media file, links refer to the file with the same content hash
+		public final String contentHash;
+		public final boolean link;
+
 		public CacheItem(File file, Type type) {
-			name = file.getName();
+			this(file, type, null);
+		}
+
+		public CacheItem(File file, Type type, String contentHash) {
+			this(file.getName(), file.length(), file.lastModified(), type, contentHash, false);
+		}
+
+		public CacheItem(String name, long length, long lastModified, Type type, String contentHash, boolean link) {
+			this.name = name;
 			nameLc = name.toLowerCase(Locale.US);
-			length = file.length();
-			lastModified = file.lastModified();
+			this.length = length;
+			this.lastModified = lastModified;
 			this.type = type;
+			this.contentHash = contentHash;
+			this.link = link;
 		}
 
 		@NonNull
@@ -130,29 +193,56 @@ public class CacheManager implements Runnable {
 
 	private final LinkedHashMap<String, CacheItem> thumbnailsCache = new LinkedHashMap<>();
 	private final LinkedHashMap<String, CacheItem> mediaCache = new LinkedHashMap<>();
+	// Guarded by mediaCache
+	private final HashMap<String, CacheItem> mediaContents = new HashMap<>();
 
 	private long thumbnailsCacheSize;
 	private long mediaCacheSize;
 
+	private final Object indexLock = new Object();
+
+	private Writer indexWriter;
+	// Guarded by indexLock
+	private final HashSet<CacheItem> pendingItems = new HashSet<>();
+	private int indexRecords;
+	private int indexRedundantRecords;
+	private boolean indexCompactionScheduled;
+
+	private static long fillCache(LinkedHashMap<String, CacheItem> cacheItems, Collection<CacheItem> items) {
+		ArrayList<CacheItem> cacheItemsList = new ArrayList<>(items);
+		Collections.sort(cacheItemsList, SORT_BY_DATE_COMPARATOR);
+		long size = 0L;
+		for (CacheItem cacheItem : cacheItemsList) {
+			cacheItems.put(cacheItem.nameLc, cacheItem);
+			size += cacheItem.length;
+		}
+		return size;
+	}
+
 	private long fillCache(LinkedHashMap<String, CacheItem> cacheItems, File directory, CacheItem.Type type) {
 		cacheItems.clear();
 		if (directory == null) {
 			return 0L;
 		}
 		ArrayList<CacheItem> cacheItemsList = new ArrayList<>();
+		collectCacheItems(cacheItemsList, directory, type, 0);
+		return fillCache(cacheItems, cacheItemsList);
+	}
+
+	private static void collectCacheItems(ArrayList<CacheItem> cacheItems, File directory,
+			CacheItem.Type type, int level) {
 		File[] files = directory.listFiles();
 		if (files != null) {
 			for (File file : files) {
-				cacheItemsList.add(new CacheItem(file, type));
+				if (file.isDirectory()) {
+					if (level < SHARD_LEVELS && isShardDirectoryName(file.getName())) {
+						collectCacheItems(cacheItems, file, type, level + 1);
+					}
+				} else {
+					cacheItems.add(new CacheItem(file, type));
+				}
 			}
 		}
-		Collections.sort(cacheItemsList, SORT_BY_DATE_COMPARATOR);
-		long size = 0L;
-		for (CacheItem cacheItem : cacheItemsList) {
-			cacheItems.put(cacheItem.nameLc, cacheItem);
-			size += cacheItem.length;
-		}
-		return size;
 	}
 
 	private void syncCache() {
@@ -160,13 +250,36 @@ public class CacheManager implements Runnable {
 		cacheBuildingLatch = latch;
 		new Thread(() -> {
 			try {
-				synchronized (thumbnailsCache) {
-					thumbnailsCacheSize = fillCache(thumbnailsCache, getThumbnailsDirectory(),
-							CacheItem.Type.THUMBNAILS);
-				}
+				// Lock order: media, thumbnails, index
 				synchronized (mediaCache) {
-					mediaCacheSize = fillCache(mediaCache, getMediaDirectory(), CacheItem.Type.MEDIA);
+					synchronized (thumbnailsCache) {
+						synchronized (indexLock) {
+							closeIndexWriter();
+							synchronized (shardDirectories) {
+								shardDirectories.clear();
+							}
+							thumbnailsCache.clear();
+							mediaCache.clear();
+							mediaContents.clear();
+							pendingItems.clear();
+							if (!readIndex()) {
+								// Index is missing after the cache was changed outside of the application
+								// or after a write error, so the directories are scanned only in this case
+								pendingItems.clear();
+								thumbnailsCacheSize = fillCache(thumbnailsCache, getThumbnailsDirectory(),
+										CacheItem.Type.THUMBNAILS);
+								mediaCacheSize = fillCache(mediaCache, getMediaDirectory(), CacheItem.Type.MEDIA);
+								writeIndex();
+							} else {
+								resolvePendingItems();
+								if (isIndexCompactionRequired()) {
+									writeIndex();
+								}
+							}
+						}
+					}
 				}
+				startShardsMigration();
 				cleanupAsync(true, true);
 			} finally {
 				latch.countDown();
@@ -174,6 +287,402 @@ public class CacheManager implements Runnable {
 		}).start();
 	}
 
+	private void resolvePendingItems() {
+		// Called with media, thumbnails and index locks held.
+		// Files written right before the process was killed are only listed as pending in the index,
+		// including partial downloads which are removed from the index while they are in use.
+		if (pendingItems.isEmpty()) {
+			return;
+		}
+		ArrayList<CacheItem> deletedItems = new ArrayList<>();
+		ArrayList<CacheItem> addedItems = new ArrayList<>();
+		long time = System.currentTimeMillis();
+		Iterator<CacheItem> iterator = pendingItems.iterator();
+		while (iterator.hasNext()) {
+			CacheItem pendingItem = iterator.next();
+			File directory = pendingItem.type == CacheItem.Type.THUMBNAILS
+					? getThumbnailsDirectory() : getMediaDirectory();
+			File file = directory != null ? getCacheFile(directory, pendingItem.name) : null;
+			boolean exists = file != null && file.exists();
+			// Recently modified files might be still written by another process
+			if (!exists || file.lastModified() + RECONCILE_MIN_AGE < time) {
+				iterator.remove();
+				LinkedHashMap<String, CacheItem> cacheItems = getCacheItems(pendingItem.type);
+				CacheItem oldCacheItem = cacheItems.remove(pendingItem.nameLc);
+				if (oldCacheItem != null) {
+					removeMediaContent(oldCacheItem);
+					modifyCacheSize(pendingItem.type, -oldCacheItem.length);
+				}
+				if (exists) {
+					CacheItem cacheItem = new CacheItem(file, pendingItem.type);
+					modifyCacheSize(cacheItem.type, cacheItem.length);
+					addedItems.add(cacheItem);
+				} else {
+					deletedItems.add(pendingItem);
+				}
+			}
+		}
+		appendIndex(INDEX_RECORD_DELETE, deletedItems, false);
+		appendIndex(INDEX_RECORD_STORE, addedItems, false);
+		if (!addedItems.isEmpty()) {
+			// Keep the items ordered by access time, so the oldest ones are removed first
+			for (LinkedHashMap<String, CacheItem> cacheItems : Arrays.asList(thumbnailsCache, mediaCache)) {
+				ArrayList<CacheItem> cacheItemsList = new ArrayList<>(cacheItems.values());
+				for (CacheItem cacheItem : addedItems) {
+					if (getCacheItems(cacheItem.type) == cacheItems) {
+						cacheItemsList.add(cacheItem);
+					}
+				}
+				cacheItems.clear();
+				fillCache(cacheItems, cacheItemsList);
+			}
+		}
+	}
+
+	private final HashSet<String> shardDirectories = new HashSet<>();
+	private volatile boolean shardsMigration;
+
+	private static boolean isShardCharacter(char c) {
+		return c >= '0' && c <= '9' || c >= 'a' && c <= 'z';
+	}
+
+	private static boolean isShardDirectoryName(String name) {
+		return name.length() == 1 && isShardCharacter(name.charAt(0));
+	}
+
+	private static String getShardPath(String fileName) {
+		if (fileName.length() <= SHARD_LEVELS) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < SHARD_LEVELS; i++) {
+			char c = Character.toLowerCase(fileName.charAt(i));
+			if (!isShardCharacter(c)) {
+				return null;
+			}
+			if (i > 0) {
+				builder.append('/');
+			}
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	private static File getShardedFile(File directory, String fileName) {
+		String shardPath = getShardPath(fileName);
+		return shardPath != null ? new File(new File(directory, shardPath), fileName)
+				: new File(directory, fileName);
+	}
+
+	private File getCacheFile(File directory, String fileName) {
+		if (directory == null) {
+			return null;
+		}
+		File file = getShardedFile(directory, fileName);
+		File shardDirectory = file.getParentFile();
+		if (!directory.equals(shardDirectory)) {
+			String shardDirectoryPath = shardDirectory.getPath();
+			boolean create;
+			synchronized (shardDirectories) {
+				create = shardDirectories.add(shardDirectoryPath);
+			}
+			if (create && isCacheAvailable() && !shardDirectory.isDirectory() && !shardDirectory.mkdirs()) {
+				synchronized (shardDirectories) {
+					shardDirectories.remove(shardDirectoryPath);
+				}
+			}
+			if (shardsMigration && !file.exists()) {
+				File flatFile = new File(directory, fileName);
+				if (flatFile.isFile()) {
+					flatFile.renameTo(file);
+				}
+			}
+		}
+		return file;
+	}
+
+	private static boolean hasFlatFiles(File directory) {
+		String[] names = directory != null ? directory.list() : null;
+		if (names != null) {
+			for (String name : names) {
+				if (!isShardDirectoryName(name)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void startShardsMigration() {
+		File thumbnailsDirectory = getThumbnailsDirectory();
+		File mediaDirectory = getMediaDirectory();
+		if (shardsMigration || !isCacheAvailable() ||
+				!hasFlatFiles(thumbnailsDirectory) && !hasFlatFiles(mediaDirectory)) {
+			return;
+		}
+		// Files are moved on demand by getCacheFile until migration is finished
+		shardsMigration = true;
+		new Thread(() -> {
+			try {
+				for (File directory : Arrays.asList(thumbnailsDirectory, mediaDirectory)) {
+					File[] files = directory != null ? directory.listFiles() : null;
+					if (files != null) {
+						for (File file : files) {
+							if (file.isFile()) {
+								getCacheFile(directory, file.getName());
+							}
+						}
+					}
+				}
+			} finally {
+				shardsMigration = false;
+			}
+		}, "CacheManagerMigration").start();
+	}
+
+	private File getIndexFile() {
+		File directory = getExternalCacheDirectory();
+		return directory != null ? new File(directory, INDEX_FILE_NAME) : null;
+	}
+
+	private boolean readIndex() {
+		File indexFile = getIndexFile();
+		if (indexFile == null || !isCacheAvailable()) {
+			return false;
+		}
+		HashMap<String, CacheItem> thumbnailItems = new HashMap<>();
+		HashMap<String, CacheItem> mediaItems = new HashMap<>();
+		int records = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+				"UTF-8"))) {
+			if (!INDEX_HEADER.equals(reader.readLine())) {
+				return false;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				CacheItem.Type type = fields.length >= 3 && fields[0].length() == 1
+						? CacheItem.Type.find(fields[1]) : null;
+				if (type == null) {
+					return false;
+				}
+				HashMap<String, CacheItem> items = type == CacheItem.Type.THUMBNAILS ? thumbnailItems : mediaItems;
+				String name = fields[2];
+				String nameLc = name.toLowerCase(Locale.US);
+				switch (fields[0].charAt(0)) {
+					case INDEX_RECORD_STORE: {
+						if (fields.length != 5 && fields.length != 6) {
+							return false;
+						}
+						items.put(nameLc, new CacheItem(name, Long.parseLong(fields[3]),
+								Long.parseLong(fields[4]), type, fields.length == 6 ? fields[5] : null, false));
+						pendingItems.remove(new CacheItem(name, 0L, 0L, type, null, false));
+						break;
+					}
+					case INDEX_RECORD_LINK: {
+						if (fields.length != 5 || type != CacheItem.Type.MEDIA) {
+							return false;
+						}
+						items.put(nameLc, new CacheItem(name, 0L, Long.parseLong(fields[4]),
+								type, fields[3], true));
+						pendingItems.remove(new CacheItem(name, 0L, 0L, type, null, false));
+						break;
+					}
+					case INDEX_RECORD_ACCESS: {
+						if (fields.length != 4) {
+							return false;
+						}
+						CacheItem cacheItem = items.get(nameLc);
+						if (cacheItem != null) {
+							cacheItem.lastModified = Long.parseLong(fields[3]);
+						}
+						break;
+					}
+					case INDEX_RECORD_DELETE: {
+						if (fields.length != 3) {
+							return false;
+						}
+						items.remove(nameLc);
+						pendingItems.remove(new CacheItem(name, 0L, 0L, type, null, false));
+						break;
+					}
+					case INDEX_RECORD_PENDING: {
+						if (fields.length != 3) {
+							return false;
+						}
+						pendingItems.add(new CacheItem(name, 0L, 0L, type, null, false));
+						break;
+					}
+					default: {
+						return false;
+					}
+				}
+				records++;
+			}
+		} catch (FileNotFoundException e) {
+			return false;
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+			return false;
+		}
+		for (CacheItem cacheItem : mediaItems.values()) {
+			if (cacheItem.contentHash != null && !cacheItem.link) {
+				mediaContents.put(cacheItem.contentHash, cacheItem);
+			}
+		}
+		Iterator<CacheItem> iterator = mediaItems.values().iterator();
+		while (iterator.hasNext()) {
+			CacheItem cacheItem = iterator.next();
+			if (cacheItem.link && !mediaContents.containsKey(cacheItem.contentHash)) {
+				// Linked file was removed or replaced with different content
+				iterator.remove();
+			}
+		}
+		thumbnailsCacheSize = fillCache(thumbnailsCache, thumbnailItems.values());
+		mediaCacheSize = fillCache(mediaCache, mediaItems.values());
+		indexRecords = records;
+		indexRedundantRecords = records - thumbnailItems.size() - mediaItems.size() - pendingItems.size();
+		return true;
+	}
+
+	private static void appendIndexRecord(StringBuilder builder, char record, CacheItem cacheItem) {
+		builder.append(record).append(' ').append(cacheItem.type.key).append(' ').append(cacheItem.name);
+		if (record == INDEX_RECORD_STORE) {
+			builder.append(' ').append(cacheItem.length);
+		} else if (record == INDEX_RECORD_LINK) {
+			builder.append(' ').append(cacheItem.contentHash);
+		}
+		if (record != INDEX_RECORD_DELETE && record != INDEX_RECORD_PENDING) {
+			builder.append(' ').append(cacheItem.lastModified);
+		}
+		if (record == INDEX_RECORD_STORE && cacheItem.contentHash != null) {
+			builder.append(' ').append(cacheItem.contentHash);
+		}
+		builder.append('\n');
+	}
+
+	private void writeIndex() {
+		// Called with media, thumbnails and index locks held
+		closeIndexWriter();
+		File indexFile = getIndexFile();
+		if (indexFile == null || !isCacheAvailable()) {
+			return;
+		}
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		boolean success = false;
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"))) {
+			StringBuilder builder = new StringBuilder();
+			writer.write(INDEX_HEADER);
+			writer.write('\n');
+			for (LinkedHashMap<String, CacheItem> cacheItems : Arrays.asList(thumbnailsCache, mediaCache)) {
+				for (CacheItem cacheItem : cacheItems.values()) {
+					builder.setLength(0);
+					appendIndexRecord(builder, cacheItem.link ? INDEX_RECORD_LINK : INDEX_RECORD_STORE, cacheItem);
+					writer.write(builder.toString());
+				}
+			}
+			for (CacheItem cacheItem : pendingItems) {
+				builder.setLength(0);
+				appendIndexRecord(builder, INDEX_RECORD_PENDING, cacheItem);
+				writer.write(builder.toString());
+			}
+			success = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (success && tempFile.renameTo(indexFile)) {
+			indexRecords = thumbnailsCache.size() + mediaCache.size() + pendingItems.size();
+			indexRedundantRecords = 0;
+		} else {
+			tempFile.delete();
+			indexFile.delete();
+		}
+	}
+
+	private void invalidateIndex() {
+		synchronized (indexLock) {
+			// Cache directories were changed outside of the application, full rescan will be performed
+			closeIndexWriter();
+			File indexFile = getIndexFile();
+			if (indexFile != null) {
+				indexFile.delete();
+			}
+		}
+	}
+
+	private void closeIndexWriter() {
+		if (indexWriter != null) {
+			IOUtils.close(indexWriter);
+			indexWriter = null;
+		}
+	}
+
+	private boolean isIndexCompactionRequired() {
+		return indexRedundantRecords >= INDEX_MIN_REDUNDANT_RECORDS &&
+				indexRedundantRecords >= indexRecords - indexRedundantRecords;
+	}
+
+	private void appendIndex(char record, CacheItem cacheItem, boolean replace) {
+		appendIndex(record, Collections.singletonList(cacheItem), replace);
+	}
+
+	private void appendIndex(char record, Collection<CacheItem> cacheItems, boolean replace) {
+		if (cacheItems.isEmpty()) {
+			return;
+		}
+		StringBuilder builder = new StringBuilder();
+		for (CacheItem cacheItem : cacheItems) {
+			appendIndexRecord(builder, record, cacheItem);
+		}
+		synchronized (indexLock) {
+			File indexFile = getIndexFile();
+			if (indexFile == null) {
+				return;
+			}
+			try {
+				if (indexWriter == null) {
+					if (!indexFile.exists()) {
+						// Index was never written or has been invalidated, so full rescan will be performed
+						return;
+					}
+					indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true),
+							"UTF-8"));
+				}
+				indexWriter.write(builder.toString());
+				indexWriter.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+				// Index is no longer consistent with the cache directories
+				closeIndexWriter();
+				indexFile.delete();
+				return;
+			}
+			int count = cacheItems.size();
+			indexRecords += count;
+			if (record == INDEX_RECORD_DELETE) {
+				indexRedundantRecords += 2 * count;
+			} else if (record == INDEX_RECORD_ACCESS || replace) {
+				indexRedundantRecords += count;
+			}
+			if (!indexCompactionScheduled && isIndexCompactionRequired()) {
+				indexCompactionScheduled = true;
+				new Thread(() -> {
+					if (waitCacheSync()) {
+						return;
+					}
+					synchronized (mediaCache) {
+						synchronized (thumbnailsCache) {
+							synchronized (indexLock) {
+								indexCompactionScheduled = false;
+								writeIndex();
+							}
+						}
+					}
+				}, "CacheManagerIndex").start();
+			}
+		}
+	}
+
 	private void cleanupAsync(boolean thumbnails, boolean media) {
 		int maxCache = MAX_THUMBNAILS_PART + MAX_MEDIA_PART;
 		long maxCacheSize = Preferences.getCacheSize() * 1000L * 1000L;
@@ -212,6 +721,7 @@ public class CacheManager implements Runnable {
 			LinkedHashMap<String, CacheItem> cacheItems, long size, long maxSize, DeleteCondition deleteCondition) {
 		long trimAmount = (long) (TRIM_FACTOR * maxSize);
 		long deleteAmount = size - maxSize + trimAmount;
+		int count = cleanupCacheItems.size();
 		Iterator<CacheItem> iterator = cacheItems.values().iterator();
 		while (iterator.hasNext() && deleteAmount > 0) {
 			CacheItem cacheItem = iterator.next();
@@ -219,12 +729,22 @@ public class CacheManager implements Runnable {
 				deleteAmount -= cacheItem.length;
 				size -= cacheItem.length;
 				iterator.remove();
+				removeMediaContent(cacheItem);
 				cleanupCacheItems.add(cacheItem);
 			}
 		}
+		appendIndex(INDEX_RECORD_DELETE, cleanupCacheItems.subList(count, cleanupCacheItems.size()), false);
 		return size;
 	}
 
+	private void removeMediaContent(CacheItem cacheItem) {
+		// Called with media lock held, links to this content will be removed on access
+		if (cacheItem.contentHash != null && !cacheItem.link &&
+				mediaContents.get(cacheItem.contentHash) == cacheItem) {
+			mediaContents.remove(cacheItem.contentHash);
+		}
+	}
+
 	private interface DeleteCondition {
 		boolean allowDeleteCacheItem(CacheItem cacheItem);
 	}
@@ -276,7 +796,9 @@ public class CacheManager implements Runnable {
 			CacheItem cacheItem = cacheItems.get(fileName.toLowerCase(Locale.US));
 			if (cacheItem != null && !file.exists()) {
 				cacheItems.remove(cacheItem.nameLc);
+				removeMediaContent(cacheItem);
 				modifyCacheSize(type, -cacheItem.length);
+				invalidateIndex();
 				cacheItem = null;
 			}
 			return cacheItem != null;
@@ -297,33 +819,70 @@ public class CacheManager implements Runnable {
 					file.setLastModified(lastModified);
 					cacheItem.lastModified = lastModified;
 					cacheItems.put(fileNameLc, cacheItem);
+					appendIndex(INDEX_RECORD_ACCESS, cacheItem, false);
 				} else {
+					removeMediaContent(cacheItem);
 					modifyCacheSize(type, -cacheItem.length);
+					invalidateIndex();
 				}
 			}
 		}
 	}
 
-	private void validateNewCachedFile(File file, String fileName, CacheItem.Type type, boolean success) {
+	private File validateNewCachedFile(File file, String fileName, CacheItem.Type type, boolean success,
+			String contentHash) {
 		if (waitCacheSync()) {
-			return;
+			return file;
 		}
 		LinkedHashMap<String, CacheItem> cacheItems = getCacheItems(type);
 		synchronized (cacheItems) {
 			long lengthDelta = 0L;
+			boolean pending;
+			synchronized (indexLock) {
+				pending = pendingItems.remove(new CacheItem(fileName, 0L, 0L, type, null, false));
+			}
 			CacheItem cacheItem = cacheItems.remove(fileName.toLowerCase(Locale.US));
+			boolean replace = cacheItem != null || pending;
 			if (cacheItem != null) {
 				lengthDelta = -cacheItem.length;
+				removeMediaContent(cacheItem);
 			}
+			File resultFile = file;
 			if (success) {
-				cacheItem = new CacheItem(file, type);
-				cacheItems.put(cacheItem.nameLc, cacheItem);
-				lengthDelta += cacheItem.length;
+				CacheItem contentItem = type == CacheItem.Type.MEDIA && contentHash != null
+						? mediaContents.get(contentHash) : null;
+				File contentFile = contentItem != null ? getCacheFile(getMediaDirectory(), contentItem.name) : null;
+				if (contentFile != null && contentFile.exists()) {
+					// Same content is already cached under another URI, keep a single copy
+					file.delete();
+					resultFile = contentFile;
+					long lastModified = System.currentTimeMillis();
+					cacheItem = new CacheItem(fileName, 0L, lastModified, type, contentHash, true);
+					cacheItems.put(cacheItem.nameLc, cacheItem);
+					appendIndex(INDEX_RECORD_LINK, cacheItem, replace);
+					cacheItems.remove(contentItem.nameLc);
+					contentFile.setLastModified(lastModified);
+					contentItem.lastModified = lastModified;
+					cacheItems.put(contentItem.nameLc, contentItem);
+					appendIndex(INDEX_RECORD_ACCESS, contentItem, false);
+				} else {
+					cacheItem = new CacheItem(file, type, type == CacheItem.Type.MEDIA ? contentHash : null);
+					cacheItems.put(cacheItem.nameLc, cacheItem);
+					if (cacheItem.contentHash != null) {
+						mediaContents.put(cacheItem.contentHash, cacheItem);
+					}
+					lengthDelta += cacheItem.length;
+					appendIndex(INDEX_RECORD_STORE, cacheItem, replace);
+				}
+			} else if (replace) {
+				appendIndex(INDEX_RECORD_DELETE, cacheItem != null ? cacheItem
+						: new CacheItem(fileName, 0L, 0L, type, null, false), false);
 			}
 			modifyCacheSize(type, lengthDelta);
 			if (success) {
 				cleanupAsync(type == CacheItem.Type.THUMBNAILS, type == CacheItem.Type.MEDIA);
 			}
+			return resultFile;
 		}
 	}
 
@@ -358,12 +917,42 @@ public class CacheManager implements Runnable {
 		return file;
 	}
 
+	private String resolveMediaLink(String fileName, boolean touch) {
+		if (waitCacheSync()) {
+			return null;
+		}
+		synchronized (mediaCache) {
+			String fileNameLc = fileName.toLowerCase(Locale.US);
+			CacheItem cacheItem = mediaCache.get(fileNameLc);
+			if (cacheItem == null || !cacheItem.link) {
+				return null;
+			}
+			CacheItem contentItem = mediaContents.get(cacheItem.contentHash);
+			if (contentItem == null) {
+				mediaCache.remove(fileNameLc);
+				appendIndex(INDEX_RECORD_DELETE, cacheItem, false);
+				return null;
+			}
+			if (touch) {
+				mediaCache.remove(fileNameLc);
+				cacheItem.lastModified = System.currentTimeMillis();
+				mediaCache.put(fileNameLc, cacheItem);
+				appendIndex(INDEX_RECORD_ACCESS, cacheItem, false);
+			}
+			return contentItem.name;
+		}
+	}
+
 	private File getMediaFile(String fileName, boolean touch) {
 		File directory = getMediaDirectory();
 		if (directory == null) {
 			return null;
 		}
-		File file = new File(directory, fileName);
+		String linkedFileName = resolveMediaLink(fileName, touch);
+		if (linkedFileName != null) {
+			fileName = linkedFileName;
+		}
+		File file = getCacheFile(directory, fileName);
 		if (touch) {
 			updateCachedFileLastModified(file, fileName, CacheItem.Type.MEDIA);
 		}
@@ -374,27 +963,66 @@ public class CacheManager implements Runnable {
 		return getMediaFile(getCachedFileKey(uri), touch);
 	}
 
+	public String getMediaContentHash(Uri uri) {
+		if (waitCacheSync()) {
+			return null;
+		}
+		String fileName = getCachedFileKey(uri);
+		if (fileName == null) {
+			return null;
+		}
+		synchronized (mediaCache) {
+			CacheItem cacheItem = mediaCache.get(fileName.toLowerCase(Locale.US));
+			return cacheItem != null ? cacheItem.contentHash : null;
+		}
+	}
+
 	public File getPartialMediaFile(Uri uri) {
 		return getMediaFile(getCachedFileKey(uri) + ".part", false);
 	}
 
+	public File getPartialMediaStateFile(Uri uri) {
+		return getMediaFile(getCachedFileKey(uri) + ".part.state", false);
+	}
+
+	public File getPartialDownloadFile(Uri uri) {
+		return getMediaFile(getCachedFileKey(uri) + ".download", false);
+	}
+
+	public File getPartialDownloadStateFile(Uri uri) {
+		return getMediaFile(getCachedFileKey(uri) + ".download.state", false);
+	}
+
+	public String getMediaFilePath(File file) {
+		String fileName = file.getName();
+		String shardPath = getShardPath(fileName);
+		return shardPath != null ? shardPath + "/" + fileName : fileName;
+	}
+
 	private long eraseCache(LinkedHashMap<String, CacheItem> cacheItems, File directory,
 			DeleteCondition deleteCondition) throws InterruptedException {
 		if (directory == null) {
 			return 0L;
 		}
 		long deleted = 0L;
-		Iterator<CacheItem> iterator = cacheItems.values().iterator();
-		while (iterator.hasNext()) {
-			if (Thread.interrupted()) {
-				throw new InterruptedException();
-			}
-			CacheItem cacheItem = iterator.next();
-			if (deleteCondition == null || deleteCondition.allowDeleteCacheItem(cacheItem)) {
-				deleted += cacheItem.length;
-				new File(directory, cacheItem.name).delete();
-				iterator.remove();
+		ArrayList<CacheItem> deletedCacheItems = new ArrayList<>();
+		try {
+			Iterator<CacheItem> iterator = cacheItems.values().iterator();
+			while (iterator.hasNext()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				CacheItem cacheItem = iterator.next();
+				if (deleteCondition == null || deleteCondition.allowDeleteCacheItem(cacheItem)) {
+					deleted += cacheItem.length;
+					getCacheFile(directory, cacheItem.name).delete();
+					iterator.remove();
+					removeMediaContent(cacheItem);
+					deletedCacheItems.add(cacheItem);
+				}
 			}
+		} finally {
+			appendIndex(INDEX_RECORD_DELETE, deletedCacheItems, false);
 		}
 		return deleted;
 	}
@@ -408,6 +1036,7 @@ public class CacheManager implements Runnable {
 
 	public void eraseMediaCache() throws InterruptedException {
 		synchronized (mediaCache) {
+			mediaContents.clear();
 			eraseCache(mediaCache, getMediaDirectory(), null);
 			mediaCacheSize = 0L;
 		}
@@ -467,27 +1096,51 @@ public class CacheManager implements Runnable {
 		return false;
 	}
 
-	public void handleDownloadedFile(File file, boolean success) {
-		File directory = file.getParentFile();
-		if (directory != null) {
-			CacheItem.Type type = null;
-			if (directory.equals(getThumbnailsDirectory())) {
-				type = CacheItem.Type.THUMBNAILS;
-			} else if (directory.equals(getMediaDirectory())) {
-				type = CacheItem.Type.MEDIA;
-			}
-			if (type != null) {
-				validateNewCachedFile(file, file.getName(), type, success);
+	private CacheItem.Type getCacheItemType(File file) {
+		String fileName = file.getName();
+		File thumbnailsDirectory = getThumbnailsDirectory();
+		File mediaDirectory = getMediaDirectory();
+		if (thumbnailsDirectory != null && file.equals(getShardedFile(thumbnailsDirectory, fileName))) {
+			return CacheItem.Type.THUMBNAILS;
+		} else if (mediaDirectory != null && file.equals(getShardedFile(mediaDirectory, fileName))) {
+			return CacheItem.Type.MEDIA;
+		}
+		return null;
+	}
+
+	private void markCachedFilePending(String fileName, CacheItem.Type type) {
+		if (waitCacheSync()) {
+			return;
+		}
+		CacheItem cacheItem = new CacheItem(fileName, 0L, 0L, type, null, false);
+		synchronized (indexLock) {
+			if (pendingItems.add(cacheItem)) {
+				appendIndex(INDEX_RECORD_PENDING, cacheItem, false);
 			}
 		}
 	}
 
-	public File getThumbnailFile(String thumbnailKey) {
-		File directory = getThumbnailsDirectory();
-		if (directory == null) {
-			return null;
+	public void handleDownloadingFile(File file) {
+		CacheItem.Type type = getCacheItemType(file);
+		if (type != null) {
+			markCachedFilePending(file.getName(), type);
+		}
+	}
+
+	public void handleDownloadedFile(File file, boolean success) {
+		handleDownloadedFile(file, success, null);
+	}
+
+	public File handleDownloadedFile(File file, boolean success, String contentHash) {
+		CacheItem.Type type = getCacheItemType(file);
+		if (type != null) {
+			return validateNewCachedFile(file, file.getName(), type, success, contentHash);
 		}
-		return new File(directory, thumbnailKey);
+		return file;
+	}
+
+	public File getThumbnailFile(String thumbnailKey) {
+		return getCacheFile(getThumbnailsDirectory(), thumbnailKey);
 	}
 
 	public Bitmap loadThumbnailExternal(String thumbnailKey) {
@@ -501,37 +1154,33 @@ public class CacheManager implements Runnable {
 		if (!isFileExistsInCache(file, thumbnailKey, CacheItem.Type.THUMBNAILS)) {
 			return null;
 		}
-		Bitmap bitmap;
-		try (FileInputStream input = new FileInputStream(file)) {
-			bitmap = BitmapFactory.decodeStream(input);
-			if (bitmap == null) {
-				file.delete();
-				return null;
-			}
-			updateCachedFileLastModified(file, thumbnailKey, CacheItem.Type.THUMBNAILS);
-			return bitmap;
-		} catch (IOException e) {
+		Bitmap bitmap = BitmapPool.getInstance().decodeFile(file);
+		if (bitmap == null) {
+			file.delete();
+			validateNewCachedFile(file, thumbnailKey, CacheItem.Type.THUMBNAILS, false, null);
 			return null;
 		}
+		updateCachedFileLastModified(file, thumbnailKey, CacheItem.Type.THUMBNAILS);
+		return bitmap;
 	}
 
 	public void storeThumbnailExternal(String thumbnailKey, Bitmap data) {
 		if (!isCacheAvailable()) {
 			return;
 		}
-		File directory = getThumbnailsDirectory();
-		if (directory == null) {
+		File file = getThumbnailFile(thumbnailKey);
+		if (file == null) {
 			return;
 		}
+		markCachedFilePending(thumbnailKey, CacheItem.Type.THUMBNAILS);
 		boolean success = false;
-		File file = new File(directory, thumbnailKey);
 		try (FileOutputStream output = new FileOutputStream(file)) {
 			data.compress(Bitmap.CompressFormat.PNG, 100, output);
 			success = true;
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			validateNewCachedFile(file, thumbnailKey, CacheItem.Type.THUMBNAILS, success);
+			validateNewCachedFile(file, thumbnailKey, CacheItem.Type.THUMBNAILS, success, null);
 		}
 	}
 
@@ -6,8 +6,6 @@ import chan.text.JsonSerial;
 import chan.text.ParseException;
 import chan.util.StringUtils;
 import com.mishiranu.dashchan.R;
-import com.mishiranu.dashchan.content.model.AttachmentItem;
-import com.mishiranu.dashchan.content.model.Post;
 import com.mishiranu.dashchan.content.model.PostItem;
 import com.mishiranu.dashchan.content.model.PostNumber;
 import com.mishiranu.dashchan.content.storage.AutohideStorage;
@@ -16,14 +14,17 @@ import com.mishiranu.dashchan.widget.ClickableToast;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HidePerformer {
 	private static final int MAX_COMMENT_LENGTH = 1000;
+	private static final AtomicInteger RULES_VERSION = new AtomicInteger();
 
 	public interface PostsProvider {
 		PostItem findPostItem(PostNumber postNumber);
@@ -35,8 +36,10 @@ public class HidePerformer {
 	private PostsProvider postsProvider;
 
 	private LinkedHashSet<PostNumber> replies;
+	private final HashMap<PostNumber, String> repliesStates = new HashMap<>();
 	private LinkedHashSet<String> names;
 	private ArrayList<SimilarTextEstimator.WordsData<PostNumber>> similar;
+	private Rules rules;
 
 	public HidePerformer(Context context) {
 		autohidePrefix = context != null ? context.getString(R.string.autohide) + ": " : "";
@@ -44,142 +47,181 @@ public class HidePerformer {
 
 	public void setPostsProvider(PostsProvider postsProvider) {
 		this.postsProvider = postsProvider;
+		repliesStates.clear();
+	}
+
+	public void invalidateReplies() {
+		repliesStates.clear();
 	}
 
 	public String checkHidden(Chan chan, PostItem postItem) {
 		String message = checkHiddenByReplies(postItem);
 		if (message == null) {
-			message = checkHiddenByName(chan, postItem);
-		}
-		if (message == null) {
-			message = checkHiddenBySimilarPost(chan, postItem);
-		}
-		if (message == null) {
-			message = checkHiddenGlobalAutohide(chan, postItem);
+			message = getRules().check(chan, postItem);
 		}
 		return message != null ? autohidePrefix + message : null;
 	}
 
-	private String checkHiddenByReplies(PostItem postItem) {
-		if (replies != null && postsProvider != null) {
-			if (replies.contains(postItem.getPostNumber())) {
-				return "replies tree " + postItem.getPostNumber();
+	// Immutable copy of rules which don't depend on other posts, so posts can be checked in background
+	public static class Rules {
+		private final int version;
+		private final SimilarTextEstimator estimator;
+		private final HashSet<String> names;
+		private final SimilarTextEstimator.Index<PostNumber> similarIndex;
+		private final AutohideMatcher autohideMatcher;
+
+		private Rules(SimilarTextEstimator estimator, Collection<String> names,
+				List<SimilarTextEstimator.WordsData<PostNumber>> similar, AutohideMatcher autohideMatcher) {
+			version = RULES_VERSION.incrementAndGet();
+			this.estimator = estimator;
+			this.names = names != null ? new HashSet<>(names) : null;
+			similarIndex = similar != null ? new SimilarTextEstimator.Index<>(new ArrayList<>(similar)) : null;
+			this.autohideMatcher = autohideMatcher;
+		}
+
+		// Result is stored in post item until rules are changed
+		public String check(Chan chan, PostItem postItem) {
+			PostItem.HideResult hideResult = postItem.getHideResult();
+			if (hideResult == null || hideResult.version != version) {
+				String message = checkHiddenByName(chan, postItem);
+				if (message == null) {
+					message = checkHiddenBySimilarPost(chan, postItem);
+				}
+				if (message == null) {
+					message = autohideMatcher.find(chan, postItem);
+				}
+				hideResult = new PostItem.HideResult(version, message);
+				postItem.setHideResult(hideResult);
 			}
-			for (PostNumber postNumber : postItem.getReferencesTo()) {
-				postItem = postsProvider.findPostItem(postNumber);
-				if (postItem != null) {
-					String message = checkHiddenByReplies(postItem);
-					if (message != null) {
-						return message;
+			return hideResult.reason;
+		}
+
+		private String checkHiddenByName(Chan chan, PostItem postItem) {
+			if (names != null) {
+				String name = postItem.getFullName(chan).toString();
+				if (names.contains(name)) {
+					return "name " + name;
+				}
+			}
+			return null;
+		}
+
+		private String checkHiddenBySimilarPost(Chan chan, PostItem postItem) {
+			if (similarIndex != null) {
+				SimilarTextEstimator.WordsData<PostNumber> wordsData =
+						estimator.getWords(postItem.getComment(chan).toString());
+				if (wordsData != null) {
+					SimilarTextEstimator.WordsData<PostNumber> similarWordsData =
+							similarIndex.findSimilar(estimator, wordsData);
+					if (similarWordsData != null) {
+						return "similar to " + similarWordsData.extra;
 					}
 				}
 			}
+			return null;
 		}
-		return null;
 	}
 
-	private String checkHiddenByName(Chan chan, PostItem postItem) {
-		if (names != null) {
-			String name = postItem.getFullName(chan).toString();
-			if (names.contains(name)) {
-				return "name " + name;
-			}
+	public Rules getRules() {
+		AutohideMatcher autohideMatcher = autohideStorage.getMatcher();
+		if (rules == null || rules.autohideMatcher != autohideMatcher) {
+			rules = new Rules(estimator, names, similar, autohideMatcher);
+		}
+		return rules;
+	}
+
+	private static class RepliesFrame {
+		public final PostNumber postNumber;
+		public final Iterator<PostNumber> iterator;
+
+		public RepliesFrame(PostItem postItem) {
+			postNumber = postItem.getPostNumber();
+			iterator = postItem.getReferencesTo().iterator();
+		}
+	}
+
+	private String checkHiddenByReplies(PostItem postItem) {
+		if (replies != null && postsProvider != null) {
+			String state = getRepliesState(postItem);
+			return state.isEmpty() ? null : state;
 		}
 		return null;
 	}
 
-	private String checkHiddenBySimilarPost(Chan chan, PostItem postItem) {
-		if (similar != null) {
-			SimilarTextEstimator.WordsData<PostNumber> wordsData =
-					estimator.getWords(postItem.getComment(chan).toString());
-			if (wordsData != null) {
-				for (SimilarTextEstimator.WordsData<PostNumber> similarWordsData : similar) {
-					if (estimator.checkSimiliar(wordsData, similarWordsData)) {
-						return "similar to " + similarWordsData.extra;
+	// Every post state is evaluated once and stored, empty state means the post is not hidden
+	private String getRepliesState(PostItem postItem) {
+		PostNumber postNumber = postItem.getPostNumber();
+		String state = repliesStates.get(postNumber);
+		if (state != null) {
+			return state;
+		}
+		if (replies.contains(postNumber)) {
+			state = "replies tree " + postNumber;
+			repliesStates.put(postNumber, state);
+			return state;
+		}
+		// Iterative depth-first traversal, references are checked in order
+		ArrayList<RepliesFrame> frames = new ArrayList<>();
+		frames.add(new RepliesFrame(postItem));
+		repliesStates.put(postNumber, "");
+		state = null;
+		while (!frames.isEmpty()) {
+			RepliesFrame frame = frames.get(frames.size() - 1);
+			if (state != null && !state.isEmpty()) {
+				repliesStates.put(frame.postNumber, state);
+				frames.remove(frames.size() - 1);
+				continue;
+			}
+			state = null;
+			if (frame.iterator.hasNext()) {
+				PostNumber referenceNumber = frame.iterator.next();
+				String referenceState = repliesStates.get(referenceNumber);
+				if (referenceState != null) {
+					state = referenceState;
+				} else {
+					PostItem referencePostItem = postsProvider.findPostItem(referenceNumber);
+					if (referencePostItem != null) {
+						if (replies.contains(referenceNumber)) {
+							state = "replies tree " + referenceNumber;
+							repliesStates.put(referenceNumber, state);
+						} else {
+							// Mark as not hidden while evaluating to break reference cycles
+							repliesStates.put(referenceNumber, "");
+							frames.add(new RepliesFrame(referencePostItem));
+						}
 					}
 				}
+			} else {
+				state = "";
+				repliesStates.put(frame.postNumber, state);
+				frames.remove(frames.size() - 1);
 			}
 		}
-		return null;
+		return repliesStates.get(postNumber);
 	}
 
-	private String checkHiddenGlobalAutohide(Chan chan, PostItem postItem) {
-		String boardName = postItem.getBoardName();
-		PostNumber originalPostNumber = postItem.getOriginalPostNumber();
-		String originalPostNumberString = originalPostNumber != null
-				? originalPostNumber.toString() : null;
-		boolean originalPost = postItem.isOriginalPost();
-		boolean sage = postItem.isSage();
-		String subject = null;
-		String comment = null;
-		List<String> names = null;
-		ArrayList<AutohideStorage.AutohideItem> autohideItems = autohideStorage.getItems();
-		for (int i = 0; i < autohideItems.size(); i++) {
-			AutohideStorage.AutohideItem autohideItem = autohideItems.get(i);
-			// AND selection (only if chan, board, thread, op, and sage match the rule)
-			if (autohideItem.chanNames == null || autohideItem.chanNames.contains(chan.name)) {
-				if (StringUtils.isEmpty(autohideItem.boardName) || boardName == null
-						|| autohideItem.boardName.equals(boardName)) {
-					if (StringUtils.isEmpty(autohideItem.threadNumber) || autohideItem.boardName != null &&
-							autohideItem.threadNumber.equals(originalPostNumberString)) {
-						if ((!autohideItem.optionOriginalPost || autohideItem.optionOriginalPost == originalPost)
-								&& (!autohideItem.optionSage || autohideItem.optionSage == sage)) {
-							String result;
-							// OR selection (hide if subject, comment, or name match the rule)
-							if (autohideItem.optionSubject) {
-								if (subject == null) {
-									subject = postItem.getSubject();
-								}
-								if ((result = autohideItem.find(subject)) != null) {
-									return autohideItem.getReason(AutohideStorage.AutohideItem
-											.ReasonSource.SUBJECT, comment, result);
-								}
-							}
-							if (autohideItem.optionComment) {
-								if (comment == null) {
-									comment = postItem.getComment(chan).toString();
-								}
-								if ((result = autohideItem.find(comment)) != null) {
-									return autohideItem.getReason(AutohideStorage.AutohideItem
-											.ReasonSource.COMMENT, comment, result);
-								}
-							}
-							if (autohideItem.optionName) {
-								if (names == null) {
-									String name = postItem.getFullName(chan).toString();
-									List<Post.Icon> icons = postItem.getIcons();
-									if (!icons.isEmpty()) {
-										names = new ArrayList<>(1 + icons.size());
-										names.add(name);
-										for (Post.Icon icon : icons) {
-											names.add(icon.title);
-										}
-									} else {
-										names = Collections.singletonList(name);
-									}
-								}
-								for (String name : names) {
-									if ((result = autohideItem.find(name)) != null) {
-										return autohideItem.getReason(AutohideStorage.AutohideItem
-												.ReasonSource.NAME, name, result);
-									}
-								}
-							}
-							if (autohideItem.optionFileName && postItem.hasAttachments()) {
-								for (AttachmentItem attachmentItem : postItem.getAttachmentItems()) {
-									String originalName = StringUtils.emptyIfNull(attachmentItem.getOriginalName());
-									if ((result = autohideItem.find(originalName)) != null) {
-										return autohideItem.getReason(AutohideStorage.AutohideItem
-												.ReasonSource.FILE, originalName, result);
-									}
-								}
-							}
+	private void invalidateRepliesStates(PostNumber postNumber) {
+		if (repliesStates.isEmpty()) {
+			return;
+		}
+		// Only the post and posts referencing it directly or indirectly are affected
+		ArrayList<PostNumber> queue = new ArrayList<>();
+		HashSet<PostNumber> visited = new HashSet<>();
+		queue.add(postNumber);
+		visited.add(postNumber);
+		for (int i = 0; i < queue.size(); i++) {
+			PostNumber number = queue.get(i);
+			if (repliesStates.remove(number) != null || i == 0) {
+				PostItem postItem = postsProvider != null ? postsProvider.findPostItem(number) : null;
+				if (postItem != null) {
+					for (PostNumber referenceNumber : postItem.getReferencesFrom()) {
+						if (visited.add(referenceNumber)) {
+							queue.add(referenceNumber);
 						}
 					}
 				}
 			}
 		}
-		return null;
 	}
 
 	public enum AddResult {SUCCESS, FAIL, EXISTS}
@@ -193,6 +235,7 @@ public class HidePerformer {
 			return AddResult.EXISTS;
 		}
 		replies.add(postNumber);
+		invalidateRepliesStates(postNumber);
 		return AddResult.SUCCESS;
 	}
 
@@ -209,6 +252,7 @@ public class HidePerformer {
 			return AddResult.EXISTS;
 		}
 		names.add(fullName);
+		rules = null;
 		return AddResult.SUCCESS;
 	}
 
@@ -231,6 +275,7 @@ public class HidePerformer {
 			}
 		}
 		similar.add(wordsData);
+		rules = null;
 		return AddResult.SUCCESS;
 	}
 
@@ -261,15 +306,16 @@ public class HidePerformer {
 		return localFilters;
 	}
 
-	private static void removeFromLinkedHashSet(LinkedHashSet<?> set, int index) {
+	private static <T> T removeFromLinkedHashSet(LinkedHashSet<T> set, int index) {
 		int k = 0;
-		for (Iterator<?> iterator = set.iterator(); iterator.hasNext();) {
-			iterator.next();
+		for (Iterator<T> iterator = set.iterator(); iterator.hasNext();) {
+			T item = iterator.next();
 			if (k++ == index) {
 				iterator.remove();
-				break;
+				return item;
 			}
 		}
+		return null;
 	}
 
 	@SuppressWarnings({"UnnecessaryReturnStatement", "UnusedAssignment"})
@@ -278,7 +324,8 @@ public class HidePerformer {
 			if (index >= replies.size()) {
 				index -= replies.size();
 			} else {
-				removeFromLinkedHashSet(replies, index);
+				PostNumber postNumber = removeFromLinkedHashSet(replies, index);
+				invalidateRepliesStates(postNumber);
 				if (replies.isEmpty()) {
 					replies = null;
 				}
@@ -290,6 +337,7 @@ public class HidePerformer {
 				index -= names.size();
 			} else {
 				removeFromLinkedHashSet(names, index);
+				rules = null;
 				if (names.isEmpty()) {
 					names = null;
 				}
@@ -301,6 +349,7 @@ public class HidePerformer {
 				index -= similar.size();
 			} else {
 				similar.remove(index);
+				rules = null;
 				if (similar.isEmpty()) {
 					similar = null;
 				}
@@ -356,6 +405,8 @@ public class HidePerformer {
 		this.replies = null;
 		this.names = null;
 		this.similar = null;
+		rules = null;
+		repliesStates.clear();
 		if (reader != null) {
 			reader.startObject();
 			while (!reader.endStruct()) {
@@ -429,6 +480,8 @@ public class HidePerformer {
 		this.replies = null;
 		this.names = null;
 		this.similar = null;
+		rules = null;
+		repliesStates.clear();
 		if (localFilters != null) {
 			for (String[] rule : localFilters) {
 				if (rule == null || rule.length < 2) {
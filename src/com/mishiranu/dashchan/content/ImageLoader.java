@@ -1,7 +1,6 @@
 package com.mishiranu.dashchan.content;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Process;
 import android.os.SystemClock;
@@ -19,6 +18,7 @@ import chan.http.HttpResponse;
 import com.mishiranu.dashchan.R;
 import com.mishiranu.dashchan.content.async.HttpHolderTask;
 import com.mishiranu.dashchan.content.model.ErrorItem;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.GraphicsUtils;
 import com.mishiranu.dashchan.util.LruCache;
@@ -108,17 +108,14 @@ public class ImageLoader {
 						if (!chan.configuration.readResourceUri(uri, output)) {
 							throw HttpException.createNotFoundException();
 						}
-						byte[] bytes = output.toByteArray();
-						bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+						bitmap = BitmapPool.getInstance().decodeByteArray(output.toByteArray());
 					} else if (dataScheme) {
 						String data = uri.toString();
 						int index = data.indexOf("base64,");
 						if (index >= 0) {
 							data = data.substring(index + 7);
 							byte[] bytes = Base64.decode(data, Base64.DEFAULT);
-							if (bytes != null) {
-								bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-							}
+							bitmap = BitmapPool.getInstance().decodeByteArray(bytes);
 						}
 					} else {
 						HttpResponse response;
@@ -133,7 +130,7 @@ public class ImageLoader {
 						}
 						if (response != null) {
 							try {
-								bitmap = response.readBitmap();
+								bitmap = BitmapPool.getInstance().decodeByteArray(response.readBytes());
 							} finally {
 								response.cleanupAndDisconnect();
 							}
@@ -11,6 +11,7 @@ import android.telephony.TelephonyManager;
 import android.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
+import chan.http.HostHealth;
 import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.util.AndroidUtils;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
@@ -26,7 +27,7 @@ public class NetworkObserver {
 
 	private final ConnectivityManager connectivityManager;
 
-	private NetworkState networkState = NetworkState.UNDEFINED;
+	private volatile NetworkState networkState = NetworkState.UNDEFINED;
 	private long last3GChecked;
 	private boolean last3GAvailable;
 
@@ -71,6 +72,10 @@ public class NetworkObserver {
 		return null;
 	}
 
+	public boolean isConnected() {
+		return networkState != NetworkState.UNDEFINED;
+	}
+
 	public boolean isWifiConnected() {
 		return networkState == NetworkState.WIFI;
 	}
@@ -157,12 +162,17 @@ public class NetworkObserver {
 	}
 
 	private void onActiveNetworkChange() {
+		NetworkState oldNetworkState = networkState;
 		if (C.API_PIE) {
 			updateNetworkState28();
 		} else {
 			updateNetworkStatePre28();
 		}
 		last3GChecked = 0L;
+		if (networkState != oldNetworkState && networkState != NetworkState.UNDEFINED) {
+			// Failures recorded before connectivity change are not relevant anymore
+			HostHealth.getInstance().reset();
+		}
 	}
 
 	@RequiresApi(Build.VERSION_CODES.P)
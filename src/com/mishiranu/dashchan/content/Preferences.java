@@ -619,6 +619,24 @@ public class Preferences {
 		}
 	}
 
+	public static final String KEY_DOWNLOAD_SEGMENTS = "download_segments";
+	public static final int DEFAULT_DOWNLOAD_SEGMENTS = 1;
+	public static final int MIN_DOWNLOAD_SEGMENTS = 1;
+	public static final int MAX_DOWNLOAD_SEGMENTS = 8;
+	public static final int STEP_DOWNLOAD_SEGMENTS = 1;
+
+	public static int getDownloadSegments() {
+		return Math.max(MIN_DOWNLOAD_SEGMENTS, Math.min(PREFERENCES.getInt(KEY_DOWNLOAD_SEGMENTS,
+				DEFAULT_DOWNLOAD_SEGMENTS), MAX_DOWNLOAD_SEGMENTS));
+	}
+
+	public static final String KEY_DOWNLOAD_SKIP_DUPLICATES = "download_skip_duplicates";
+	public static final boolean DEFAULT_DOWNLOAD_SKIP_DUPLICATES = false;
+
+	public static boolean isDownloadSkipDuplicates() {
+		return PREFERENCES.getBoolean(KEY_DOWNLOAD_SKIP_DUPLICATES, DEFAULT_DOWNLOAD_SKIP_DUPLICATES);
+	}
+
 	public enum DownloadSubdirMode {
 		DISABLED("disabled", R.string.never, multiple -> false),
 		MULTIPLE_ONLY("multiple_only", R.string.on_multiple_downloading, multiple -> multiple),
@@ -653,6 +671,17 @@ public class Preferences {
 				DEFAULT_DOWNLOAD_SUBDIR, DownloadSubdirMode.VALUE_PROVIDER);
 	}
 
+	public static final String KEY_DOWNLOAD_THREADS = "download_threads";
+	public static final int DEFAULT_DOWNLOAD_THREADS = 3;
+	public static final int MIN_DOWNLOAD_THREADS = 1;
+	public static final int MAX_DOWNLOAD_THREADS = 6;
+	public static final int STEP_DOWNLOAD_THREADS = 1;
+
+	public static int getDownloadThreads() {
+		return Math.max(MIN_DOWNLOAD_THREADS, Math.min(PREFERENCES.getInt(KEY_DOWNLOAD_THREADS,
+				DEFAULT_DOWNLOAD_THREADS), MAX_DOWNLOAD_THREADS));
+	}
+
 	public enum DrawerInitialPosition {
 		CLOSED("closed", R.string.closed),
 		FAVORITES("favorites", R.string.favorites),
@@ -859,6 +888,28 @@ public class Preferences {
 				ChanManager.getInstance().hasMultipleAvailableChans();
 	}
 
+	public static final String KEY_NEAREST_IMAGE_MAX_SIZE = "nearest_image_max_size";
+	public static final int MIN_NEAREST_IMAGE_MAX_SIZE = 1;
+	public static final int MAX_NEAREST_IMAGE_MAX_SIZE = 50;
+	public static final int STEP_NEAREST_IMAGE_MAX_SIZE = 1;
+	public static final int DEFAULT_NEAREST_IMAGE_MAX_SIZE = 10;
+
+	public static int getNearestImageMaxSize() {
+		return Math.max(MIN_NEAREST_IMAGE_MAX_SIZE, Math.min(PREFERENCES.getInt(KEY_NEAREST_IMAGE_MAX_SIZE,
+				DEFAULT_NEAREST_IMAGE_MAX_SIZE), MAX_NEAREST_IMAGE_MAX_SIZE));
+	}
+
+	public static final String KEY_NEAREST_IMAGES_COUNT = "nearest_images_count";
+	public static final int MIN_NEAREST_IMAGES_COUNT = 1;
+	public static final int MAX_NEAREST_IMAGES_COUNT = 5;
+	public static final int STEP_NEAREST_IMAGES_COUNT = 1;
+	public static final int DEFAULT_NEAREST_IMAGES_COUNT = 1;
+
+	public static int getNearestImagesCount() {
+		return Math.max(MIN_NEAREST_IMAGES_COUNT, Math.min(PREFERENCES.getInt(KEY_NEAREST_IMAGES_COUNT,
+				DEFAULT_NEAREST_IMAGES_COUNT), MAX_NEAREST_IMAGES_COUNT));
+	}
+
 	public static final String KEY_NOTIFY_DOWNLOAD_COMPLETE = "notify_download_complete";
 	public static final boolean DEFAULT_NOTIFY_DOWNLOAD_COMPLETE = true;
 
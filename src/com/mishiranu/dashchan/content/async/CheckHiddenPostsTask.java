@@ -0,0 +1,40 @@
+package com.mishiranu.dashchan.content.async;
+
+import chan.content.Chan;
+import com.mishiranu.dashchan.content.HidePerformer;
+import com.mishiranu.dashchan.content.model.PostItem;
+import java.util.List;
+
+public class CheckHiddenPostsTask extends ExecutorTask<Void, HidePerformer.Rules> {
+	public interface Callback {
+		void onCheckHiddenPostsComplete(HidePerformer.Rules rules);
+	}
+
+	private final Callback callback;
+	private final Chan chan;
+	private final HidePerformer.Rules rules;
+	private final List<PostItem> postItems;
+
+	public CheckHiddenPostsTask(Callback callback, Chan chan, HidePerformer.Rules rules, List<PostItem> postItems) {
+		this.callback = callback;
+		this.chan = chan;
+		this.rules = rules;
+		this.postItems = postItems;
+	}
+
+	@Override
+	protected HidePerformer.Rules run() {
+		for (PostItem postItem : postItems) {
+			if (isCancelled()) {
+				return null;
+			}
+			rules.check(chan, postItem);
+		}
+		return rules;
+	}
+
+	@Override
+	protected void onComplete(HidePerformer.Rules rules) {
+		callback.onCheckHiddenPostsComplete(rules);
+	}
+}
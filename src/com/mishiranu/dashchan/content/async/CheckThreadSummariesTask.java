@@ -0,0 +1,97 @@
+package com.mishiranu.dashchan.content.async;
+
+import chan.content.Chan;
+import chan.content.ChanPerformer;
+import chan.content.ExtensionException;
+import chan.content.InvalidResponseException;
+import chan.content.model.ThreadSummary;
+import chan.http.HttpException;
+import chan.http.HttpHolder;
+import com.mishiranu.dashchan.content.database.PagesDatabase;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CheckThreadSummariesTask extends HttpHolderTask<Void, List<CheckThreadSummariesTask.Item>> {
+	private final Callback callback;
+	private final Chan chan;
+	private final String boardName;
+	private final HashMap<String, Long> threads;
+
+	public interface Callback {
+		void onCheckThreadSummariesResult(String chanName, String boardName, List<Item> items);
+	}
+
+	public static class Item {
+		public final String threadNumber;
+		public final boolean changed;
+		public final long lastModified;
+
+		public Item(String threadNumber, boolean changed, long lastModified) {
+			this.threadNumber = threadNumber;
+			this.changed = changed;
+			this.lastModified = lastModified;
+		}
+	}
+
+	public CheckThreadSummariesTask(Callback callback, Chan chan, String boardName, Map<String, Long> threads) {
+		super(chan);
+		this.callback = callback;
+		this.chan = chan;
+		this.boardName = boardName;
+		this.threads = new HashMap<>(threads);
+	}
+
+	@Override
+	protected List<Item> run(HttpHolder holder) {
+		ThreadSummary[] threadSummaries;
+		try {
+			ChanPerformer.ReadThreadSummariesResult result = chan.performer.safe()
+					.onReadThreadSummaries(new ChanPerformer.ReadThreadSummariesData(boardName, 0,
+							ChanPerformer.ReadThreadSummariesData.TYPE_ACTIVE_THREADS, holder));
+			threadSummaries = result != null ? result.threadSummaries : null;
+		} catch (ExtensionException | HttpException | InvalidResponseException e) {
+			e.getErrorItemAndHandle();
+			return null;
+		} finally {
+			chan.configuration.commit();
+		}
+		if (threadSummaries == null || threadSummaries.length == 0) {
+			return null;
+		}
+		HashMap<String, ThreadSummary> threadSummariesMap = new HashMap<>();
+		for (ThreadSummary threadSummary : threadSummaries) {
+			threadSummariesMap.put(threadSummary.getThreadNumber(), threadSummary);
+		}
+		ArrayList<Item> items = new ArrayList<>(threads.size());
+		for (HashMap.Entry<String, Long> entry : threads.entrySet()) {
+			String threadNumber = entry.getKey();
+			ThreadSummary threadSummary = threadSummariesMap.get(threadNumber);
+			if (isCancelled()) {
+				return null;
+			}
+			if (threadSummary == null) {
+				// Thread might be deleted or archived, full read will tell
+				items.add(new Item(threadNumber, true, 0));
+			} else {
+				long lastModified = threadSummary.getLastModified();
+				boolean changed = threadSummary.getPostsCount() <= 0 || lastModified > 0 &&
+						entry.getValue() > 0 && lastModified != entry.getValue();
+				if (!changed) {
+					PagesDatabase.ThreadKey threadKey = new PagesDatabase.ThreadKey(chan.name,
+							boardName, threadNumber);
+					changed = threadSummary.getPostsCount() != PagesDatabase.getInstance()
+							.getExistingPostsCount(threadKey);
+				}
+				items.add(new Item(threadNumber, changed, lastModified));
+			}
+		}
+		return items;
+	}
+
+	@Override
+	protected void onComplete(List<Item> items) {
+		callback.onCheckThreadSummariesResult(chan.name, boardName, items);
+	}
+}
@@ -154,6 +154,10 @@ public abstract class ExecutorTask<Progress, Result> {
 		return cancelled.get();
 	}
 
+	public boolean isStarted() {
+		return started.get();
+	}
+
 	protected void onPrepare() {}
 	protected abstract Result run() throws InterruptedException;
 	protected void onProgress(Progress progress) {}
@@ -6,6 +6,7 @@ import android.os.OperationCanceledException;
 import chan.content.Chan;
 import chan.content.ChanConfiguration;
 import chan.text.ParseException;
+import com.mishiranu.dashchan.content.HidePerformer;
 import com.mishiranu.dashchan.content.database.CommonDatabase;
 import com.mishiranu.dashchan.content.database.PagesDatabase;
 import com.mishiranu.dashchan.content.database.PostsDatabase;
@@ -67,10 +68,12 @@ public class ExtractPostsTask extends ExecutorTask<Void, ExtractPostsTask.Result
 	private final String threadNumber;
 	private final boolean extractStateExtra;
 	private final PagesDatabase.Cleanup cleanup;
+	private final HidePerformer.Rules hideRules;
 	private final CancellationSignal signal = new CancellationSignal();
 
 	public ExtractPostsTask(Callback callback, PagesDatabase.Cache cache, Chan chan,
-			String boardName, String threadNumber, boolean extractStateExtra, PagesDatabase.Cleanup cleanup) {
+			String boardName, String threadNumber, boolean extractStateExtra, PagesDatabase.Cleanup cleanup,
+			HidePerformer.Rules hideRules) {
 		this.callback = callback;
 		this.cache = cache;
 		this.chan = chan;
@@ -78,6 +81,7 @@ public class ExtractPostsTask extends ExecutorTask<Void, ExtractPostsTask.Result
 		this.threadNumber = threadNumber;
 		this.extractStateExtra = extractStateExtra;
 		this.cleanup = cleanup;
+		this.hideRules = hideRules;
 	}
 
 	@Override
@@ -111,8 +115,17 @@ public class ExtractPostsTask extends ExecutorTask<Void, ExtractPostsTask.Result
 			removedPosts = diff.removed;
 			PostNumber originalPostNumber = diff.cache.originalPostNumber;
 			for (Post post : diff.changed) {
-				postItems.put(post.number, PostItem.createPost(post, chan,
-						boardName, threadNumber, originalPostNumber));
+				PostItem postItem = PostItem.createPost(post, chan, boardName, threadNumber, originalPostNumber);
+				if (!isCancelled()) {
+					// Prepare spanned texts and hidden state in background, so the list doesn't parse markup
+					// and check rules on the main thread
+					postItem.getComment(chan);
+					postItem.getFullName(chan);
+					if (hideRules != null) {
+						hideRules.check(chan, postItem);
+					}
+				}
+				postItems.put(post.number, postItem);
 			}
 		}
 		return new Result(diff.newPosts, diff.deletedPosts, diff.editedPosts, diff.replyPosts,
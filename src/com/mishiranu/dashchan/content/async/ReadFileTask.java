@@ -11,23 +11,54 @@ import chan.content.InvalidResponseException;
 import chan.http.HttpException;
 import chan.http.HttpHolder;
 import chan.http.HttpResponse;
+import chan.http.HttpValidator;
+import chan.text.JsonSerial;
+import chan.text.ParseException;
 import chan.util.DataFile;
+import chan.util.StringUtils;
 import com.mishiranu.dashchan.content.CacheManager;
+import com.mishiranu.dashchan.content.Preferences;
 import com.mishiranu.dashchan.content.model.ErrorItem;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.util.IOUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 	private static final int CONNECT_TIMEOUT = 15000;
 	private static final int READ_TIMEOUT = 15000;
 
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	private static final int MIN_SEGMENT_LENGTH = 4 * 1024 * 1024;
+	private static final int TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final Pattern PATTERN_BYTES = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+	public static final int MAX_HOST_CONNECTIONS = 3;
+	private static final HashMap<String, Integer> HOST_CONNECTIONS = new HashMap<>();
+
 	public interface Callback {
 		void onStartDownloading();
 		void onFinishDownloading(boolean success, Uri uri, DataFile file, ErrorItem errorItem);
@@ -53,11 +84,20 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 	private final Uri fromUri;
 	private final DataFile toFile;
 	private final File cachedMediaFile;
+	private final InputStream input;
 	private final boolean overwrite;
 	private final byte[] checkSha256;
 	private final ChanManager.Fingerprints checkFingerprints;
 
+	private static final Executor SEGMENTS_EXECUTOR = ConcurrentUtils.newThreadPool(0,
+			Preferences.MAX_DOWNLOAD_SEGMENTS, 10000, "ReadFileTask", "Segments");
+
 	private ErrorItem errorItem;
+	private DataFile resultFile;
+	private volatile long retryAfter;
+
+	private final ArrayList<HttpHolder> segmentHolders = new ArrayList<>();
+	private boolean segmentsDisallowed;
 
 	private boolean loadingStarted;
 
@@ -70,8 +110,9 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 
 	public static ReadFileTask createCachedMediaFile(FileCallback callback, Chan chan,
 			Uri fromUri, File cachedMediaFile) {
-		DataFile toFile = DataFile.obtain(DataFile.Target.CACHE, cachedMediaFile.getName());
-		return new ReadFileTask(callback, chan, fromUri, toFile, null, true, null, null);
+		DataFile toFile = DataFile.obtain(DataFile.Target.CACHE,
+				CacheManager.getInstance().getMediaFilePath(cachedMediaFile));
+		return new ReadFileTask(callback, chan, fromUri, toFile, null, null, true, null, null);
 	}
 
 	public static ReadFileTask createShared(Callback callback, Chan chan, Uri fromUri, DataFile toFile,
@@ -81,18 +122,23 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 				CacheManager.getInstance().cancelCachedMediaBusy(cachedMediaFile)) {
 			cachedMediaFile = null;
 		}
-		return new ReadFileTask(callback, chan, fromUri, toFile, cachedMediaFile,
+		return new ReadFileTask(callback, chan, fromUri, toFile, cachedMediaFile, null,
 				overwrite, checkSha256, checkFingerprints);
 	}
 
+	public static ReadFileTask createStream(Callback callback, Chan chan, InputStream input, DataFile toFile) {
+		return new ReadFileTask(callback, chan, null, toFile, null, input, true, null, null);
+	}
+
 	private ReadFileTask(Callback callback, Chan chan, Uri fromUri, DataFile toFile, File cachedMediaFile,
-			boolean overwrite, byte[] checkSha256, ChanManager.Fingerprints checkFingerprints) {
+			InputStream input, boolean overwrite, byte[] checkSha256, ChanManager.Fingerprints checkFingerprints) {
 		super(chan);
 		this.callback = callback;
 		this.chan = chan;
 		this.fromUri = fromUri;
 		this.toFile = toFile;
 		this.cachedMediaFile = cachedMediaFile;
+		this.input = input;
 		this.overwrite = overwrite;
 		this.checkSha256 = checkSha256;
 		this.checkFingerprints = checkFingerprints;
@@ -105,9 +151,14 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 
 	private static void copyStream(InputStream input, OutputStream output,
 			TimedProgressHandler progressHandler, MessageDigest digest) throws IOException {
+		copyStream(input, output, progressHandler, digest, 0);
+	}
+
+	private static void copyStream(InputStream input, OutputStream output,
+			TimedProgressHandler progressHandler, MessageDigest digest, long start) throws IOException {
 		byte[] data = new byte[8192];
 		int count;
-		long read = 0;
+		long read = start;
 		while ((count = input.read(data)) != -1) {
 			output.write(data, 0, count);
 			read += count;
@@ -118,13 +169,63 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 		}
 	}
 
+	private static void copyFile(File file, OutputStream output,
+			TimedProgressHandler progressHandler, MessageDigest digest) throws IOException {
+		if (digest == null && output instanceof FileOutputStream) {
+			// Let the kernel copy the data when it doesn't have to be hashed
+			try (FileInputStream input = new FileInputStream(file)) {
+				FileChannel inputChannel = input.getChannel();
+				FileChannel outputChannel = ((FileOutputStream) output).getChannel();
+				long length = inputChannel.size();
+				long position = 0;
+				while (position < length) {
+					long count = inputChannel.transferTo(position,
+							Math.min(TRANSFER_CHUNK_SIZE, length - position), outputChannel);
+					if (count <= 0) {
+						throw new IOException("Can't transfer file data");
+					}
+					position += count;
+					if (progressHandler != null) {
+						progressHandler.updateProgress(position);
+					}
+				}
+			}
+		} else {
+			try (FileInputStream input = new FileInputStream(file)) {
+				byte[] data = new byte[COPY_BUFFER_SIZE];
+				int count;
+				long read = 0;
+				while ((count = input.read(data)) != -1) {
+					output.write(data, 0, count);
+					read += count;
+					if (progressHandler != null) {
+						progressHandler.updateProgress(read);
+					}
+					if (digest != null) {
+						digest.update(data, 0, count);
+					}
+				}
+			}
+		}
+	}
+
 	@Override
 	protected Boolean run(HttpHolder holder) {
 		boolean success = false;
+		String contentHash = null;
+		PartialDownload partialDownload = null;
 		try {
 			loadingStarted = true;
+			// Cached media is hashed to share the same content downloaded from different URIs
+			boolean hashContent = toFile.getTarget() == DataFile.Target.CACHE;
+			if (hashContent) {
+				File file = toFile.getFileOrUri().first;
+				if (file != null) {
+					CacheManager.getInstance().handleDownloadingFile(file);
+				}
+			}
 			MessageDigest digest = null;
-			if (checkSha256 != null) {
+			if (checkSha256 != null || hashContent) {
 				try {
 					digest = MessageDigest.getInstance("SHA-256");
 				} catch (NoSuchAlgorithmException e) {
@@ -134,17 +235,26 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 			// noinspection StatementWithEmptyBody
 			if (!overwrite && toFile.exists()) {
 				// Do nothing
+			} else if (input != null) {
+				try (OutputStream output = toFile.openOutputStream()) {
+					progressHandler.setInputProgressMax(input.available());
+					copyStream(input, output, progressHandler, digest);
+				} catch (IOException e) {
+					ErrorItem.Type type = getErrorTypeFromExceptionAndHandle(e);
+					errorItem = new ErrorItem(type != null ? type : ErrorItem.Type.UNKNOWN);
+					return false;
+				}
 			} else if (cachedMediaFile != null) {
 				progressHandler.setInputProgressMax(cachedMediaFile.length());
-				try (FileInputStream input = new FileInputStream(cachedMediaFile);
-						OutputStream output = toFile.openOutputStream()) {
-					copyStream(input, output, progressHandler, digest);
+				try (OutputStream output = toFile.openOutputStream()) {
+					copyFile(cachedMediaFile, output, progressHandler, digest);
 				} catch (IOException e) {
 					ErrorItem.Type type = getErrorTypeFromExceptionAndHandle(e);
 					errorItem = new ErrorItem(type != null ? type : ErrorItem.Type.UNKNOWN);
 					return false;
 				}
 			} else if (ChanConfiguration.SCHEME_CHAN.equals(fromUri.getScheme())) {
+				hashContent = false;
 				try (OutputStream output = toFile.openOutputStream()) {
 					if (!chan.configuration.readResourceUri(fromUri, output)) {
 						throw HttpException.createNotFoundException();
@@ -155,32 +265,24 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 					return false;
 				}
 			} else {
-				ChanPerformer.ReadContentResult result = chan.performer.safe()
-						.onReadContent(new ChanPerformer.ReadContentData(fromUri,
-								CONNECT_TIMEOUT, READ_TIMEOUT, holder, -1, -1));
-				HttpResponse response = result != null ? result.response : null;
-				if (response == null) {
-					errorItem = new ErrorItem(ErrorItem.Type.DOWNLOAD);
-					return false;
-				}
-				progressHandler.setInputProgressMax(response.getLength());
-				try (InputStream input = response.open();
-						OutputStream output = toFile.openOutputStream()) {
-					copyStream(input, output, progressHandler, digest);
-				} catch (IOException e) {
-					ErrorItem.Type errorType = getErrorTypeFromExceptionAndHandle(e);
-					if (errorType != null) {
-						errorItem = new ErrorItem(errorType);
+				String host = getHostKey(fromUri);
+				acquireHostConnections(host, 1, 1);
+				try {
+					partialDownload = PartialDownload.acquire(fromUri);
+					boolean read = partialDownload != null ? readPartialDownload(holder, partialDownload, digest)
+							: readDirect(holder, digest);
+					if (!read) {
 						return false;
-					} else {
-						throw response.fail(e);
 					}
 				} finally {
-					response.cleanupAndDisconnect();
+					releaseHostConnections(host, 1);
 				}
 			}
-			if (digest != null) {
-				byte[] sha256 = digest.digest();
+			byte[] sha256 = digest != null ? digest.digest() : null;
+			if (hashContent && sha256 != null) {
+				contentHash = StringUtils.formatHex(sha256);
+			}
+			if (checkSha256 != null) {
 				if (!Arrays.equals(sha256, checkSha256)) {
 					Log.e("ReadFileTask", "SHA-256 validation failed: requested " +
 							Arrays.toString(checkSha256) + ", got " + Arrays.toString(sha256));
@@ -212,15 +314,28 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 			success = true;
 			return true;
 		} catch (ExtensionException | HttpException | InvalidResponseException e) {
+			if (e instanceof HttpException) {
+				handleRetryAfter(holder, (HttpException) e);
+			}
 			errorItem = e.getErrorItemAndHandle();
 			return false;
 		} finally {
+			if (input != null) {
+				IOUtils.close(input);
+			}
+			if (partialDownload != null) {
+				partialDownload.release();
+			}
 			if (!success) {
 				toFile.delete();
 			}
 			File file = toFile.getFileOrUri().first;
 			if (file != null) {
-				CacheManager.getInstance().handleDownloadedFile(file, success);
+				File handledFile = CacheManager.getInstance().handleDownloadedFile(file, success, contentHash);
+				if (success && !handledFile.equals(file)) {
+					resultFile = DataFile.obtain(DataFile.Target.CACHE,
+							CacheManager.getInstance().getMediaFilePath(handledFile));
+				}
 			}
 			if (chan.name != null) {
 				chan.configuration.commit();
@@ -228,6 +343,618 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 		}
 	}
 
+	private boolean readDirect(HttpHolder holder, MessageDigest digest)
+			throws ExtensionException, HttpException, InvalidResponseException {
+		ChanPerformer.ReadContentResult result = chan.performer.safe()
+				.onReadContent(new ChanPerformer.ReadContentData(fromUri,
+						CONNECT_TIMEOUT, READ_TIMEOUT, holder, -1, -1));
+		HttpResponse response = result != null ? result.response : null;
+		if (response == null) {
+			errorItem = new ErrorItem(ErrorItem.Type.DOWNLOAD);
+			return false;
+		}
+		progressHandler.setInputProgressMax(response.getLength());
+		try (InputStream input = response.open();
+				OutputStream output = toFile.openOutputStream()) {
+			copyStream(input, output, progressHandler, digest);
+		} catch (IOException e) {
+			ErrorItem.Type errorType = getErrorTypeFromExceptionAndHandle(e);
+			if (errorType != null) {
+				errorItem = new ErrorItem(errorType);
+				return false;
+			} else {
+				throw response.fail(e);
+			}
+		} finally {
+			response.cleanupAndDisconnect();
+		}
+		return true;
+	}
+
+	private static long[] parseContentRange(HttpResponse response) {
+		if (response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+			return null;
+		}
+		List<String> headers = response.getHeaderFields().get("Content-Range");
+		Matcher matcher = headers != null && headers.size() == 1 ? PATTERN_BYTES.matcher(headers.get(0)) : null;
+		if (matcher == null || !matcher.matches()) {
+			return null;
+		}
+		return new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)),
+				Long.parseLong(matcher.group(3))};
+	}
+
+	private static void updateDigest(File file, MessageDigest digest) throws IOException {
+		try (InputStream input = new FileInputStream(file)) {
+			byte[] data = new byte[COPY_BUFFER_SIZE];
+			int count;
+			while ((count = input.read(data)) != -1) {
+				digest.update(data, 0, count);
+			}
+		}
+	}
+
+	private boolean readPartialDownload(HttpHolder holder, PartialDownload partialDownload, MessageDigest digest)
+			throws ExtensionException, HttpException, InvalidResponseException {
+		if (partialDownload.segments != null) {
+			return readSegments(holder, null, partialDownload, digest);
+		}
+		long start = partialDownload.getResumePosition();
+		ChanPerformer.ReadContentResult result;
+		try {
+			result = chan.performer.safe().onReadContent(new ChanPerformer.ReadContentData(fromUri,
+					CONNECT_TIMEOUT, READ_TIMEOUT, holder, start > 0 ? start : -1, -1,
+					start > 0 ? partialDownload.validator : null));
+		} catch (HttpException e) {
+			if (start > 0 && e.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+				// Remote file was changed, the next attempt will start over
+				partialDownload.reset();
+			}
+			throw e;
+		}
+		HttpResponse response = result != null ? result.response : null;
+		if (response == null) {
+			errorItem = new ErrorItem(ErrorItem.Type.DOWNLOAD);
+			return false;
+		}
+		try {
+			boolean append = false;
+			long length = response.getLength();
+			if (start > 0 && response.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+				long[] range = parseContentRange(response);
+				if (range == null || range[0] != start || range[2] != partialDownload.length) {
+					Log.e("ReadFileTask", "Invalid partial response");
+					partialDownload.reset();
+					errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
+					return false;
+				}
+				append = true;
+				length = partialDownload.length;
+			} else {
+				// Server ignored the range or the file was changed
+				start = 0;
+				partialDownload.start(length, response.getValidator());
+				int segmentsCount = getSegmentsCount(response, partialDownload);
+				if (segmentsCount > 1) {
+					partialDownload.split(segmentsCount);
+					return readSegments(holder, response, partialDownload, digest);
+				}
+			}
+			progressHandler.setInputProgressMax(length);
+			try (InputStream input = response.open();
+					OutputStream output = new FileOutputStream(partialDownload.partialFile, append)) {
+				if (append && digest != null) {
+					updateDigest(partialDownload.partialFile, digest);
+				}
+				copyStream(input, output, progressHandler, digest, start);
+			} catch (IOException e) {
+				ErrorItem.Type errorType = getErrorTypeFromExceptionAndHandle(e);
+				if (errorType != null) {
+					errorItem = new ErrorItem(errorType);
+					return false;
+				} else {
+					throw response.fail(e);
+				}
+			}
+		} finally {
+			response.cleanupAndDisconnect();
+		}
+		return commitPartialDownload(partialDownload);
+	}
+
+	private boolean commitPartialDownload(PartialDownload partialDownload) {
+		try {
+			partialDownload.commit(toFile);
+		} catch (IOException e) {
+			ErrorItem.Type type = getErrorTypeFromExceptionAndHandle(e);
+			errorItem = new ErrorItem(type != null ? type : ErrorItem.Type.UNKNOWN);
+			return false;
+		}
+		return true;
+	}
+
+	private int getSegmentsCount(HttpResponse response, PartialDownload partialDownload) {
+		if (segmentsDisallowed || partialDownload.length <= 0 || partialDownload.validator == null) {
+			return 1;
+		}
+		List<String> acceptRanges = response.getHeaderFields().get("Accept-Ranges");
+		if (acceptRanges == null || !acceptRanges.contains("bytes")) {
+			return 1;
+		}
+		long count = partialDownload.length / MIN_SEGMENT_LENGTH;
+		count = Math.min(count, MAX_HOST_CONNECTIONS - getHostConnections(getHostKey(fromUri)) + 1);
+		return (int) Math.max(1, Math.min(Preferences.getDownloadSegments(), count));
+	}
+
+	private static String getHostKey(Uri uri) {
+		return StringUtils.emptyIfNull(uri.getHost()).toLowerCase(Locale.US);
+	}
+
+	public static int getHostConnections(String host) {
+		synchronized (HOST_CONNECTIONS) {
+			Integer count = HOST_CONNECTIONS.get(host.toLowerCase(Locale.US));
+			return count != null ? count : 0;
+		}
+	}
+
+	// Connections of all tasks share the same per-host budget, returns the number of acquired connections
+	private static int acquireHostConnections(String host, int min, int max) {
+		synchronized (HOST_CONNECTIONS) {
+			Integer count = HOST_CONNECTIONS.get(host);
+			int used = count != null ? count : 0;
+			int acquire = Math.max(min, Math.min(max, MAX_HOST_CONNECTIONS - used));
+			if (acquire > 0) {
+				HOST_CONNECTIONS.put(host, used + acquire);
+			}
+			return acquire;
+		}
+	}
+
+	private static void releaseHostConnections(String host, int count) {
+		if (count > 0) {
+			synchronized (HOST_CONNECTIONS) {
+				Integer used = HOST_CONNECTIONS.get(host);
+				int left = (used != null ? used : 0) - count;
+				if (left > 0) {
+					HOST_CONNECTIONS.put(host, left);
+				} else {
+					HOST_CONNECTIONS.remove(host);
+				}
+			}
+		}
+	}
+
+	private class SegmentsState {
+		private final ArrayList<PartialDownload.Segment> segments;
+		private int nextSegment;
+		private long progress;
+		private ErrorItem errorItem;
+		private boolean rangeIgnored;
+
+		public SegmentsState(long progress, ArrayList<PartialDownload.Segment> segments) {
+			this.progress = progress;
+			this.segments = segments;
+		}
+
+		public synchronized PartialDownload.Segment nextSegment() {
+			return !isFailed() && nextSegment < segments.size() ? segments.get(nextSegment++) : null;
+		}
+
+		public synchronized void addProgress(long count) {
+			progress += count;
+			progressHandler.updateProgress(progress);
+		}
+
+		public synchronized void fail(ErrorItem errorItem, boolean rangeIgnored) {
+			if (this.errorItem == null && !this.rangeIgnored) {
+				this.errorItem = errorItem;
+				this.rangeIgnored = rangeIgnored;
+			}
+		}
+
+		public synchronized boolean isFailed() {
+			return errorItem != null || rangeIgnored;
+		}
+	}
+
+	private boolean readSegments(HttpHolder holder, HttpResponse firstResponse,
+			PartialDownload partialDownload, MessageDigest digest)
+			throws ExtensionException, HttpException, InvalidResponseException {
+		ArrayList<PartialDownload.Segment> segments = new ArrayList<>();
+		long progress = 0;
+		for (PartialDownload.Segment segment : partialDownload.segments) {
+			progress += segment.position - segment.start;
+			if (segment.position < segment.end) {
+				segments.add(segment);
+			}
+		}
+		progressHandler.setInputProgressMax(partialDownload.length);
+		SegmentsState state = new SegmentsState(progress, segments);
+		if (!segments.isEmpty()) {
+			PartialDownload.Segment firstSegment = state.nextSegment();
+			// The current thread already holds one connection
+			String host = getHostKey(fromUri);
+			int workers = acquireHostConnections(host, 0, Math.min(segments.size(),
+					Preferences.getDownloadSegments()) - 1);
+			CountDownLatch latch = new CountDownLatch(workers);
+			for (int i = 0; i < workers; i++) {
+				HttpHolder segmentHolder = new HttpHolder(chan);
+				synchronized (segmentHolders) {
+					segmentHolders.add(segmentHolder);
+					if (isCancelled()) {
+						segmentHolder.interrupt();
+					}
+				}
+				SEGMENTS_EXECUTOR.execute(() -> {
+					try (HttpHolder.Use ignored = segmentHolder.use()) {
+						readNextSegments(segmentHolder, partialDownload, state);
+					} finally {
+						releaseHostConnections(host, 1);
+						latch.countDown();
+					}
+				});
+			}
+			// First segment is read on the current thread, using already opened response when possible
+			readSegment(holder, firstSegment.position == 0 ? firstResponse : null,
+					partialDownload, firstSegment, state);
+			readNextSegments(holder, partialDownload, state);
+			boolean interrupted = false;
+			while (true) {
+				try {
+					latch.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					state.fail(new ErrorItem(ErrorItem.Type.DOWNLOAD), false);
+					interruptSegmentHolders();
+				}
+			}
+			synchronized (segmentHolders) {
+				segmentHolders.clear();
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (state.rangeIgnored) {
+			Log.e("ReadFileTask", "Segmented download is not supported");
+			segmentsDisallowed = true;
+			partialDownload.reset();
+			return readPartialDownload(holder, partialDownload, digest);
+		}
+		if (state.errorItem != null) {
+			errorItem = state.errorItem;
+			return false;
+		}
+		boolean complete = true;
+		for (PartialDownload.Segment segment : partialDownload.segments) {
+			if (segment.position != segment.end) {
+				complete = false;
+				break;
+			}
+		}
+		if (!complete) {
+			// Content hash is verified after the download when it's known
+			Log.e("ReadFileTask", "Incomplete segmented file");
+			partialDownload.reset();
+			errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
+			return false;
+		}
+		if (digest != null) {
+			try {
+				updateDigest(partialDownload.partialFile, digest);
+			} catch (IOException e) {
+				ErrorItem.Type type = getErrorTypeFromExceptionAndHandle(e);
+				errorItem = new ErrorItem(type != null ? type : ErrorItem.Type.UNKNOWN);
+				return false;
+			}
+		}
+		return commitPartialDownload(partialDownload);
+	}
+
+	private void readNextSegments(HttpHolder holder, PartialDownload partialDownload, SegmentsState state) {
+		PartialDownload.Segment segment;
+		while ((segment = state.nextSegment()) != null) {
+			readSegment(holder, null, partialDownload, segment, state);
+		}
+	}
+
+	private void readSegment(HttpHolder holder, HttpResponse response, PartialDownload partialDownload,
+			PartialDownload.Segment segment, SegmentsState state) {
+		try {
+			if (response == null) {
+				ChanPerformer.ReadContentResult result = chan.performer.safe()
+						.onReadContent(new ChanPerformer.ReadContentData(fromUri, CONNECT_TIMEOUT, READ_TIMEOUT,
+								holder, segment.position, segment.end - 1, partialDownload.validator));
+				response = result != null ? result.response : null;
+				if (response == null) {
+					state.fail(new ErrorItem(ErrorItem.Type.DOWNLOAD), false);
+					return;
+				}
+				long[] range = parseContentRange(response);
+				if (range == null || range[0] != segment.position || range[2] != partialDownload.length) {
+					response.cleanupAndDisconnect();
+					state.fail(null, true);
+					return;
+				}
+			}
+			try (InputStream input = response.open();
+					RandomAccessFile output = new RandomAccessFile(partialDownload.partialFile, "rw")) {
+				output.seek(segment.position);
+				byte[] data = new byte[8192];
+				while (segment.position < segment.end && !state.isFailed()) {
+					int count = input.read(data, 0, (int) Math.min(data.length, segment.end - segment.position));
+					if (count < 0) {
+						break;
+					}
+					output.write(data, 0, count);
+					segment.position += count;
+					state.addProgress(count);
+				}
+				if (segment.position < segment.end && !state.isFailed()) {
+					state.fail(new ErrorItem(ErrorItem.Type.DOWNLOAD), false);
+				}
+			} catch (IOException e) {
+				ErrorItem.Type errorType = getErrorTypeFromExceptionAndHandle(e);
+				if (errorType != null) {
+					state.fail(new ErrorItem(errorType), false);
+				} else {
+					throw response.fail(e);
+				}
+			} finally {
+				response.cleanupAndDisconnect();
+			}
+		} catch (ExtensionException | HttpException | InvalidResponseException e) {
+			if (e instanceof HttpException) {
+				handleRetryAfter(holder, (HttpException) e);
+			}
+			state.fail(e.getErrorItemAndHandle(), false);
+		}
+	}
+
+	private void handleRetryAfter(HttpHolder holder, HttpException exception) {
+		int responseCode = exception.getResponseCode();
+		if (responseCode != HTTP_TOO_MANY_REQUESTS && responseCode != HttpURLConnection.HTTP_UNAVAILABLE) {
+			return;
+		}
+		List<String> headers = holder.getHeaderFields().get("Retry-After");
+		String value = headers != null && headers.size() == 1 ? headers.get(0).trim() : null;
+		if (StringUtils.isEmpty(value)) {
+			return;
+		}
+		// Value is either a number of seconds or an HTTP date
+		long delay = -1;
+		try {
+			delay = Long.parseLong(value) * 1000;
+		} catch (NumberFormatException e) {
+			// Ignore
+		}
+		if (delay < 0) {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			try {
+				delay = format.parse(value).getTime() - System.currentTimeMillis();
+			} catch (java.text.ParseException e) {
+				return;
+			}
+		}
+		retryAfter = Math.max(retryAfter, delay);
+	}
+
+	private void interruptSegmentHolders() {
+		synchronized (segmentHolders) {
+			for (HttpHolder segmentHolder : segmentHolders) {
+				segmentHolder.interrupt();
+			}
+		}
+	}
+
+	private static class PartialDownload {
+		private static final HashSet<File> ACTIVE_FILES = new HashSet<>();
+
+		public static class Segment {
+			public final long start;
+			public final long end;
+			public long position;
+
+			public Segment(long start, long end, long position) {
+				this.start = start;
+				this.end = end;
+				this.position = position;
+			}
+		}
+
+		public final File partialFile;
+		public final File stateFile;
+
+		public long length = -1;
+		public HttpValidator validator;
+		public ArrayList<Segment> segments;
+
+		private PartialDownload(File partialFile, File stateFile) {
+			this.partialFile = partialFile;
+			this.stateFile = stateFile;
+		}
+
+		public static PartialDownload acquire(Uri uri) {
+			CacheManager cacheManager = CacheManager.getInstance();
+			File partialFile = cacheManager.getPartialDownloadFile(uri);
+			File stateFile = cacheManager.getPartialDownloadStateFile(uri);
+			if (partialFile == null || stateFile == null) {
+				return null;
+			}
+			synchronized (ACTIVE_FILES) {
+				// The same file is downloaded by another task
+				if (!ACTIVE_FILES.add(partialFile)) {
+					return null;
+				}
+			}
+			PartialDownload partialDownload = new PartialDownload(partialFile, stateFile);
+			// Files are removed from cache while in use, so cleanup won't delete them
+			boolean deleted = cacheManager.cancelCachedMediaBusy(partialFile);
+			deleted |= cacheManager.cancelCachedMediaBusy(stateFile);
+			cacheManager.handleDownloadedFile(partialFile, false);
+			cacheManager.handleDownloadedFile(stateFile, false);
+			cacheManager.handleDownloadingFile(partialFile);
+			cacheManager.handleDownloadingFile(stateFile);
+			if (deleted || !partialDownload.readState()) {
+				partialDownload.reset();
+			}
+			return partialDownload;
+		}
+
+		private boolean readState() {
+			if (!stateFile.exists() || !partialFile.exists()) {
+				return false;
+			}
+			try (JsonSerial.Reader reader = JsonSerial.reader(new FileInputStream(stateFile))) {
+				reader.startObject();
+				while (!reader.endStruct()) {
+					switch (reader.nextName()) {
+						case "length": {
+							length = reader.nextLong();
+							break;
+						}
+						case "validator": {
+							validator = HttpValidator.deserialize(reader);
+							break;
+						}
+						case "segments": {
+							segments = new ArrayList<>();
+							reader.startArray();
+							while (!reader.endStruct()) {
+								reader.startArray();
+								long start = reader.nextLong();
+								long end = reader.nextLong();
+								long position = reader.nextLong();
+								if (!reader.endStruct()) {
+									return false;
+								}
+								segments.add(new Segment(start, end, position));
+							}
+							break;
+						}
+						default: {
+							reader.skip();
+							break;
+						}
+					}
+				}
+				return length > 0 && validator != null;
+			} catch (IOException | ParseException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		private void writeState() {
+			try (JsonSerial.Writer writer = JsonSerial.writer(new FileOutputStream(stateFile))) {
+				writer.startObject();
+				writer.name("length");
+				writer.value(length);
+				writer.name("validator");
+				validator.serialize(writer);
+				if (segments != null) {
+					writer.name("segments");
+					writer.startArray();
+					for (Segment segment : segments) {
+						writer.startArray();
+						writer.value(segment.start);
+						writer.value(segment.end);
+						writer.value(segment.position);
+						writer.endArray();
+					}
+					writer.endArray();
+				}
+				writer.endObject();
+			} catch (IOException e) {
+				e.printStackTrace();
+				reset();
+			}
+		}
+
+		public long getResumePosition() {
+			long position = length > 0 && validator != null ? partialFile.length() : 0;
+			return position < length ? position : 0;
+		}
+
+		private long getDownloadedLength() {
+			if (segments != null) {
+				long length = 0;
+				for (Segment segment : segments) {
+					length += segment.position - segment.start;
+				}
+				return length;
+			} else {
+				return partialFile.length();
+			}
+		}
+
+		public void start(long length, HttpValidator validator) {
+			reset();
+			if (length > 0 && validator != null && validator.isRangeValidator()) {
+				this.length = length;
+				this.validator = validator;
+				writeState();
+			}
+		}
+
+		public void split(int count) {
+			segments = new ArrayList<>(count);
+			long segmentLength = length / count;
+			for (int i = 0; i < count; i++) {
+				long start = i * segmentLength;
+				long end = i == count - 1 ? length : start + segmentLength;
+				segments.add(new Segment(start, end, start));
+			}
+			try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+				file.setLength(length);
+			} catch (IOException e) {
+				// Not necessary, the file grows when segments are written
+			}
+			writeState();
+		}
+
+		public void reset() {
+			length = -1;
+			validator = null;
+			segments = null;
+			partialFile.delete();
+			stateFile.delete();
+		}
+
+		public void commit(DataFile toFile) throws IOException {
+			File file = toFile.getFileOrUri().first;
+			if (file != null) {
+				file.delete();
+				if (partialFile.renameTo(file)) {
+					reset();
+					return;
+				}
+			}
+			try (OutputStream output = toFile.openOutputStream()) {
+				copyFile(partialFile, output, null, null);
+			}
+			reset();
+		}
+
+		public void release() {
+			// Unfinished download is kept in cache until it's resumed or removed by cleanup
+			boolean keep = length > 0 && validator != null && stateFile.exists() && getDownloadedLength() > 0;
+			if (keep && segments != null) {
+				writeState();
+				keep = stateFile.exists();
+			}
+			if (!keep) {
+				reset();
+			}
+			CacheManager.getInstance().handleDownloadedFile(partialFile, keep);
+			CacheManager.getInstance().handleDownloadedFile(stateFile, keep);
+			synchronized (ACTIVE_FILES) {
+				ACTIVE_FILES.remove(partialFile);
+			}
+		}
+	}
+
 	public static ErrorItem.Type getErrorTypeFromExceptionAndHandle(IOException exception) {
 		if (exception instanceof FileNotFoundException) {
 			exception.printStackTrace();
@@ -249,11 +976,15 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 
 	@Override
 	protected void onComplete(Boolean success) {
-		callback.onFinishDownloading(success, fromUri, toFile, errorItem);
+		callback.onFinishDownloading(success, fromUri, resultFile != null ? resultFile : toFile, errorItem);
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
 	}
 
 	public boolean isDownloadingFromCache() {
-		return cachedMediaFile != null;
+		return cachedMediaFile != null || input != null;
 	}
 
 	public String getFileName() {
@@ -263,6 +994,10 @@ public class ReadFileTask extends HttpHolderTask<long[], Boolean> {
 	@Override
 	public void cancel() {
 		super.cancel();
+		interruptSegmentHolders();
+		if (input != null) {
+			IOUtils.close(input);
+		}
 
 		if (loadingStarted) {
 			toFile.delete();
@@ -33,11 +33,15 @@ import java.util.Set;
 import java.util.TreeMap;
 
 public class ReadPostsTask extends HttpHolderTask<Void, ReadPostsTask.Result> {
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 15000;
+
 	private final Callback callback;
 	private final Chan chan;
 	private final String boardName;
 	private final String threadNumber;
 	private final boolean loadFullThread;
+	private final boolean checkPostsCount;
 	private final HashSet<PendingUserPost> pendingUserPosts;
 
 	public interface Callback {
@@ -96,13 +100,14 @@ public class ReadPostsTask extends HttpHolderTask<Void, ReadPostsTask.Result> {
 	}
 
 	public ReadPostsTask(Callback callback, Chan chan, String boardName, String threadNumber,
-			boolean loadFullThread, Collection<PendingUserPost> pendingUserPosts) {
+			boolean loadFullThread, boolean checkPostsCount, Collection<PendingUserPost> pendingUserPosts) {
 		super(chan);
 		this.callback = callback;
 		this.chan = chan;
 		this.boardName = boardName;
 		this.threadNumber = threadNumber;
 		this.loadFullThread = loadFullThread;
+		this.checkPostsCount = checkPostsCount;
 		this.pendingUserPosts = pendingUserPosts != null ? new HashSet<>(pendingUserPosts) : null;
 	}
 
@@ -127,6 +132,13 @@ public class ReadPostsTask extends HttpHolderTask<Void, ReadPostsTask.Result> {
 		boolean partial = !loadFullThread && allowPartialThreadLoading && Preferences.isPartialThreadLoading(chan);
 		HttpValidator useValidator = !loadFullThread && meta != null ? meta.validator : null;
 		try {
+			if (checkPostsCount && !loadFullThread && meta != null && !meta.deleted &&
+					chan.configuration.getOption(ChanConfiguration.OPTION_READ_POSTS_COUNT) &&
+					isPostsCountUnchanged(holder, threadKey, useValidator)) {
+				updateMeta = new UpdateMeta(false, false);
+				return new Result.Success(PagesDatabase.getInstance().getCacheState(threadKey),
+						null, Collections.emptyList(), null);
+			}
 			ChanPerformer.ReadPostsResult result;
 			try {
 				String lastPostNumber = lastExistingPostNumber != null ? lastExistingPostNumber.toString() : null;
@@ -276,6 +288,23 @@ public class ReadPostsTask extends HttpHolderTask<Void, ReadPostsTask.Result> {
 		}
 	}
 
+	private boolean isPostsCountUnchanged(HttpHolder holder, PagesDatabase.ThreadKey threadKey,
+			HttpValidator validator) {
+		ChanPerformer.ReadPostsCountResult result;
+		try {
+			result = chan.performer.safe().onReadPostsCount(new ChanPerformer.ReadPostsCountData(boardName,
+					threadNumber, CONNECT_TIMEOUT, READ_TIMEOUT, holder, validator));
+		} catch (HttpException e) {
+			// Check is optional, the thread is read as usual when it fails
+			return e.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+		} catch (ExtensionException | InvalidResponseException e) {
+			e.getErrorItemAndHandle();
+			return false;
+		}
+		return result != null && result.postsCount > 0 &&
+				result.postsCount == PagesDatabase.getInstance().getExistingPostsCount(threadKey);
+	}
+
 	@Override
 	protected void onCancel(Result result) {
 		if (result instanceof Result.Success) {
@@ -10,6 +10,7 @@ import android.util.Pair;
 import androidx.core.content.pm.PackageInfoCompat;
 import chan.content.Chan;
 import chan.content.ChanManager;
+import chan.http.HostHealth;
 import chan.http.HttpException;
 import chan.http.HttpHolder;
 import chan.http.HttpRequest;
@@ -37,6 +38,7 @@ import org.json.JSONObject;
 public class ReadUpdateTask extends HttpHolderTask<Void, Pair<ErrorItem, ReadUpdateTask.UpdateDataMap>> {
 	private final Context context;
 	private final Callback callback;
+	private final boolean automatic;
 
 	public static class UpdateDataMap implements Parcelable {
 		private final Map<String, ApplicationItem> update;
@@ -253,10 +255,11 @@ public class ReadUpdateTask extends HttpHolderTask<Void, Pair<ErrorItem, ReadUpd
 		void onReadUpdateComplete(UpdateDataMap updateDataMap, ErrorItem errorItem);
 	}
 
-	public ReadUpdateTask(Context context, Callback callback) {
+	public ReadUpdateTask(Context context, Callback callback, boolean automatic) {
 		super(Chan.getFallback());
 		this.context = context.getApplicationContext();
 		this.callback = callback;
+		this.automatic = automatic;
 	}
 
 	public static Uri normalizeRelativeUri(Uri base, String uriOrPath) {
@@ -539,7 +542,8 @@ public class ReadUpdateTask extends HttpHolderTask<Void, Pair<ErrorItem, ReadUpd
 		}
 	}
 
-	private static Iterable<Response> readData(HttpHolder holder, Iterable<ChanManager.ExtensionItem> extensionItems) {
+	private static Iterable<Response> readData(HttpHolder holder, Iterable<ChanManager.ExtensionItem> extensionItems,
+			boolean automatic) {
 		Chan chan = Chan.getFallback();
 		LinkedHashMap<TargetUri, HashSet<String>> targets = new LinkedHashMap<>();
 		HashMap<TargetUri, String> requestedScheme = new HashMap<>();
@@ -572,6 +576,10 @@ public class ReadUpdateTask extends HttpHolderTask<Void, Pair<ErrorItem, ReadUpd
 
 		LinkedHashMap<TargetUri, Response> responses = new LinkedHashMap<>();
 		for (Map.Entry<TargetUri, HashSet<String>> entry : targets.entrySet()) {
+			if (automatic && HostHealth.getInstance().acquireHost(entry.getKey().uri.getHost()) > 0) {
+				// Skip failing hosts until backoff time is passed
+				continue;
+			}
 			try {
 				TargetUri targetUri = entry.getKey();
 				String targetScheme = requestedScheme.get(targetUri);
@@ -694,7 +702,7 @@ public class ReadUpdateTask extends HttpHolderTask<Void, Pair<ErrorItem, ReadUpd
 			return null;
 		}
 
-		Iterable<Response> responses = readData(holder, extensionItems);
+		Iterable<Response> responses = readData(holder, extensionItems, automatic);
 		if (!responses.iterator().hasNext()) {
 			return new Pair<>(new ErrorItem(ErrorItem.Type.EMPTY_RESPONSE), null);
 		}
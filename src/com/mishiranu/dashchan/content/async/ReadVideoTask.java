@@ -9,20 +9,33 @@ import chan.content.InvalidResponseException;
 import chan.http.HttpException;
 import chan.http.HttpHolder;
 import chan.http.HttpResponse;
+import chan.http.HttpValidator;
+import chan.text.JsonSerial;
+import chan.text.ParseException;
 import com.mishiranu.dashchan.content.CacheManager;
 import com.mishiranu.dashchan.content.model.ErrorItem;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ReadVideoTask extends HttpHolderTask<long[], Boolean> {
 	private static final int CONNECT_TIMEOUT = 15000;
 	private static final int READ_TIMEOUT = 15000;
+	private static final int REQUEST_WAIT_INTERVAL = 1000;
+
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
 	private static final Pattern PATTERN_BYTES = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
 
@@ -31,10 +44,10 @@ public class ReadVideoTask extends HttpHolderTask<long[], Boolean> {
 	private final Uri uri;
 	private final long start;
 	private final File file;
-	private final File partialFile;
 
 	private ErrorItem errorItem;
 	private boolean disallowRangeRequests;
+	private boolean initialized;
 
 	public interface Callback {
 		void onReadVideoInit(File partialFile);
@@ -58,38 +71,114 @@ public class ReadVideoTask extends HttpHolderTask<long[], Boolean> {
 		this.uri = uri;
 		this.start = start;
 		file = CacheManager.getInstance().getMediaFile(uri, false);
-		partialFile = CacheManager.getInstance().getPartialMediaFile(uri);
 	}
 
 	@Override
 	protected Boolean run(HttpHolder holder) {
-		if (file == null || partialFile == null) {
+		SparseFile sparseFile = file != null ? SparseFile.acquire(uri) : null;
+		if (sparseFile == null) {
 			errorItem = new ErrorItem(ErrorItem.Type.NO_ACCESS_TO_MEMORY);
 			return false;
 		}
 		boolean success = false;
+		try (RandomAccessFile output = new RandomAccessFile(sparseFile.partialFile, "rw")) {
+			notifyCachedRange(sparseFile);
+			while (true) {
+				long requestStart;
+				long requestEnd = -1;
+				HttpValidator validator = null;
+				SparseFile.Request request = null;
+				synchronized (sparseFile) {
+					if (sparseFile.isComplete()) {
+						if (start <= 0) {
+							CacheManager.getInstance().handleDownloadingFile(file);
+							if (!sparseFile.commit(file, output)) {
+								errorItem = new ErrorItem(ErrorItem.Type.NO_ACCESS_TO_MEMORY);
+								return false;
+							}
+						}
+						break;
+					}
+					// Only missing parts are requested, cached ranges are skipped
+					requestStart = sparseFile.getRangeEnd(Math.max(start, 0));
+					if (sparseFile.length > 0 && requestStart >= sparseFile.length) {
+						break;
+					}
+					if (sparseFile.isRequested(requestStart)) {
+						// Another task is downloading from this position, so the same data is not requested twice
+						sparseFile.wait(REQUEST_WAIT_INTERVAL);
+					} else {
+						requestEnd = sparseFile.getNextRequestEnd(requestStart);
+						validator = sparseFile.validator;
+						request = sparseFile.startRequest(requestStart);
+					}
+				}
+				if (request == null) {
+					notifyRange(sparseFile);
+					continue;
+				}
+				try {
+					if (!readRange(holder, sparseFile, request, output, requestStart, requestEnd, validator)) {
+						return false;
+					}
+				} finally {
+					sparseFile.finishRequest(request);
+				}
+			}
+			success = true;
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (IOException e) {
+			ErrorItem.Type errorType = ReadFileTask.getErrorTypeFromExceptionAndHandle(e);
+			errorItem = new ErrorItem(errorType != null ? errorType : ErrorItem.Type.UNKNOWN);
+			return false;
+		} catch (ExtensionException | HttpException | InvalidResponseException e) {
+			errorItem = e.getErrorItemAndHandle();
+			return false;
+		} finally {
+			sparseFile.release();
+			if (start <= 0) {
+				CacheManager.getInstance().handleDownloadedFile(file, success);
+				if (chan.name != null) {
+					chan.configuration.commit();
+				}
+			}
+		}
+	}
+
+	private boolean readRange(HttpHolder holder, SparseFile sparseFile, SparseFile.Request request,
+			RandomAccessFile output, long requestStart, long requestEnd, HttpValidator validator)
+			throws ExtensionException, HttpException, InvalidResponseException {
+		boolean partialRequest = requestStart > 0 || requestEnd >= 0;
+		ChanPerformer.ReadContentResult result;
 		try {
-			TimedProgressHandler progressHandler = start > 0 ? null : this.progressHandler;
-			ChanPerformer.ReadContentResult result = chan.performer.safe()
-					.onReadContent(new ChanPerformer.ReadContentData(uri,
-							CONNECT_TIMEOUT, READ_TIMEOUT, holder, start > 0 ? start : -1, -1));
-			HttpResponse response = result != null ? result.response : null;
-			if (response == null) {
-				errorItem = new ErrorItem(ErrorItem.Type.DOWNLOAD);
-				return false;
+			result = chan.performer.safe().onReadContent(new ChanPerformer.ReadContentData(uri,
+					CONNECT_TIMEOUT, READ_TIMEOUT, holder, partialRequest ? requestStart : -1,
+					requestEnd >= 0 ? requestEnd - 1 : -1, partialRequest ? validator : null));
+		} catch (HttpException e) {
+			if (partialRequest && e.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+				// Remote file was changed, cached ranges are no longer valid
+				sparseFile.start(-1, null, true);
 			}
-			if (start > 0) {
+			throw e;
+		}
+		HttpResponse response = result != null ? result.response : null;
+		if (response == null) {
+			errorItem = new ErrorItem(ErrorItem.Type.DOWNLOAD);
+			return false;
+		}
+		try {
+			long position;
+			long end;
+			int generation;
+			if (response.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
 				List<String> headers = response.getHeaderFields().get("Content-Range");
-				if (headers == null || headers.size() != 1) {
-					Log.e("ReadVideoTask", "Not a partial response");
-					errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
-					disallowRangeRequests = true;
-					return false;
-				}
-				String contentRange = headers.get(0);
-				Matcher matcher = PATTERN_BYTES.matcher(contentRange);
-				if (!matcher.matches()) {
-					Log.e("ReadVideoTask", "Invalid header: " + contentRange);
+				Matcher matcher = headers != null && headers.size() == 1
+						? PATTERN_BYTES.matcher(headers.get(0)) : null;
+				if (matcher == null || !matcher.matches()) {
+					Log.e("ReadVideoTask", "Invalid header: " + headers);
 					errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
 					disallowRangeRequests = true;
 					return false;
@@ -97,41 +186,54 @@ public class ReadVideoTask extends HttpHolderTask<long[], Boolean> {
 				long responseStart = Long.parseLong(matcher.group(1));
 				long responseEnd = Long.parseLong(matcher.group(2)) + 1;
 				long responseTotal = Long.parseLong(matcher.group(3));
-				if (responseEnd <= responseStart || responseTotal != responseEnd) {
-					Log.e("ReadVideoTask", "Invalid header data range");
-					errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
-					return false;
-				}
-				if (Math.max(1, responseStart - 100000) > start) {
-					Log.e("ReadVideoTask", "Invalid data range start");
+				if (responseEnd <= responseStart || responseTotal < responseEnd ||
+						responseStart > requestStart || responseEnd <= requestStart) {
+					Log.e("ReadVideoTask", "Invalid data range");
 					errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
 					return false;
 				}
+				generation = sparseFile.start(responseTotal, response.getValidator(), false);
+				position = responseStart;
+				end = responseEnd;
+			} else if (start > 0) {
+				Log.e("ReadVideoTask", "Not a partial response");
+				errorItem = new ErrorItem(ErrorItem.Type.INVALID_RESPONSE);
+				disallowRangeRequests = true;
+				return false;
+			} else {
+				// Server ignored the range or the file was changed, so the whole file is read again
+				generation = sparseFile.start(response.getLength(), response.getValidator(), partialRequest);
+				position = 0;
+				end = -1;
 			}
 			if (start <= 0) {
-				progressHandler.setInputProgressMax(response.getLength());
+				progressHandler.setInputProgressMax(sparseFile.length);
 			}
-			try (InputStream input = response.open();
-					RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
-				if (start <= 0) {
+			long responsePosition = position;
+			try (InputStream input = response.open()) {
+				if (start <= 0 && !initialized) {
+					initialized = true;
 					ConcurrentUtils.mainGet(() -> {
-						callback.onReadVideoInit(partialFile);
+						callback.onReadVideoInit(sparseFile.partialFile);
 						return null;
 					});
-				} else {
-					file.seek(start);
 				}
 				int count;
-				long read = 0;
 				byte[] buffer = new byte[8192];
 				while ((count = input.read(buffer)) > 0) {
-					file.write(buffer, 0, count);
-					read += count;
-					if (start <= 0) {
-						progressHandler.updateProgress(read);
-					} else {
-						notifyProgress(new long[] {read});
+					if (end >= 0) {
+						count = (int) Math.min(count, end - position);
 					}
+					boolean proceed = sparseFile.write(output, request, generation, position, buffer, count);
+					position += count;
+					notifyRange(sparseFile);
+					if (!proceed || end >= 0 && position >= end) {
+						// Reached the range downloaded by another task, which continues from its end
+						break;
+					}
+				}
+				if (count <= 0 && end < 0) {
+					sparseFile.finish(generation, position);
 				}
 			} catch (IOException e) {
 				ErrorItem.Type errorType = ReadFileTask.getErrorTypeFromExceptionAndHandle(e);
@@ -141,35 +243,50 @@ public class ReadVideoTask extends HttpHolderTask<long[], Boolean> {
 				} else {
 					throw response.fail(e);
 				}
-			} finally {
-				response.cleanupAndDisconnect();
 			}
-			success = true;
+			if (position == responsePosition) {
+				errorItem = new ErrorItem(ErrorItem.Type.DOWNLOAD);
+				return false;
+			}
 			return true;
-		} catch (ExtensionException | HttpException | InvalidResponseException e) {
-			errorItem = e.getErrorItemAndHandle();
-			return false;
 		} finally {
-			if (start <= 0) {
-				file.delete();
-				if (success) {
-					partialFile.renameTo(file);
-				} else {
-					partialFile.delete();
-				}
-				CacheManager.getInstance().handleDownloadedFile(partialFile, false);
-				CacheManager.getInstance().handleDownloadedFile(file, success);
-				if (chan.name != null) {
-					chan.configuration.commit();
-				}
+			response.cleanupAndDisconnect();
+		}
+	}
+
+	private void notifyCachedRange(SparseFile sparseFile) {
+		boolean init;
+		synchronized (sparseFile) {
+			init = start <= 0 && sparseFile.length > 0 && sparseFile.getRangeEnd(0) > 0;
+			if (init) {
+				progressHandler.setInputProgressMax(sparseFile.length);
 			}
 		}
+		if (init) {
+			initialized = true;
+			ConcurrentUtils.mainGet(() -> {
+				callback.onReadVideoInit(sparseFile.partialFile);
+				return null;
+			});
+		}
+		notifyRange(sparseFile);
+	}
+
+	private void notifyRange(SparseFile sparseFile) {
+		if (start > 0) {
+			long[] range = sparseFile.getRange(start);
+			if (range != null) {
+				notifyProgress(range);
+			}
+		} else if (initialized) {
+			progressHandler.updateProgress(sparseFile.getRangeEnd(0));
+		}
 	}
 
 	@Override
 	protected void onProgress(long[] values) {
 		if (start > 0) {
-			callback.onReadVideoRangeUpdate(start, start + values[0]);
+			callback.onReadVideoRangeUpdate(values[0], values[1]);
 		} else {
 			callback.onReadVideoProgressUpdate(values[0], values[1]);
 		}
@@ -187,4 +304,284 @@ public class ReadVideoTask extends HttpHolderTask<long[], Boolean> {
 	public boolean isError() {
 		return errorItem != null;
 	}
+
+	private static class SparseFile {
+		private static final HashMap<File, SparseFile> ACTIVE_FILES = new HashMap<>();
+		private static final long STATE_WRITE_INTERVAL = 4 * 1024 * 1024;
+
+		public final File partialFile;
+		public final File stateFile;
+
+		// Downloaded ranges, start to end, never adjacent or overlapping
+		private final TreeMap<Long, Long> ranges = new TreeMap<>();
+		private final HashSet<Request> requests = new HashSet<>();
+		private int references;
+		private int generation;
+		private long unsavedLength;
+		private boolean completed;
+
+		public long length = -1;
+		public HttpValidator validator;
+
+		public static class Request {
+			private long position;
+
+			private Request(long position) {
+				this.position = position;
+			}
+		}
+
+		private SparseFile(File partialFile, File stateFile) {
+			this.partialFile = partialFile;
+			this.stateFile = stateFile;
+		}
+
+		public static SparseFile acquire(Uri uri) {
+			CacheManager cacheManager = CacheManager.getInstance();
+			File partialFile = cacheManager.getPartialMediaFile(uri);
+			File stateFile = cacheManager.getPartialMediaStateFile(uri);
+			if (partialFile == null || stateFile == null) {
+				return null;
+			}
+			synchronized (ACTIVE_FILES) {
+				// Download and range tasks share the same file
+				SparseFile sparseFile = ACTIVE_FILES.get(partialFile);
+				if (sparseFile == null) {
+					sparseFile = new SparseFile(partialFile, stateFile);
+					// Files are removed from cache while in use, so cleanup won't delete them
+					boolean deleted = cacheManager.cancelCachedMediaBusy(partialFile);
+					deleted |= cacheManager.cancelCachedMediaBusy(stateFile);
+					cacheManager.handleDownloadedFile(partialFile, false);
+					cacheManager.handleDownloadedFile(stateFile, false);
+					cacheManager.handleDownloadingFile(partialFile);
+					cacheManager.handleDownloadingFile(stateFile);
+					if (deleted || !sparseFile.readState()) {
+						sparseFile.reset();
+					}
+					ACTIVE_FILES.put(partialFile, sparseFile);
+				}
+				sparseFile.references++;
+				return sparseFile;
+			}
+		}
+
+		public void release() {
+			synchronized (ACTIVE_FILES) {
+				if (--references > 0) {
+					return;
+				}
+				ACTIVE_FILES.remove(partialFile);
+			}
+			boolean keep;
+			synchronized (this) {
+				if (completed) {
+					return;
+				}
+				// Watched ranges are kept in cache until the video is opened again or removed by cleanup
+				keep = length > 0 && !ranges.isEmpty();
+				if (keep) {
+					writeState();
+					keep = stateFile.exists();
+				}
+				if (!keep) {
+					reset();
+				}
+			}
+			CacheManager.getInstance().handleDownloadedFile(partialFile, keep);
+			CacheManager.getInstance().handleDownloadedFile(stateFile, keep);
+		}
+
+		private boolean readState() {
+			if (!stateFile.exists() || !partialFile.exists()) {
+				return false;
+			}
+			try (JsonSerial.Reader reader = JsonSerial.reader(new FileInputStream(stateFile))) {
+				reader.startObject();
+				while (!reader.endStruct()) {
+					switch (reader.nextName()) {
+						case "length": {
+							length = reader.nextLong();
+							break;
+						}
+						case "validator": {
+							validator = HttpValidator.deserialize(reader);
+							break;
+						}
+						case "ranges": {
+							reader.startArray();
+							while (!reader.endStruct()) {
+								reader.startArray();
+								long start = reader.nextLong();
+								long end = reader.nextLong();
+								if (!reader.endStruct() || end <= start) {
+									return false;
+								}
+								add(start, end);
+							}
+							break;
+						}
+						default: {
+							reader.skip();
+							break;
+						}
+					}
+				}
+				return length > 0 && (ranges.isEmpty() || ranges.lastEntry().getValue() <= length);
+			} catch (IOException | ParseException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		private void writeState() {
+			unsavedLength = 0;
+			try (JsonSerial.Writer writer = JsonSerial.writer(new FileOutputStream(stateFile))) {
+				writer.startObject();
+				writer.name("length");
+				writer.value(length);
+				if (validator != null) {
+					writer.name("validator");
+					validator.serialize(writer);
+				}
+				writer.name("ranges");
+				writer.startArray();
+				for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+					writer.startArray();
+					writer.value(range.getKey());
+					writer.value(range.getValue());
+					writer.endArray();
+				}
+				writer.endArray();
+				writer.endObject();
+			} catch (IOException e) {
+				e.printStackTrace();
+				stateFile.delete();
+			}
+		}
+
+		private void reset() {
+			length = -1;
+			validator = null;
+			ranges.clear();
+			unsavedLength = 0;
+			partialFile.delete();
+			stateFile.delete();
+		}
+
+		public synchronized int start(long length, HttpValidator validator, boolean reset) {
+			if (reset || this.length > 0 && length > 0 && this.length != length) {
+				// Data written with previous generation is ignored
+				generation++;
+				this.length = -1;
+				this.validator = null;
+				ranges.clear();
+				stateFile.delete();
+			}
+			if (length > 0) {
+				this.length = length;
+			}
+			if (validator != null && validator.isRangeValidator()) {
+				this.validator = validator;
+			}
+			return generation;
+		}
+
+		public synchronized void finish(int generation, long length) {
+			if (generation == this.generation && this.length <= 0) {
+				this.length = length;
+			}
+		}
+
+		public synchronized boolean write(RandomAccessFile output, Request request, int generation,
+				long position, byte[] buffer, int count) throws IOException {
+			if (generation != this.generation || completed) {
+				return false;
+			}
+			output.seek(position);
+			output.write(buffer, 0, count);
+			long end = position + count;
+			request.position = end;
+			unsavedLength += count;
+			boolean reached = add(position, end) > end;
+			if (unsavedLength >= STATE_WRITE_INTERVAL && length > 0) {
+				writeState();
+			}
+			return !reached;
+		}
+
+		private long add(long start, long end) {
+			Map.Entry<Long, Long> previous = ranges.floorEntry(start);
+			if (previous != null && previous.getValue() >= start) {
+				start = previous.getKey();
+				end = Math.max(end, previous.getValue());
+			}
+			Map.Entry<Long, Long> next;
+			while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+				ranges.remove(next.getKey());
+				end = Math.max(end, next.getValue());
+			}
+			ranges.put(start, end);
+			return end;
+		}
+
+		public synchronized long getRangeEnd(long position) {
+			Map.Entry<Long, Long> range = ranges.floorEntry(position);
+			return range != null && range.getValue() > position ? range.getValue() : position;
+		}
+
+		public synchronized long[] getRange(long position) {
+			Map.Entry<Long, Long> range = ranges.floorEntry(position);
+			return range != null && range.getValue() > position
+					? new long[] {range.getKey(), range.getValue()} : null;
+		}
+
+		public synchronized Request startRequest(long position) {
+			Request request = new Request(position);
+			requests.add(request);
+			return request;
+		}
+
+		public synchronized void finishRequest(Request request) {
+			requests.remove(request);
+			notifyAll();
+		}
+
+		public synchronized boolean isRequested(long position) {
+			for (Request request : requests) {
+				if (request.position == position) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public synchronized long getNextRequestEnd(long position) {
+			// Request ends where the next downloaded range or the range being downloaded starts
+			Long start = ranges.higherKey(position);
+			long end = start != null ? start : -1;
+			for (Request request : requests) {
+				if (request.position > position && (end < 0 || request.position < end)) {
+					end = request.position;
+				}
+			}
+			return end;
+		}
+
+		public synchronized boolean isComplete() {
+			return completed || length > 0 && getRangeEnd(0) >= length;
+		}
+
+		public synchronized boolean commit(File file, RandomAccessFile output) throws IOException {
+			if (!completed) {
+				// Remove data left after the file was changed
+				output.setLength(length);
+				file.delete();
+				completed = partialFile.renameTo(file);
+				if (completed) {
+					stateFile.delete();
+				}
+			}
+			return completed;
+		}
+	}
 }
@@ -9,8 +9,16 @@ import android.util.Base64;
 import chan.content.Chan;
 import chan.content.ChanConfiguration;
 import chan.content.ChanMarkup;
+import chan.content.ChanPerformer;
+import chan.content.ExtensionException;
+import chan.content.InvalidResponseException;
+import chan.http.HttpException;
+import chan.http.HttpHolder;
+import chan.http.HttpResponse;
 import chan.util.DataFile;
 import chan.util.StringUtils;
+import com.mishiranu.dashchan.content.CacheManager;
+import com.mishiranu.dashchan.content.MainApplication;
 import com.mishiranu.dashchan.content.model.Post;
 import com.mishiranu.dashchan.content.model.PostNumber;
 import com.mishiranu.dashchan.content.service.DownloadService;
@@ -26,26 +34,47 @@ import com.mishiranu.dashchan.text.style.OverlineSpan;
 import com.mishiranu.dashchan.text.style.QuoteSpan;
 import com.mishiranu.dashchan.text.style.ScriptSpan;
 import com.mishiranu.dashchan.text.style.SpoilerSpan;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.Hasher;
+import com.mishiranu.dashchan.util.IOUtils;
 import com.mishiranu.dashchan.util.MimeTypes;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
-public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchiveTask.Result>
+public class SendLocalArchiveTask extends ExecutorTask<int[], SendLocalArchiveTask.Result>
 		implements ChanMarkup.MarkupExtra {
 	private static final String DIRECTORY_ARCHIVE = "Archive";
 	private static final String DIRECTORY_FILES = "src";
 	private static final String DIRECTORY_THUMBNAILS = "thumb";
 
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 15000;
+
+	private static final Executor FETCH_EXECUTOR = ConcurrentUtils.newThreadPool(0, 3, 10000,
+			"SendLocalArchiveTask", null);
+
 	private final Callback callback;
 	private final Chan chan;
 	private final String boardName;
@@ -53,18 +82,19 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 	private final Collection<Post> posts;
 	private final boolean saveThumbnails;
 	private final boolean saveFiles;
+	private final MediaFetcher mediaFetcher;
 
 	public interface DownloadResult {
 		void run(DownloadService.Binder binder);
 	}
 
 	public interface Callback {
-		void onLocalArchivationProgressUpdate(int handledPostsCount);
+		void onLocalArchivationProgressUpdate(int handledCount, int totalCount);
 		void onLocalArchivationComplete(DownloadResult result);
 	}
 
 	public SendLocalArchiveTask(Callback callback, Chan chan, String boardName, String threadNumber,
-			Collection<Post> posts, boolean saveThumbnails, boolean saveFiles) {
+			Collection<Post> posts, boolean saveThumbnails, boolean saveFiles, boolean zip) {
 		this.callback = callback;
 		this.chan = chan;
 		this.boardName = boardName;
@@ -72,6 +102,8 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 		this.posts = posts;
 		this.saveThumbnails = saveThumbnails;
 		this.saveFiles = saveFiles;
+		// Media files are added to zip file by the task itself
+		mediaFetcher = zip ? new MediaFetcher() : null;
 	}
 
 	@Override
@@ -98,16 +130,50 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 	}
 
 	@Override
-	protected Result run() {
+	public void cancel() {
+		super.cancel();
+		if (mediaFetcher != null) {
+			mediaFetcher.close();
+		}
+	}
+
+	@Override
+	protected Result run() throws InterruptedException {
+		File file;
+		try {
+			file = createTempFile();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		Result result = null;
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+			result = run(file, output);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (mediaFetcher != null) {
+				mediaFetcher.close();
+			}
+			if (result == null) {
+				file.delete();
+			}
+		}
+		return result;
+	}
+
+	@SuppressWarnings("CharsetObjectCanBeUsed")
+	private Result run(File file, OutputStream output) throws IOException, InterruptedException {
 		Chan chan = this.chan;
 		String boardName = this.boardName;
 		String threadNumber = this.threadNumber;
 		Collection<Post> posts = this.posts;
+		progressMax = posts.size();
 		Object[] decodeTo = new Object[2];
 		ArrayList<SpanItem> spanItems = new ArrayList<>();
 		String archiveName = chan.name + '-' + boardName + '-' + threadNumber;
-		ArrayList<String> existFilesLc = new ArrayList<>();
-		ArrayList<String> existThumbnailsLc = new ArrayList<>();
+		HashSet<String> existFilesLc = new HashSet<>();
+		HashSet<String> existThumbnailsLc = new HashSet<>();
 		HashMap<String, String> iconNames = new HashMap<>();
 		Hasher hasher = Hasher.getInstanceSha256();
 		int totalFilesCount = 0;
@@ -115,7 +181,13 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 			totalFilesCount += post.attachments.size();
 		}
 		String defaultName = chan.configuration.getDefaultName(boardName);
-		WakabaLikeHtmlBuilder htmlBuilder = new WakabaLikeHtmlBuilder(posts.iterator().next().subject,
+		ZipOutputStream zipOutput = null;
+		if (mediaFetcher != null) {
+			zipOutput = new ZipOutputStream(output);
+			zipOutput.putNextEntry(new ZipEntry(archiveName + ".html"));
+		}
+		Writer writer = new BufferedWriter(new OutputStreamWriter(zipOutput != null ? zipOutput : output, "UTF-8"));
+		WakabaLikeHtmlBuilder htmlBuilder = new WakabaLikeHtmlBuilder(writer, posts.iterator().next().subject,
 				boardName, chan.configuration.getBoardTitle(boardName), chan.configuration.getTitle(),
 				chan.locator.safe(false).createThreadUri(boardName, threadNumber), posts.size(), totalFilesCount);
 		ArrayList<DownloadService.DownloadItem> filesToDownload = new ArrayList<>();
@@ -237,8 +309,12 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 					String iconPath = archiveName + "/" + DIRECTORY_THUMBNAILS + "/" + iconName;
 					htmlBuilder.addIcon(iconPath, icon.title);
 					if (downloadIcon && saveThumbnails) {
-						thumbnailsToDownload.add(new DownloadService.DownloadItem(chan.name,
-								iconUri, iconName, null, null));
+						if (mediaFetcher != null) {
+							mediaFetcher.fetch(iconUri, iconPath);
+						} else {
+							thumbnailsToDownload.add(new DownloadService.DownloadItem(chan.name,
+									iconUri, iconName, null, null));
+						}
 					}
 				}
 			}
@@ -265,12 +341,20 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 						htmlBuilder.addFile(filePath, thumbnailPath, originalName, file.size,
 								file.width, file.height);
 						if (saveFiles) {
-							filesToDownload.add(new DownloadService.DownloadItem(chan.name,
-									fileUri, fileName, null, null));
+							if (mediaFetcher != null) {
+								mediaFetcher.fetch(fileUri, filePath);
+							} else {
+								filesToDownload.add(new DownloadService.DownloadItem(chan.name,
+										fileUri, fileName, null, null));
+							}
 						}
 						if (saveThumbnails && thumbnailUri != null) {
-							thumbnailsToDownload.add(new DownloadService.DownloadItem(chan.name,
-									thumbnailUri, thumbnailName, null, null));
+							if (mediaFetcher != null) {
+								mediaFetcher.fetch(thumbnailUri, thumbnailPath);
+							} else {
+								thumbnailsToDownload.add(new DownloadService.DownloadItem(chan.name,
+										thumbnailUri, thumbnailName, null, null));
+							}
 						}
 					}
 				}
@@ -280,31 +364,77 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 			}
 			notifyIncrement();
 		}
-		String html = htmlBuilder.build();
-		return new Result(html, archiveName, filesToDownload, thumbnailsToDownload);
+		htmlBuilder.finish();
+		if (zipOutput != null) {
+			zipOutput.closeEntry();
+			// Media files are already compressed
+			zipOutput.setLevel(Deflater.NO_COMPRESSION);
+			progressMax += mediaFetcher.count;
+			// Files are added in the order they are fetched
+			for (int i = 0; i < mediaFetcher.count; i++) {
+				MediaFetcher.Item item = mediaFetcher.take();
+				InputStream input = null;
+				try {
+					input = item.file != null ? new FileInputStream(item.file) : null;
+				} catch (IOException e) {
+					// Cached file was removed, skip it like a failed download
+				}
+				try {
+					if (input != null) {
+						zipOutput.putNextEntry(new ZipEntry(item.path));
+						IOUtils.copyStream(input, zipOutput);
+						zipOutput.closeEntry();
+					}
+				} finally {
+					IOUtils.close(input);
+					item.release();
+				}
+				if (isCancelled()) {
+					return null;
+				}
+				notifyIncrement();
+			}
+			zipOutput.finish();
+		}
+		return new Result(file, archiveName, zipOutput != null, filesToDownload, thumbnailsToDownload);
 	}
 
 	@Override
-	protected void onProgress(Integer value) {
-		callback.onLocalArchivationProgressUpdate(value);
+	protected void onProgress(int[] values) {
+		callback.onLocalArchivationProgressUpdate(values[0], values[1]);
+	}
+
+	@Override
+	protected void onCancel(Result result) {
+		if (result != null) {
+			result.file.delete();
+		}
 	}
 
-	@SuppressWarnings("CharsetObjectCanBeUsed")
 	@Override
 	protected void onComplete(Result result) {
 		DownloadResult downloadResult = null;
+		InputStream input = null;
 		if (result != null) {
-			byte[] htmlBytes;
 			try {
-				htmlBytes = result.html.getBytes("UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new RuntimeException(e);
+				input = new FileInputStream(result.file);
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
+			// File is no longer referenced and will be removed when the stream is closed
+			result.file.delete();
+		}
+		if (input != null) {
 			ArrayList<DownloadResult> results = new ArrayList<>();
-			results.add(createDownload(".nomedia", new ByteArrayInputStream(new byte[0])));
-			results.add(createDownload(result.archiveName + ".html", new ByteArrayInputStream(htmlBytes)));
-			results.add(createDownload(result.archiveName + "/" + DIRECTORY_THUMBNAILS, result.thumbnailsToDownload));
-			results.add(createDownload(result.archiveName + "/" + DIRECTORY_FILES, result.filesToDownload));
+			if (result.zip) {
+				results.add(createDownload(result.archiveName + ".zip", input));
+			} else {
+				results.add(createDownload(".nomedia", new ByteArrayInputStream(new byte[0])));
+				results.add(createDownload(result.archiveName + ".html", input));
+				results.add(createDownload(result.archiveName + "/" + DIRECTORY_THUMBNAILS,
+						result.thumbnailsToDownload));
+				results.add(createDownload(result.archiveName + "/" + DIRECTORY_FILES, result.filesToDownload));
+			}
 			downloadResult = binder -> {
 				try (DownloadService.Accumulate ignored = binder.accumulate()) {
 					for (DownloadResult innerDownloadResult : results) {
@@ -316,15 +446,25 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 		callback.onLocalArchivationComplete(downloadResult);
 	}
 
+	private static File createTempFile() throws IOException {
+		// Archives may be large, so prefer external storage
+		File directory = MainApplication.getInstance().getExternalCacheDir();
+		if (directory == null) {
+			directory = MainApplication.getInstance().getCacheDir();
+		}
+		return File.createTempFile("archive-", null, directory);
+	}
+
 	private long lastNotifyIncrement = 0L;
 	private int progress = 0;
+	private int progressMax = 0;
 
 	public void notifyIncrement() {
 		progress++;
 		long t = SystemClock.elapsedRealtime();
-		if (t - lastNotifyIncrement >= 100) {
+		if (t - lastNotifyIncrement >= 100 || progress == progressMax) {
 			lastNotifyIncrement = t;
-			notifyProgress(progress);
+			notifyProgress(new int[] {progress, progressMax});
 		}
 	}
 
@@ -341,16 +481,18 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 	}
 
 	public static class Result {
-		public final String html;
+		public final File file;
 		public final String archiveName;
+		public final boolean zip;
 		public final List<DownloadService.DownloadItem> filesToDownload;
 		public final List<DownloadService.DownloadItem> thumbnailsToDownload;
 
-		private Result(String html, String archiveName,
+		private Result(File file, String archiveName, boolean zip,
 				List<DownloadService.DownloadItem> filesToDownload,
 				List<DownloadService.DownloadItem> thumbnailsToDownload) {
-			this.html = html;
+			this.file = file;
 			this.archiveName = archiveName;
+			this.zip = zip;
 			this.filesToDownload = filesToDownload;
 			this.thumbnailsToDownload = thumbnailsToDownload;
 		}
@@ -478,7 +620,7 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 		return result;
 	}
 
-	private String chooseFileName(ArrayList<String> fileNamesLc, String fileName) {
+	private String chooseFileName(HashSet<String> fileNamesLc, String fileName) {
 		if (fileName != null) {
 			Locale locale = Locale.getDefault();
 			String fileNameLc = fileName.toLowerCase(locale);
@@ -502,4 +644,132 @@ public class SendLocalArchiveTask extends ExecutorTask<Integer, SendLocalArchive
 		}
 		return fileName;
 	}
+
+	private class MediaFetcher {
+		public class Item {
+			public final String path;
+			public final File file;
+			public final boolean temporary;
+
+			public Item(String path, File file, boolean temporary) {
+				this.path = path;
+				this.file = file;
+				this.temporary = temporary;
+			}
+
+			public void release() {
+				if (temporary) {
+					file.delete();
+				}
+			}
+		}
+
+		private final LinkedBlockingQueue<Item> items = new LinkedBlockingQueue<>();
+		private final ArrayList<HttpHolder> holders = new ArrayList<>();
+		private boolean closed;
+
+		public int count;
+
+		public void fetch(Uri uri, String path) {
+			count++;
+			FETCH_EXECUTOR.execute(() -> {
+				Item item = null;
+				try {
+					item = fetchItem(uri, path);
+				} finally {
+					// Always enqueue an item, the task waits for all of them
+					if (item == null) {
+						item = new Item(path, null, false);
+					}
+					boolean closed;
+					synchronized (holders) {
+						closed = this.closed;
+						if (!closed) {
+							items.add(item);
+						}
+					}
+					if (closed) {
+						item.release();
+					}
+				}
+			});
+		}
+
+		public Item take() throws InterruptedException {
+			return items.take();
+		}
+
+		public void close() {
+			ArrayList<Item> items = new ArrayList<>();
+			synchronized (holders) {
+				closed = true;
+				for (HttpHolder holder : holders) {
+					holder.interrupt();
+				}
+				this.items.drainTo(items);
+			}
+			for (Item item : items) {
+				item.release();
+			}
+		}
+
+		private Item fetchItem(Uri uri, String path) {
+			File cachedFile = CacheManager.getInstance().getMediaFile(uri, false);
+			if (cachedFile != null && cachedFile.exists()) {
+				return new Item(path, cachedFile, false);
+			}
+			File file = null;
+			boolean success = false;
+			try {
+				file = createTempFile();
+				if (ChanConfiguration.SCHEME_CHAN.equals(uri.getScheme())) {
+					try (OutputStream output = new FileOutputStream(file)) {
+						success = chan.configuration.readResourceUri(uri, output);
+					}
+				} else {
+					success = download(uri, file);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (!success && file != null) {
+					file.delete();
+				}
+			}
+			return new Item(path, success ? file : null, success);
+		}
+
+		private boolean download(Uri uri, File file) throws IOException {
+			HttpHolder holder = new HttpHolder(chan);
+			synchronized (holders) {
+				if (closed) {
+					return false;
+				}
+				holders.add(holder);
+			}
+			try (HttpHolder.Use ignored = holder.use()) {
+				ChanPerformer.ReadContentResult result = chan.performer.safe()
+						.onReadContent(new ChanPerformer.ReadContentData(uri,
+								CONNECT_TIMEOUT, READ_TIMEOUT, holder, -1, -1));
+				HttpResponse response = result != null ? result.response : null;
+				if (response == null) {
+					return false;
+				}
+				try (InputStream input = response.open();
+						OutputStream output = new FileOutputStream(file)) {
+					IOUtils.copyStream(input, output);
+					return true;
+				} finally {
+					response.cleanupAndDisconnect();
+				}
+			} catch (ExtensionException | HttpException | InvalidResponseException e) {
+				e.getErrorItemAndHandle();
+				return false;
+			} finally {
+				synchronized (holders) {
+					holders.remove(holder);
+				}
+			}
+		}
+	}
 }
@@ -618,6 +618,18 @@ public class PagesDatabase {
 		}
 	}
 
+	public int getExistingPostsCount(@NonNull ThreadKey threadKey) {
+		Objects.requireNonNull(threadKey);
+		Expression.Filter filter = threadKey.filterPosts()
+				.raw("NOT (" + Schema.Posts.Columns.FLAGS + " & " + Schema.Posts.Flags.DELETED + ")")
+				.build();
+		try (Cursor cursor = database.rawQuery("SELECT COUNT(*) " +
+				"FROM " + Schema.Posts.TABLE_NAME + " " +
+				"WHERE " + filter.value, filter.args)) {
+			return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		}
+	}
+
 	public Post getOriginalPost(@NonNull ThreadKey threadKey) {
 		Objects.requireNonNull(threadKey);
 		String[] projection = {Schema.Posts.Columns.POST_NUMBER_MAJOR,
@@ -13,6 +13,7 @@ import android.util.Pair;
 import chan.util.DataFile;
 import chan.util.StringUtils;
 import com.mishiranu.dashchan.content.MainApplication;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.media.JpegData;
 import com.mishiranu.dashchan.media.PngData;
 import com.mishiranu.dashchan.media.WebViewDecoder;
@@ -116,7 +117,7 @@ public abstract class FileHolder {
 		int height = -1;
 		BitmapFactory.Options options = new BitmapFactory.Options();
 		options.inJustDecodeBounds = true;
-		readBitmapSimple(options);
+		readBitmapSimple(options, -1, -1);
 		if (options.outWidth > 0 && options.outHeight > 0) {
 			byte[] signature = null;
 			boolean success = false;
@@ -273,7 +274,7 @@ public abstract class FileHolder {
 			return null;
 		}
 		if (imageData.type != ImageType.IMAGE_SVG) {
-			Bitmap bitmap = readBitmapSimple(options);
+			Bitmap bitmap = readBitmapSimple(options, imageData.width, imageData.height);
 			if (bitmap != null) {
 				return bitmap;
 			}
@@ -297,9 +298,13 @@ public abstract class FileHolder {
 		return null;
 	}
 
-	private Bitmap readBitmapSimple(BitmapFactory.Options options) {
-		try (InputStream input = openInputStream()) {
-			return BitmapFactory.decodeStream(input, null, options);
+	private Bitmap readBitmapSimple(BitmapFactory.Options options, int width, int height) {
+		try {
+			return BitmapPool.getInstance().decode(options, width, height, options.inSampleSize, o -> {
+				try (InputStream input = openInputStream()) {
+					return BitmapFactory.decodeStream(input, null, o);
+				}
+			});
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
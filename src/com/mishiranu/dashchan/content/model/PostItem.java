@@ -105,6 +105,7 @@ public class PostItem implements AttachmentItem.Master, ChanMarkup.MarkupExtra,
 
 	private HideState hideState = HideState.UNDEFINED;
 	private String hideReason;
+	private volatile HideResult hideResult;
 
 	private static class ThreadData {
 		public static class Base {
@@ -338,7 +339,7 @@ public class PostItem implements AttachmentItem.Master, ChanMarkup.MarkupExtra,
 	}
 
 	@NonNull
-	public CharSequence getFullName(Chan chan) {
+	public synchronized CharSequence getFullName(Chan chan) {
 		if (fullName == null) {
 			CharSequence fullName = makeFullName(chan.configuration);
 			if (StringUtils.isEmpty(fullName)) {
@@ -465,7 +466,7 @@ public class PostItem implements AttachmentItem.Master, ChanMarkup.MarkupExtra,
 	}
 
 	@NonNull
-	public CharSequence getComment(Chan chan) {
+	public synchronized CharSequence getComment(Chan chan) {
 		if (comment == null) {
 			CharSequence comment = obtainComment(post.comment, chan.markup,
 					getThreadNumber(), getOriginalPostNumber(), this);
@@ -697,4 +698,22 @@ public class PostItem implements AttachmentItem.Master, ChanMarkup.MarkupExtra,
 		this.hideState = hideState;
 		this.hideReason = hideReason;
 	}
+
+	public static class HideResult {
+		public final int version;
+		public final String reason;
+
+		public HideResult(int version, String reason) {
+			this.version = version;
+			this.reason = reason;
+		}
+	}
+
+	public HideResult getHideResult() {
+		return hideResult;
+	}
+
+	public void setHideResult(HideResult hideResult) {
+		this.hideResult = hideResult;
+	}
 }
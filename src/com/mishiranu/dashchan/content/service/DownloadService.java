@@ -51,24 +51,25 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
-public class DownloadService extends BaseService implements ReadFileTask.Callback {
-	private static final Executor SINGLE_THREAD_EXECUTOR = Executors.newSingleThreadExecutor();
+public class DownloadService extends BaseService {
+	private static final Executor EXECUTOR = ConcurrentUtils.newThreadPool(0, Preferences.MAX_DOWNLOAD_THREADS,
+			10000, "DownloadService", null);
+
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int RETRY_DELAY = 5000;
+	private static final int MAX_RETRY_DELAY = 10 * 60 * 1000;
 
 	private static final String ACTION_CANCEL = "cancel";
 	private static final String ACTION_RETRY = "retry";
@@ -95,12 +96,14 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 	private final LinkedHashMap<String, TaskData> queuedTasks = new LinkedHashMap<>();
 	private final LinkedHashMap<String, TaskData> successTasks = new LinkedHashMap<>();
 	private final LinkedHashMap<String, TaskData> errorTasks = new LinkedHashMap<>();
-	private Pair<TaskData, ReadFileTask> activeTask;
+	private final LinkedHashMap<String, ActiveTask> activeTasks = new LinkedHashMap<>();
+	private final HashMap<String, Integer> taskBatches = new HashMap<>();
+	private final HashMap<String, Integer> taskAttempts = new HashMap<>();
+	private final HashMap<String, Long> taskRetryTimes = new HashMap<>();
+	private int nextBatch;
 
 	private NotificationCompat.Builder builder;
 
-	private int progress;
-	private int progressMax;
 	private long lastUpdate;
 
 	private static File getSavedDownloadRetryFile() {
@@ -194,10 +197,15 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 		queuedTasks.clear();
 		successTasks.clear();
 		errorTasks.clear();
-		if (activeTask != null) {
-			activeTask.second.cancel();
-			activeTask = null;
-		}
+		ArrayList<ActiveTask> activeTasks = new ArrayList<>(this.activeTasks.values());
+		this.activeTasks.clear();
+		for (ActiveTask activeTask : activeTasks) {
+			activeTask.readFileTask.cancel();
+		}
+		taskBatches.clear();
+		taskAttempts.clear();
+		taskRetryTimes.clear();
+		ConcurrentUtils.HANDLER.removeCallbacks(retryTasksRunnable);
 		// Should also stop foreground and remove notification
 		refreshNotification(NotificationUpdate.SYNC);
 		wakeLock.release();
@@ -245,40 +253,109 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 		}
 	}
 
-	private void startNextTask() {
-		if (activeTask == null && !queuedTasks.isEmpty()) {
-			Iterator<TaskData> iterator = queuedTasks.values().iterator();
-			TaskData taskData = iterator.next();
-			iterator.remove();
-			if (taskData.input != null) {
-				boolean success = false;
-				try (InputStream input = taskData.input;
-						OutputStream output = getDataFile(taskData).openOutputStream()) {
-					IOUtils.copyStream(input, output);
-					success = true;
-				} catch (IOException e) {
-					e.printStackTrace();
+	private static <T> void incrementCount(HashMap<T, Integer> counts, T key) {
+		Integer count = counts.get(key);
+		counts.put(key, count != null ? count + 1 : 1);
+	}
+
+	private static <T> int getCount(HashMap<T, Integer> counts, T key) {
+		Integer count = counts.get(key);
+		return count != null ? count : 0;
+	}
+
+	private static String getHost(TaskData taskData) {
+		return taskData.uri != null ? taskData.uri.getHost() : null;
+	}
+
+	private TaskData pollNextTask() {
+		HashMap<String, Integer> hostTasks = new HashMap<>();
+		HashMap<Integer, Integer> batchTasks = new HashMap<>();
+		long time = SystemClock.elapsedRealtime();
+		for (ActiveTask activeTask : activeTasks.values()) {
+			incrementCount(hostTasks, getHost(activeTask.taskData));
+			incrementCount(batchTasks, taskBatches.get(activeTask.taskData.getKey()));
+		}
+		TaskData nextTaskData = null;
+		int nextBatchTasks = Integer.MAX_VALUE;
+		for (TaskData taskData : queuedTasks.values()) {
+			Long retryTime = taskRetryTimes.get(taskData.getKey());
+			if (retryTime != null && retryTime > time) {
+				continue;
+			}
+			String host = getHost(taskData);
+			int hostCount = getCount(hostTasks, host);
+			// Segmented downloads use several connections, they are released when an active task finishes
+			if (host != null && hostCount > 0 && Math.max(hostCount, ReadFileTask.getHostConnections(host))
+					>= ReadFileTask.MAX_HOST_CONNECTIONS) {
+				continue;
+			}
+			// Batches with fewer active tasks go first, so multiple batches are downloaded evenly
+			int count = getCount(batchTasks, taskBatches.get(taskData.getKey()));
+			if (count < nextBatchTasks) {
+				nextTaskData = taskData;
+				nextBatchTasks = count;
+				if (count == 0) {
+					break;
 				}
-				onFinishDownloadingInternal(success, new TaskData(taskData.chanName, taskData.overwrite,
-						null, taskData.target, taskData.path, taskData.name, taskData.allowWrite));
+			}
+		}
+		if (nextTaskData != null) {
+			queuedTasks.remove(nextTaskData.getKey());
+			taskRetryTimes.remove(nextTaskData.getKey());
+		}
+		return nextTaskData;
+	}
+
+	private final Runnable retryTasksRunnable = () -> {
+		startNextTasks();
+		refreshNotification(NotificationUpdate.NORMAL);
+	};
+
+	private void scheduleRetryTasks() {
+		ConcurrentUtils.HANDLER.removeCallbacks(retryTasksRunnable);
+		long retryTime = Long.MAX_VALUE;
+		for (long time : taskRetryTimes.values()) {
+			retryTime = Math.min(retryTime, time);
+		}
+		if (retryTime != Long.MAX_VALUE) {
+			ConcurrentUtils.HANDLER.postDelayed(retryTasksRunnable,
+					Math.max(0, retryTime - SystemClock.elapsedRealtime()));
+		}
+	}
+
+	private void startNextTasks() {
+		int maxTasks = Preferences.getDownloadThreads();
+		while (activeTasks.size() < maxTasks && !queuedTasks.isEmpty()) {
+			TaskData taskData = pollNextTask();
+			if (taskData == null) {
+				// Remaining tasks are waiting for busy hosts or retry delay
+				break;
+			}
+			Chan chan = Chan.getPreferred(taskData.chanName, taskData.uri);
+			ActiveTask activeTask = new ActiveTask(taskData);
+			if (taskData.input != null) {
+				// Streams may be large, so they are copied in background like other tasks
+				activeTask.readFileTask = ReadFileTask.createStream(activeTask, chan,
+						taskData.input, getDataFile(taskData));
 			} else {
-				Chan chan = Chan.getPreferred(taskData.chanName, taskData.uri);
-				ReadFileTask readFileTask = ReadFileTask.createShared(this, chan,
+				activeTask.readFileTask = ReadFileTask.createShared(activeTask, chan,
 						taskData.uri, getDataFile(taskData), taskData.overwrite,
 						taskData.checkSha256, taskData.checkFingerprints);
-				activeTask = new Pair<>(taskData, readFileTask);
-				readFileTask.execute(SINGLE_THREAD_EXECUTOR);
 			}
-		} else {
+			activeTasks.put(taskData.getKey(), activeTask);
+			activeTask.readFileTask.execute(EXECUTOR);
+		}
+		scheduleRetryTasks();
+		if (activeTasks.isEmpty() && queuedTasks.isEmpty()) {
 			cachedDirectories.clear();
 		}
 	}
 
-	private void enqueue(TaskData taskData) {
+	private void enqueue(TaskData taskData, int batch) {
 		String key = taskData.getKey();
-		if (activeTask != null && activeTask.first.getKey().equals(key)) {
-			activeTask.second.cancel();
-			activeTask = null;
+		ActiveTask activeTask = activeTasks.remove(key);
+		if (activeTask != null) {
+			activeTask.readFileTask.cancel();
 		}
 		TaskData oldTaskData = queuedTasks.remove(key);
 		if (oldTaskData != null && oldTaskData.input != null) {
@@ -287,6 +364,9 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 		successTasks.remove(key);
 		errorTasks.remove(key);
 		queuedTasks.put(key, taskData);
+		taskBatches.put(key, batch);
+		taskAttempts.remove(key);
+		taskRetryTimes.remove(key);
 	}
 
 	private void handleRequests() {
@@ -306,23 +386,32 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 					}
 				}
 				for (DirectRequest directRequest : directRequests) {
+					int batch = nextBatch++;
 					if (directRequest.input != null) {
 						if (directRequest.downloadItems.size() != 1) {
 							throw new IllegalStateException();
 						}
 						DownloadItem downloadItem = directRequest.downloadItems.get(0);
 						enqueue(new TaskData(downloadItem.chanName, directRequest.overwrite, directRequest.input,
-								directRequest.target, directRequest.path, downloadItem.name, directRequest.allowWrite));
+								directRequest.target, directRequest.path, downloadItem.name,
+								directRequest.allowWrite), batch);
 					} else {
+						HashSet<String> contentHashes = Preferences.isDownloadSkipDuplicates() ? new HashSet<>() : null;
 						for (DownloadItem downloadItem : directRequest.downloadItems) {
+							if (contentHashes != null && downloadItem.uri != null) {
+								String contentHash = CacheManager.getInstance().getMediaContentHash(downloadItem.uri);
+								if (contentHash != null && !contentHashes.add(contentHash)) {
+									continue;
+								}
+							}
 							enqueue(new TaskData(downloadItem.chanName, directRequest.overwrite, downloadItem.uri,
 									downloadItem.checkSha256, downloadItem.checkFingerprints, directRequest.target,
-									directRequest.path, downloadItem.name, directRequest.allowWrite));
+									directRequest.path, downloadItem.name, directRequest.allowWrite), batch);
 						}
 					}
 				}
 				directRequests.clear();
-				startNextTask();
+				startNextTasks();
 			}
 		}
 		for (Callback callback : callbacks) {
@@ -361,9 +450,7 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 
 	private HashSet<String> collectActiveKeys() {
 		HashSet<String> activeKeys = new HashSet<>(queuedTasks.keySet());
-		if (activeTask != null) {
-			activeKeys.add(activeTask.first.getKey());
-		}
+		activeKeys.addAll(activeTasks.keySet());
 		return activeKeys;
 	}
 
@@ -595,7 +682,7 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 		}
 
 		private void retry() {
-			if (activeTask == null && queuedTasks.isEmpty()) {
+			if (activeTasks.isEmpty() && queuedTasks.isEmpty()) {
 				successTasks.clear();
 				ArrayList<TaskData> errorTasks = new ArrayList<>(DownloadService.this.errorTasks.values());
 				DownloadService.this.errorTasks.clear();
@@ -618,12 +705,13 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 						}
 					}
 				}
+				int batch = nextBatch++;
 				for (TaskData taskData : errorTasks) {
 					if (taskData.uri != null) {
-						enqueue(taskData);
+						enqueue(taskData, batch);
 					}
 				}
-				startNextTask();
+				startNextTasks();
 			}
 		}
 
@@ -904,11 +992,11 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 			public TaskData createFromParcel(Parcel source) {
 				String chanName = source.readString();
 				boolean finishedFromCache = source.readByte() != 0;
+				ChanManager.Fingerprints checkFingerprints = source.readByte() != 0
+						? ChanManager.Fingerprints.CREATOR.createFromParcel(source) : null;
 				boolean overwrite = source.readByte() != 0;
 				Uri uri = source.readParcelable(getClass().getClassLoader());
 				byte[] checkSha256 = source.createByteArray();
-				ChanManager.Fingerprints checkFingerprints = source.readByte() != 0
-						? ChanManager.Fingerprints.CREATOR.createFromParcel(source) : null;
 				DataFile.Target target = DataFile.Target.valueOf(source.readString());
 				String path = source.readString();
 				String name = source.readString();
@@ -1083,7 +1171,8 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 	private enum NotificationUpdate {NORMAL, HEADS_UP, SYNC}
 
 	private void refreshNotification(NotificationUpdate notificationUpdate) {
-		boolean hasTask = activeTask != null;
+		// Tasks waiting for retry are still in progress, so the service must stay in foreground
+		boolean hasTask = !activeTasks.isEmpty() || !taskRetryTimes.isEmpty();
 		boolean hasResults = !queuedTasks.isEmpty() || !successTasks.isEmpty() || !errorTasks.isEmpty();
 		boolean hasRequests = primaryRequest != null || !directRequests.isEmpty();
 		boolean needForegroundOrNotification = hasTask || hasResults || hasRequests;
@@ -1115,10 +1204,35 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 					? NotificationData.Type.REQUEST : NotificationData.Type.RESULT;
 			boolean allowHeadsUp = type == NotificationData.Type.RESULT &&
 					notificationUpdate == NotificationUpdate.HEADS_UP;
-			String activeName = hasTask ? activeTask.second.getFileName() : null;
+			String activeName = null;
+			long progress = 0;
+			long progressMax = 0;
+			if (hasTask) {
+				StringBuilder names = new StringBuilder();
+				for (ActiveTask activeTask : activeTasks.values()) {
+					if (names.length() > 0) {
+						names.append(", ");
+					}
+					names.append(activeTask.readFileTask.getFileName());
+					if (activeTask.progressMax > 0) {
+						progress += activeTask.progress;
+						progressMax += activeTask.progressMax;
+					}
+				}
+				if (names.length() == 0) {
+					for (String key : taskRetryTimes.keySet()) {
+						if (names.length() > 0) {
+							names.append(", ");
+						}
+						names.append(queuedTasks.get(key).name);
+					}
+				}
+				activeName = names.toString();
+			}
 			notificationsQueue.add(NotificationData.updateData(type, allowHeadsUp,
-					queuedTasks.size(), successTasks.size(), errorTasks.size(), allowRetry, hasNotFromCache,
-					lastSuccessFile, allowWrite, activeName, progress, progressMax));
+					Math.max(0, queuedTasks.size() + activeTasks.size() - 1), successTasks.size(), errorTasks.size(),
+					allowRetry, hasNotFromCache, lastSuccessFile, allowWrite, activeName,
+					(int) (progress / 1000), (int) (progressMax / 1000)));
 		}
 		if (hasTask) {
 			wakeLock.acquire();
@@ -1139,21 +1253,87 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 		}
 	}
 
-	@Override
-	public void onStartDownloading() {
-		progress = 0;
-		progressMax = 0;
-		refreshNotification(NotificationUpdate.NORMAL);
+	private class ActiveTask implements ReadFileTask.Callback {
+		public final TaskData taskData;
+		public ReadFileTask readFileTask;
+
+		public long progress;
+		public long progressMax;
+
+		public ActiveTask(TaskData taskData) {
+			this.taskData = taskData;
+		}
+
+		@Override
+		public void onStartDownloading() {
+			progress = 0;
+			progressMax = 0;
+			refreshNotification(NotificationUpdate.NORMAL);
+		}
+
+		@Override
+		public void onFinishDownloading(boolean success, Uri uri, DataFile file, ErrorItem errorItem) {
+			String key = taskData.getKey();
+			if (activeTasks.get(key) != this) {
+				return;
+			}
+			activeTasks.remove(key);
+			int attempts = getCount(taskAttempts, key) + 1;
+			if (!success && taskData.input == null && attempts < MAX_ATTEMPTS && isTransientError(errorItem)) {
+				// Retry later with exponential delay, partially downloaded file will be resumed
+				long delay = Math.min(Math.max((long) RETRY_DELAY << (attempts - 1),
+						readFileTask.getRetryAfter()), MAX_RETRY_DELAY);
+				taskAttempts.put(key, attempts);
+				taskRetryTimes.put(key, SystemClock.elapsedRealtime() + delay);
+				queuedTasks.put(key, taskData);
+				startNextTasks();
+				refreshNotification(NotificationUpdate.NORMAL);
+			} else {
+				// Consumed stream can't be used again
+				TaskData finishedTaskData = taskData.input != null ? new TaskData(taskData.chanName,
+						taskData.overwrite, null, taskData.target, taskData.path, taskData.name, taskData.allowWrite)
+						: taskData.newFinishedFromCache(readFileTask.isDownloadingFromCache());
+				onFinishDownloadingInternal(success, finishedTaskData);
+			}
+		}
+
+		@Override
+		public void onUpdateProgress(long progress, long progressMax) {
+			this.progress = progress;
+			this.progressMax = progressMax;
+			long t = SystemClock.elapsedRealtime();
+			if (t - lastUpdate >= 500L) {
+				lastUpdate = t;
+				refreshNotification(NotificationUpdate.NORMAL);
+			}
+		}
 	}
 
-	@Override
-	public void onFinishDownloading(boolean success, Uri uri, DataFile file, ErrorItem errorItem) {
-		TaskData taskData = activeTask.first.newFinishedFromCache(activeTask.second.isDownloadingFromCache());
-		activeTask = null;
-		onFinishDownloadingInternal(success, taskData);
+	private static boolean isTransientError(ErrorItem errorItem) {
+		if (errorItem == null) {
+			return false;
+		}
+		if (errorItem.type != null) {
+			switch (errorItem.type) {
+				case DOWNLOAD:
+				case READ_TIMEOUT:
+				case CONNECT_TIMEOUT:
+				case CONNECTION_RESET: {
+					return true;
+				}
+				default: {
+					return false;
+				}
+			}
+		}
+		return errorItem.httpResponseCode >= 500 || errorItem.httpResponseCode == 429;
 	}
 
-	private void onFinishDownloadingInternal(boolean success, TaskData taskData) {
+	private void handleTaskResult(boolean success, TaskData taskData) {
+		String key = taskData.getKey();
+		taskBatches.remove(key);
+		taskAttempts.remove(key);
+		taskRetryTimes.remove(key);
 		if (success) {
 			File file = getDataFile(taskData).getFileOrUri().first;
 			if (file != null) {
@@ -1164,31 +1344,21 @@ public class DownloadService extends BaseService implements ReadFileTask.Callbac
 			callback.onFinishDownloading(success, taskData.target, taskData.path, taskData.name);
 		}
 		if (success) {
-			successTasks.put(taskData.getKey(), taskData);
+			successTasks.put(key, taskData);
 		} else {
-			errorTasks.put(taskData.getKey(), taskData);
+			errorTasks.put(key, taskData);
 		}
-		if (!queuedTasks.isEmpty()) {
-			if (success && taskData.target.isExternal()) {
-				// Update image explicitly, because task type won't be changed
-				notificationsQueue.add(NotificationData.updateImageOnly(getDataFile(taskData), taskData.allowWrite));
-			}
-			startNextTask();
-		} else {
-			cachedDirectories.clear();
-			refreshNotification(NotificationUpdate.HEADS_UP);
+		if (success && taskData.target.isExternal() && (!queuedTasks.isEmpty() || !activeTasks.isEmpty())) {
+			// Update image explicitly, because task type won't be changed
+			notificationsQueue.add(NotificationData.updateImageOnly(getDataFile(taskData), taskData.allowWrite));
 		}
 	}
 
-	@Override
-	public void onUpdateProgress(long progress, long progressMax) {
-		this.progress = (int) (progress / 1000);
-		this.progressMax = (int) (progressMax / 1000);
-		long t = SystemClock.elapsedRealtime();
-		if (t - lastUpdate >= 500L) {
-			lastUpdate = t;
-			refreshNotification(NotificationUpdate.NORMAL);
-		}
+	private void onFinishDownloadingInternal(boolean success, TaskData taskData) {
+		handleTaskResult(success, taskData);
+		startNextTasks();
+		refreshNotification(activeTasks.isEmpty() && queuedTasks.isEmpty()
+				? NotificationUpdate.HEADS_UP : NotificationUpdate.NORMAL);
 	}
 
 	private interface ScanCallback {
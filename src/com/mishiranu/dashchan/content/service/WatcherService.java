@@ -8,12 +8,14 @@ import androidx.lifecycle.ViewModelProvider;
 import chan.content.Chan;
 import chan.content.ChanConfiguration;
 import chan.content.RedirectException;
+import chan.http.HostHealth;
 import chan.util.CommonUtils;
 import chan.util.StringUtils;
 import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.content.NetworkObserver;
 import com.mishiranu.dashchan.content.Preferences;
 import com.mishiranu.dashchan.content.WatcherNotifications;
+import com.mishiranu.dashchan.content.async.CheckThreadSummariesTask;
 import com.mishiranu.dashchan.content.async.ExecutorTask;
 import com.mishiranu.dashchan.content.async.ReadPostsTask;
 import com.mishiranu.dashchan.content.database.ChanDatabase;
@@ -31,6 +33,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Executor;
 
@@ -215,7 +219,7 @@ public class WatcherService extends BaseService {
 		public void refreshAll(String chanName) {
 			WatcherService service = getService();
 			if (service != null) {
-				service.refreshAll(chanName, true, true);
+				service.refreshAll(chanName, true);
 			}
 		}
 
@@ -535,10 +539,32 @@ public class WatcherService extends BaseService {
 		}
 	}
 
+	private static class SummaryTask {
+		public final CheckThreadSummariesTask task;
+		public final Worker worker;
+
+		public SummaryTask(CheckThreadSummariesTask task, Worker worker) {
+			this.task = task;
+			this.worker = worker;
+			worker.acquire();
+		}
+
+		public void cancel() {
+			task.cancel();
+			worker.release();
+		}
+	}
+
 	public enum WatcherState {IDLE, ENQUEUED, UNAVAILABLE}
 
 	private static final Session.Callback.ConsumeReplies CONSUME_REPLIES_EMPTY = () -> {};
 
+	private static final int MAX_ADAPTIVE_INTERVAL = 60 * 60 * 1000;
+	private static final int ERROR_INTERVAL = 30 * 1000;
+	private static final float POST_RATE_SMOOTHING = 0.3f;
+	private static final float INTERVAL_JITTER = 0.1f;
+	private static final Random RANDOM = new Random();
+
 	private class WatcherItem implements Comparable<WatcherItem>, ReadPostsTask.Callback {
 		public final ThreadKey threadKey;
 
@@ -551,6 +577,19 @@ public class WatcherService extends BaseService {
 		public WatcherTask task;
 		public WatcherState state = WatcherState.IDLE;
 
+		// Adaptive refresh state, interval is chosen from the observed post rate
+		public long nextUpdate;
+		private long interval;
+		private float postRate;
+		private long lastPostTime;
+		private int errorsCount;
+		private float jitter;
+
+		// Board summary state, the full read is skipped when the summary is not changed
+		public boolean summaryChecked;
+		public long summaryModified;
+		public long summaryModifiedPending;
+
 		public WatcherItem(ThreadKey threadKey) {
 			this.threadKey = threadKey;
 		}
@@ -566,8 +605,10 @@ public class WatcherService extends BaseService {
 			cancel();
 			Set<PendingUserPost> pendingUserPosts = PostingService.getPendingUserPosts(threadKey.chanName,
 					threadKey.boardName, threadKey.threadNumber);
-			ReadPostsTask task = new ReadPostsTask(this, Chan.get(threadKey.chanName),
-					threadKey.boardName, threadKey.threadNumber, reload, pendingUserPosts);
+			// Check posts count first when the thread is not displayed
+			boolean checkPostsCount = worker != WORKER_FOREGROUND && !summaryChecked;
+			ReadPostsTask task = new ReadPostsTask(this, Chan.get(threadKey.chanName), threadKey.boardName,
+					threadKey.threadNumber, reload, checkPostsCount, pendingUserPosts);
 			task.execute(worker.executor);
 			if (notifyBeforeStart) {
 				for (InternalSession session : getSessionConcurrentIterable(threadKey)) {
@@ -582,6 +623,35 @@ public class WatcherService extends BaseService {
 			return lastUpdate + interval - 1000 <= now;
 		}
 
+		public void updateNextUpdate(boolean foreground) {
+			long minInterval = getRefreshInterval(foreground);
+			long interval = Math.max(minInterval, Math.min(this.interval, Math.max(minInterval,
+					MAX_ADAPTIVE_INTERVAL)));
+			nextUpdate = lastUpdate + interval + (long) (interval * jitter);
+		}
+
+		private void updateInterval(long now, int addedCount, boolean failed) {
+			if (failed) {
+				errorsCount++;
+				interval = (long) ERROR_INTERVAL << Math.min(errorsCount, 4);
+			} else {
+				errorsCount = 0;
+				long elapsed = now - lastUpdate;
+				if (lastUpdate > 0 && elapsed > 0) {
+					float rate = (float) addedCount / elapsed;
+					postRate += (rate - postRate) * POST_RATE_SMOOTHING;
+				}
+				if (addedCount > 0 || lastPostTime == 0) {
+					lastPostTime = now;
+				}
+				// Expected time until the next post, but threads which were active recently
+				// are checked more often even if their average post rate is low
+				long expected = postRate > 0 ? (long) (1f / postRate) : MAX_ADAPTIVE_INTERVAL;
+				interval = Math.min(expected, (now - lastPostTime) / 2);
+			}
+			jitter = (RANDOM.nextFloat() * 2f - 1f) * INTERVAL_JITTER;
+		}
+
 		@Override
 		public int compareTo(WatcherItem o) {
 			return Long.compare(lastUpdate, o.lastUpdate);
@@ -598,13 +668,21 @@ public class WatcherService extends BaseService {
 		@Override
 		public void onReadPostsSuccess(PagesDatabase.Cache.State cacheState,
 				List<PagesDatabase.InsertResult.Reply> replies, Integer newCount) {
+			int addedCount = 0;
 			if (newCount != null) {
+				if (resolved) {
+					addedCount = Math.max(0, newCount - this.newCount);
+				}
 				resolved = true;
 				this.newCount = newCount;
 			}
 			deleted = false;
 			error = false;
-			onTaskFinished();
+			if (summaryChecked) {
+				summaryModified = summaryModifiedPending;
+			}
+			HostHealth.getInstance().onChanResult(Chan.get(threadKey.chanName), true);
+			onTaskFinished(addedCount);
 			boolean[] notify = replies.isEmpty() ? null : new boolean[] {true};
 			Session.Callback.ConsumeReplies consumeReplies = null;
 			if (notify == null) {
@@ -641,7 +719,8 @@ public class WatcherService extends BaseService {
 		public void onReadPostsRedirect(RedirectException.Target target) {
 			deleted = true;
 			error = false;
-			onTaskFinished();
+			HostHealth.getInstance().onChanResult(Chan.get(threadKey.chanName), true);
+			onTaskFinished(0);
 			for (InternalSession session : getSessionConcurrentIterable(threadKey)) {
 				session.onReadPostsRedirect(target);
 			}
@@ -652,23 +731,39 @@ public class WatcherService extends BaseService {
 			boolean notExists = errorItem.type == ErrorItem.Type.THREAD_NOT_EXISTS;
 			deleted = notExists;
 			error = !notExists;
-			onTaskFinished();
+			HostHealth.getInstance().onChanResult(Chan.get(threadKey.chanName), !HostHealth.isFailure(errorItem));
+			onTaskFinished(0);
 			for (InternalSession session : getSessionConcurrentIterable(threadKey)) {
 				session.onReadPostsFail(errorItem);
 			}
 		}
 
-		private void onTaskFinished() {
+		public void onSummaryUnchanged(long lastModified) {
+			summaryModified = lastModified;
+			deleted = false;
+			error = false;
+			finishUpdate(0);
+		}
+
+		private void onTaskFinished(int addedCount) {
 			task.worker.release();
 			task = null;
-			lastUpdate = SystemClock.elapsedRealtime();
+			summaryChecked = false;
+			finishUpdate(addedCount);
+			startNext();
+		}
+
+		private void finishUpdate(int addedCount) {
+			long now = SystemClock.elapsedRealtime();
+			updateInterval(now, addedCount, error);
+			lastUpdate = now;
 			state = WatcherState.IDLE;
 			enqueuedWatcherItems.remove(this);
+			schedule(this);
 			if (deleted) {
 				FavoritesStorage.getInstance().setWatcherEnabled(threadKey.chanName,
 						threadKey.boardName, threadKey.threadNumber, false);
 			}
-			startNext();
 			notifyWatcherUpdate(this);
 		}
 	}
@@ -676,7 +771,11 @@ public class WatcherService extends BaseService {
 	private final HashMap<Client, String> clients = new HashMap<>();
 	private final HashMap<ThreadKey, HashSet<InternalSession>> sessionsMap = new HashMap<>();
 	private final HashMap<ThreadKey, WatcherItem> watcherItems = new HashMap<>();
+	private final HashMap<String, SummaryTask> summaryTasks = new HashMap<>();
 	private final ArrayList<WatcherItem> enqueuedWatcherItems = new ArrayList<>();
+	private final PriorityQueue<WatcherItem> scheduledWatcherItems = new PriorityQueue<>(11,
+			(lhs, rhs) -> Long.compare(lhs.nextUpdate, rhs.nextUpdate));
+	private final ArrayList<WatcherItem> workWatcherItems = new ArrayList<>();
 
 	private final Iterable<ThreadKey> workWatcherKeys = new ConcurrentIterable<>(watcherItems::keySet);
 	private final Iterable<Client> workClients = new ConcurrentIterable<>(clients::keySet);
@@ -685,7 +784,7 @@ public class WatcherService extends BaseService {
 
 	private int notificationColor;
 	private ResolveItemsTask resolveItemsTask;
-	private long lastRefreshAll;
+	private boolean scheduledForeground;
 
 	@Override
 	public void onCreate() {
@@ -702,7 +801,6 @@ public class WatcherService extends BaseService {
 			addWatcherItem(threadKey, false);
 		}
 		resolveWatcherItems();
-		refreshAll(null, false, true);
 	}
 
 	@Override
@@ -717,13 +815,17 @@ public class WatcherService extends BaseService {
 				}
 			}
 		}
+		for (SummaryTask summaryTask : summaryTasks.values()) {
+			summaryTask.cancel();
+		}
+		summaryTasks.clear();
 		if (resolveItemsTask != null) {
 			resolveItemsTask.cancel();
 			resolveItemsTask = null;
 		}
 		Preferences.PREFERENCES.unregister(preferencesListener);
 		FavoritesStorage.getInstance().getObservable().unregister(favoritesObserver);
-		ConcurrentUtils.HANDLER.removeCallbacks(refreshAllRunnable);
+		ConcurrentUtils.HANDLER.removeCallbacks(refreshDueRunnable);
 	}
 
 	private final FavoritesStorage.Observer favoritesObserver = (favoriteItem, action) -> {
@@ -746,6 +848,7 @@ public class WatcherService extends BaseService {
 				WatcherItem watcherItem = watcherItems.get(threadKey);
 				if (watcherItem.state != WatcherState.ENQUEUED) {
 					watcherItem.state = WatcherState.ENQUEUED;
+					scheduledWatcherItems.remove(watcherItem);
 					enqueuedWatcherItems.add(watcherItem);
 					Collections.sort(enqueuedWatcherItems);
 				}
@@ -793,12 +896,15 @@ public class WatcherService extends BaseService {
 				watcherItem.deleted = item.deleted;
 				watcherItem.error = item.error;
 				watcherItem.lastUpdate = item.lastUpdate;
+				if (watcherItem.state != WatcherState.ENQUEUED && watcherItem.task == null) {
+					schedule(watcherItem);
+				}
 				notifyWatcherUpdate(watcherItem);
 			}
 		}
 		Collections.sort(enqueuedWatcherItems);
 		resolveWatcherItems();
-		startNext();
+		refreshDue();
 	}
 
 	private void startNext() {
@@ -826,8 +932,23 @@ public class WatcherService extends BaseService {
 							iterator.remove();
 							worker = null;
 						}
-						if (worker != null && worker.isAvailable()) {
-							watcherItem.createAndExecuteTask(worker, false, true);
+						long delay = worker != null && worker != WORKER_FOREGROUND && worker.isAvailable()
+								? HostHealth.getInstance().acquireChan(chan) : 0;
+						if (delay > 0) {
+							// Chan is failing, check again after backoff time,
+							// but not later than usual since backoff is reset on network change
+							watcherItem.state = WatcherState.IDLE;
+							iterator.remove();
+							postpone(watcherItem, Math.min(delay,
+									Math.max(ERROR_INTERVAL, getRefreshInterval(scheduledForeground))));
+							notifyWatcherUpdate(watcherItem);
+						} else if (worker != null && worker.isAvailable()) {
+							if (worker != WORKER_FOREGROUND && !watcherItem.summaryChecked && chan.configuration
+									.getOption(ChanConfiguration.OPTION_READ_ACTIVE_THREAD_SUMMARIES)) {
+								checkThreadSummaries(chan, watcherItem.threadKey.boardName, worker);
+							} else {
+								watcherItem.createAndExecuteTask(worker, false, true);
+							}
 						}
 					} else {
 						watcherItem.state = WatcherState.IDLE;
@@ -839,28 +960,115 @@ public class WatcherService extends BaseService {
 		startNextFinished(false);
 	}
 
-	private void startNextFinished(boolean forceForeground) {
-		ConcurrentUtils.HANDLER.removeCallbacks(refreshAllRunnable);
-		if (enqueuedWatcherItems.isEmpty()) {
-			boolean foreground = forceForeground;
-			if (!foreground) {
-				for (Client client : workClients) {
-					Client.Callback callback = client.getCallback();
-					if (!foreground && callback != null && callback.isWatcherClientForeground()) {
-						// Consume iterator completely
-						foreground = true;
+	private static String getSummaryKey(String chanName, String boardName) {
+		return chanName + '/' + StringUtils.emptyIfNull(boardName);
+	}
+
+	private void checkThreadSummaries(Chan chan, String boardName, Worker worker) {
+		String key = getSummaryKey(chan.name, boardName);
+		if (summaryTasks.containsKey(key)) {
+			return;
+		}
+		// Scheduled threads of the same board are checked too, so the board is requested once per cycle
+		HashMap<String, Long> threads = new HashMap<>();
+		for (WatcherItem watcherItem : watcherItems.values()) {
+			ThreadKey threadKey = watcherItem.threadKey;
+			if (watcherItem.resolved && watcherItem.task == null && chan.name.equals(threadKey.chanName) &&
+					CommonUtils.equals(boardName, threadKey.boardName) && isEnabled(threadKey) &&
+					!sessionsMap.containsKey(threadKey)) {
+				threads.put(threadKey.threadNumber, watcherItem.summaryModified);
+			}
+		}
+		CheckThreadSummariesTask task = new CheckThreadSummariesTask(this::onCheckThreadSummariesResult,
+				chan, boardName, threads);
+		task.execute(worker.executor);
+		summaryTasks.put(key, new SummaryTask(task, worker));
+	}
+
+	private void onCheckThreadSummariesResult(String chanName, String boardName,
+			List<CheckThreadSummariesTask.Item> items) {
+		SummaryTask summaryTask = summaryTasks.remove(getSummaryKey(chanName, boardName));
+		if (summaryTask != null) {
+			summaryTask.worker.release();
+		}
+		if (items == null) {
+			// Fall back to full reads
+			for (WatcherItem watcherItem : enqueuedWatcherItems) {
+				if (chanName.equals(watcherItem.threadKey.chanName) &&
+						CommonUtils.equals(boardName, watcherItem.threadKey.boardName)) {
+					watcherItem.summaryChecked = true;
+				}
+			}
+		} else {
+			HostHealth.getInstance().onChanResult(Chan.get(chanName), true);
+			for (CheckThreadSummariesTask.Item item : items) {
+				WatcherItem watcherItem = watcherItems.get(new ThreadKey(chanName, boardName, item.threadNumber));
+				if (watcherItem != null && watcherItem.task == null && isEnabled(watcherItem.threadKey)) {
+					if (item.changed) {
+						watcherItem.summaryChecked = true;
+						watcherItem.summaryModifiedPending = item.lastModified;
+						if (watcherItem.state != WatcherState.ENQUEUED) {
+							watcherItem.state = WatcherState.ENQUEUED;
+							scheduledWatcherItems.remove(watcherItem);
+							enqueuedWatcherItems.add(watcherItem);
+							notifyWatcherUpdate(watcherItem);
+						}
+					} else {
+						watcherItem.onSummaryUnchanged(item.lastModified);
 					}
 				}
 			}
-			int interval = getRefreshInterval(foreground);
-			if (interval > 0) {
-				if (lastRefreshAll == 0) {
-					lastRefreshAll = SystemClock.elapsedRealtime();
+			Collections.sort(enqueuedWatcherItems);
+		}
+		startNext();
+	}
+
+	private void startNextFinished(boolean forceForeground) {
+		ConcurrentUtils.HANDLER.removeCallbacks(refreshDueRunnable);
+		boolean foreground = forceForeground;
+		if (!foreground) {
+			for (Client client : workClients) {
+				Client.Callback callback = client.getCallback();
+				if (!foreground && callback != null && callback.isWatcherClientForeground()) {
+					// Consume iterator completely
+					foreground = true;
 				}
-				long time = Math.max(0, lastRefreshAll + interval - SystemClock.elapsedRealtime());
-				ConcurrentUtils.HANDLER.postDelayed(refreshAllRunnable, time);
 			}
 		}
+		if (scheduledForeground != foreground) {
+			scheduledForeground = foreground;
+			reschedule();
+		}
+		WatcherItem watcherItem = scheduledWatcherItems.peek();
+		if (watcherItem != null && getRefreshInterval(foreground) > 0) {
+			long time = Math.max(0, watcherItem.nextUpdate - SystemClock.elapsedRealtime());
+			ConcurrentUtils.HANDLER.postDelayed(refreshDueRunnable, time);
+		}
+	}
+
+	private void schedule(WatcherItem watcherItem) {
+		scheduledWatcherItems.remove(watcherItem);
+		watcherItem.updateNextUpdate(scheduledForeground);
+		scheduledWatcherItems.add(watcherItem);
+	}
+
+	private void reschedule() {
+		ArrayList<WatcherItem> watcherItems = new ArrayList<>(scheduledWatcherItems);
+		scheduledWatcherItems.clear();
+		for (WatcherItem watcherItem : watcherItems) {
+			watcherItem.updateNextUpdate(scheduledForeground);
+			scheduledWatcherItems.add(watcherItem);
+		}
+	}
+
+	private void postpone(WatcherItem watcherItem) {
+		postpone(watcherItem, Math.max(ERROR_INTERVAL, getRefreshInterval(scheduledForeground)));
+	}
+
+	private void postpone(WatcherItem watcherItem, long delay) {
+		scheduledWatcherItems.remove(watcherItem);
+		watcherItem.nextUpdate = SystemClock.elapsedRealtime() + delay;
+		scheduledWatcherItems.add(watcherItem);
 	}
 
 	private void notifyWatcherUpdate(WatcherItem watcherItem) {
@@ -911,6 +1119,7 @@ public class WatcherService extends BaseService {
 			} else {
 				watcherItems.remove(threadKey);
 				enqueuedWatcherItems.remove(watcherItem);
+				scheduledWatcherItems.remove(watcherItem);
 			}
 			startNext();
 			return null;
@@ -971,34 +1180,50 @@ public class WatcherService extends BaseService {
 		return workSessions;
 	}
 
-	private final Runnable refreshAllRunnable = () -> {
-		lastRefreshAll = 0;
-		refreshAll(null, false, false);
-	};
+	private final Runnable refreshDueRunnable = this::refreshDue;
+
+	private void refreshDue() {
+		// Only threads which are due are refreshed, the rest stay scheduled
+		long time = SystemClock.elapsedRealtime() + 1000;
+		ArrayList<WatcherItem> watcherItems = workWatcherItems;
+		while (!scheduledWatcherItems.isEmpty() && scheduledWatcherItems.peek().nextUpdate <= time) {
+			watcherItems.add(scheduledWatcherItems.poll());
+		}
+		refreshWatcherItems(watcherItems, false);
+		watcherItems.clear();
+	}
+
+	private void refreshAll(String chanName, boolean forceNetwork) {
+		ArrayList<WatcherItem> watcherItems = workWatcherItems;
+		for (WatcherItem watcherItem : this.watcherItems.values()) {
+			if (chanName == null || chanName.equals(watcherItem.threadKey.chanName)) {
+				watcherItems.add(watcherItem);
+			}
+		}
+		refreshWatcherItems(watcherItems, forceNetwork);
+		watcherItems.clear();
+	}
 
-	private void refreshAll(String chanName, boolean forceNetwork, boolean forceNow) {
-		long now = SystemClock.elapsedRealtime();
-		int interval = getRefreshInterval(true);
+	private void refreshWatcherItems(Collection<WatcherItem> watcherItems, boolean forceNetwork) {
 		boolean unavailable = !forceNetwork && Preferences.isWatcherWifiOnly() &&
 				!NetworkObserver.getInstance().isWifiConnected();
-		for (WatcherItem watcherItem : watcherItems.values()) {
-			if (chanName == null || chanName.equals(watcherItem.threadKey.chanName)) {
-				Chan chan = Chan.get(watcherItem.threadKey.chanName);
-				if (isWatcherSupported(chan) && !isBlocked(watcherItem.threadKey) &&
-						isEnabled(watcherItem.threadKey)) {
-					if (unavailable) {
-						if (watcherItem.state == WatcherState.IDLE) {
-							watcherItem.state = WatcherState.UNAVAILABLE;
-							notifyWatcherUpdate(watcherItem);
-						}
-					} else {
-						if (watcherItem.state != WatcherState.ENQUEUED &&
-								(forceNow || watcherItem.checkInterval(now, interval))) {
-							watcherItem.state = WatcherState.ENQUEUED;
-							notifyWatcherUpdate(watcherItem);
-							enqueuedWatcherItems.add(watcherItem);
-						}
+		for (WatcherItem watcherItem : watcherItems) {
+			Chan chan = Chan.get(watcherItem.threadKey.chanName);
+			if (isWatcherSupported(chan) && isEnabled(watcherItem.threadKey)) {
+				if (unavailable || isBlocked(watcherItem.threadKey)) {
+					if (unavailable && watcherItem.state == WatcherState.IDLE) {
+						watcherItem.state = WatcherState.UNAVAILABLE;
+						notifyWatcherUpdate(watcherItem);
+					}
+					// Check again later
+					if (watcherItem.state != WatcherState.ENQUEUED && watcherItem.task == null) {
+						postpone(watcherItem);
 					}
+				} else if (watcherItem.state != WatcherState.ENQUEUED) {
+					watcherItem.state = WatcherState.ENQUEUED;
+					scheduledWatcherItems.remove(watcherItem);
+					notifyWatcherUpdate(watcherItem);
+					enqueuedWatcherItems.add(watcherItem);
 				}
 			}
 		}
@@ -1025,6 +1250,9 @@ public class WatcherService extends BaseService {
 		WatcherItem watcherItem = watcherItems.get(threadKey);
 		if (watcherItem != null && watcherItem.task != null) {
 			watcherItem.cancel();
+			if (watcherItem.state != WatcherState.ENQUEUED) {
+				schedule(watcherItem);
+			}
 			notifyWatcherUpdate(watcherItem);
 		}
 	}
@@ -1060,7 +1288,8 @@ public class WatcherService extends BaseService {
 
 	private final SharedPreferences.Listener preferencesListener = key -> {
 		if (Preferences.KEY_WATCHER_REFRESH_INTERVAL.equals(key)) {
-			ConcurrentUtils.HANDLER.removeCallbacks(refreshAllRunnable);
+			ConcurrentUtils.HANDLER.removeCallbacks(refreshDueRunnable);
+			reschedule();
 			startNext();
 		} else if (Preferences.KEY_THEME.equals(key)) {
 			updateNotificationColor();
@@ -4,10 +4,16 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import chan.util.CommonUtils;
 import chan.util.StringUtils;
+import com.mishiranu.dashchan.R;
+import com.mishiranu.dashchan.content.AutohideMatcher;
+import com.mishiranu.dashchan.content.MainApplication;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import com.mishiranu.dashchan.widget.ClickableToast;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.json.JSONArray;
@@ -26,6 +32,16 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 	private static final String KEY_OPTION_NAME = "optionName";
 	private static final String KEY_OPTION_FILE_NAME = "optionFileName";
 	private static final String KEY_VALUE = "value";
+	private static final String KEY_STATISTICS = "statistics";
+	private static final String KEY_MATCHES = "matches";
+	private static final String KEY_HITS = "hits";
+	private static final String KEY_TIMEOUT_MATCHES = "timeoutMatches";
+	private static final String KEY_TOTAL_TIME = "totalTime";
+	private static final String KEY_MAX_TIME = "maxTime";
+	private static final String KEY_SUSPENDED = "suspended";
+
+	private static final int STATISTICS_SERIALIZE_DELAY = 60 * 1000;
+	private static final int MATCH_WATCHDOG_INTERVAL = 1000;
 
 	private static final AutohideStorage INSTANCE = new AutohideStorage();
 
@@ -34,6 +50,10 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 	}
 
 	private final ArrayList<AutohideItem> autohideItems = new ArrayList<>();
+	private volatile AutohideMatcher matcher;
+
+	private final AtomicBoolean statisticsChanged = new AtomicBoolean();
+	private final AtomicBoolean matchWatchdogScheduled = new AtomicBoolean();
 
 	private AutohideStorage() {
 		super("autohide", 1000, 10000);
@@ -44,6 +64,20 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 		return autohideItems;
 	}
 
+	public AutohideMatcher getMatcher() {
+		AutohideMatcher matcher = this.matcher;
+		if (matcher == null) {
+			synchronized (this) {
+				matcher = this.matcher;
+				if (matcher == null) {
+					matcher = new AutohideMatcher(autohideItems);
+					this.matcher = matcher;
+				}
+			}
+		}
+		return matcher;
+	}
+
 	@Override
 	public List<AutohideItem> onClone() {
 		ArrayList<AutohideItem> autohideItems = new ArrayList<>(this.autohideItems.size());
@@ -82,11 +116,18 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 					boolean optionName = jsonObject.optBoolean(KEY_OPTION_NAME);
 					boolean optionFileName = jsonObject.optBoolean(KEY_OPTION_FILE_NAME);
 					String value = jsonObject.optString(KEY_VALUE, null);
-					autohideItems.add(new AutohideItem(chanNames, boardName, threadNumber, optionOriginalPost,
-							optionSage, optionSubject, optionComment, optionName, optionFileName, value));
+					AutohideItem autohideItem = new AutohideItem(chanNames, boardName, threadNumber,
+							optionOriginalPost, optionSage, optionSubject, optionComment, optionName,
+							optionFileName, value);
+					JSONObject statisticsObject = jsonObject.optJSONObject(KEY_STATISTICS);
+					if (statisticsObject != null) {
+						autohideItem.statistics.deserialize(statisticsObject);
+					}
+					autohideItems.add(autohideItem);
 				}
 			}
 		}
+		matcher = null;
 	}
 
 	@Override
@@ -111,6 +152,10 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 				putJson(jsonObject, KEY_OPTION_NAME, autohideItem.optionName);
 				putJson(jsonObject, KEY_OPTION_FILE_NAME, autohideItem.optionFileName);
 				putJson(jsonObject, KEY_VALUE, autohideItem.value);
+				JSONObject statisticsObject = autohideItem.statistics.serialize();
+				if (statisticsObject != null) {
+					jsonObject.put(KEY_STATISTICS, statisticsObject);
+				}
 				jsonArray.put(jsonObject);
 			}
 			JSONObject jsonObject = new JSONObject();
@@ -134,19 +179,65 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 
 	public void add(AutohideItem autohideItem) {
 		autohideItems.add(autohideItem);
+		matcher = null;
 		serialize();
 	}
 
 	public void update(int index, AutohideItem autohideItem) {
 		autohideItems.set(index, autohideItem);
+		matcher = null;
 		serialize();
 	}
 
 	public void delete(int index) {
 		autohideItems.remove(index);
+		matcher = null;
+		serialize();
+	}
+
+	private final Runnable serializeStatisticsRunnable = () -> {
+		statisticsChanged.set(false);
 		serialize();
+	};
+
+	private void onStatisticsChanged() {
+		// Counters are saved with a delay, so matching doesn't cause frequent writes
+		if (statisticsChanged.compareAndSet(false, true)) {
+			ConcurrentUtils.HANDLER.postDelayed(serializeStatisticsRunnable, STATISTICS_SERIALIZE_DELAY);
+		}
+	}
+
+	private void onRuleSuspended(AutohideItem autohideItem) {
+		// Called on the main thread, suspension is saved immediately
+		statisticsChanged.set(true);
+		ConcurrentUtils.HANDLER.removeCallbacks(serializeStatisticsRunnable);
+		serializeStatisticsRunnable.run();
+		ClickableToast.show(MainApplication.getInstance()
+				.getString(R.string.autohide_rule_suspended__format, autohideItem.value));
+	}
+
+	private void onMatchStarted() {
+		if (matchWatchdogScheduled.compareAndSet(false, true)) {
+			ConcurrentUtils.HANDLER.postDelayed(matchWatchdogRunnable, MATCH_WATCHDOG_INTERVAL);
+		}
 	}
 
+	// Matches which never finish are counted while they are still running
+	private final Runnable matchWatchdogRunnable = () -> {
+		matchWatchdogScheduled.set(false);
+		long time = System.nanoTime();
+		boolean running = false;
+		for (AutohideItem autohideItem : autohideItems) {
+			if (autohideItem.statistics.checkRunning(time)) {
+				onRuleSuspended(autohideItem);
+			}
+			running |= autohideItem.statistics.isRunning();
+		}
+		if (running) {
+			onMatchStarted();
+		}
+	};
+
 	public static class AutohideItem implements Parcelable {
 		public HashSet<String> chanNames;
 
@@ -166,6 +257,8 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 		private volatile boolean ready = false;
 		private Pattern pattern;
 
+		private final Statistics statistics = new Statistics();
+
 		public AutohideItem() {}
 
 		@SuppressWarnings("CopyConstructorMissesField")
@@ -174,6 +267,7 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 					autohideItem.optionOriginalPost, autohideItem.optionSage, autohideItem.optionSubject,
 					autohideItem.optionComment, autohideItem.optionName, autohideItem.optionFileName,
 					autohideItem.value);
+			statistics.copy(autohideItem.statistics);
 		}
 
 		public AutohideItem(HashSet<String> chanNames, String boardName, String threadNumber,
@@ -187,6 +281,130 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 			return Pattern.compile(value, Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 		}
 
+		// Unbounded repetition of a group which contains unbounded repetition, like (a+)+ or (.*)*,
+		// makes backtracking exponential when the input doesn't match.
+		// Returns the index of the outer quantifier or -1.
+		public static int findNestedRepetition(String value) {
+			int length = value.length();
+			// Whether the group at each depth contains unbounded repetition
+			boolean[] unboundedGroups = new boolean[length + 1];
+			boolean[] atomicGroups = new boolean[length + 1];
+			int depth = 0;
+			int i = 0;
+			while (i < length) {
+				char c = value.charAt(i);
+				boolean unboundedGroup = false;
+				if (c == '\\') {
+					if (i + 1 < length && value.charAt(i + 1) == 'Q') {
+						int end = value.indexOf("\\E", i + 2);
+						i = end >= 0 ? end + 2 : length;
+					} else {
+						i += 2;
+					}
+				} else if (c == '[') {
+					i = skipCharacterClass(value, i);
+				} else if (c == '(') {
+					i++;
+					boolean atomic = false;
+					if (i < length && value.charAt(i) == '?') {
+						i++;
+						atomic = i < length && value.charAt(i) == '>';
+						if (i + 1 < length && value.charAt(i) == '<' && Character.isLetter(value.charAt(i + 1))) {
+							// Named group
+							int end = value.indexOf('>', i);
+							i = end >= 0 ? end + 1 : length;
+						} else {
+							while (i < length && (Character.isLetter(value.charAt(i)) || value.charAt(i) == '-')) {
+								i++;
+							}
+							if (i < length && value.charAt(i) == '<') {
+								i++;
+							}
+							if (i < length && ":=!>".indexOf(value.charAt(i)) >= 0) {
+								i++;
+							}
+						}
+					}
+					depth++;
+					unboundedGroups[depth] = false;
+					atomicGroups[depth] = atomic;
+					continue;
+				} else if (c == ')') {
+					i++;
+					if (depth > 0) {
+						// Atomic groups don't backtrack into their content
+						unboundedGroup = unboundedGroups[depth] && !atomicGroups[depth];
+						depth--;
+					}
+				} else {
+					i++;
+				}
+				int quantifier = i;
+				boolean unbounded = false;
+				boolean quantified = false;
+				if (i < length) {
+					c = value.charAt(i);
+					if (c == '*' || c == '+') {
+						quantified = true;
+						unbounded = true;
+						i++;
+					} else if (c == '?') {
+						quantified = true;
+						i++;
+					} else if (c == '{') {
+						int end = value.indexOf('}', i);
+						if (end > i) {
+							quantified = true;
+							unbounded = value.charAt(end - 1) == ',';
+							i = end + 1;
+						}
+					}
+				}
+				if (quantified && i < length && (value.charAt(i) == '?' || value.charAt(i) == '+')) {
+					// Possessive quantifiers don't backtrack
+					if (value.charAt(i) == '+') {
+						unbounded = false;
+					}
+					i++;
+				}
+				if (unbounded && unboundedGroup) {
+					return quantifier;
+				}
+				if (unbounded || unboundedGroup) {
+					unboundedGroups[depth] = true;
+				}
+			}
+			return -1;
+		}
+
+		private static int skipCharacterClass(String value, int i) {
+			int length = value.length();
+			int depth = 0;
+			while (i < length) {
+				char c = value.charAt(i);
+				if (c == '\\') {
+					i += 2;
+				} else if (c == '[') {
+					depth++;
+					i++;
+					if (i < length && value.charAt(i) == '^') {
+						i++;
+					}
+					if (i < length && value.charAt(i) == ']') {
+						i++;
+					}
+				} else if (c == ']') {
+					i++;
+					if (--depth == 0) {
+						return i;
+					}
+				} else {
+					i++;
+				}
+			}
+			return i;
+		}
+
 		public void update(HashSet<String> chanNames, String boardName, String threadNumber,
 				boolean optionOriginalPost, boolean optionSage, boolean optionSubject,
 				boolean optionComment, boolean optionName, boolean optionFileName, String value) {
@@ -215,19 +433,177 @@ public class AutohideStorage extends StorageManager.JsonOrgStorage<List<Autohide
 					}
 				}
 			}
+			if (statistics.isSuspended()) {
+				return null;
+			}
+			String result = null;
+			long start = System.nanoTime();
+			statistics.start(start);
+			AutohideStorage.getInstance().onMatchStarted();
 			try {
 				Matcher matcher = pattern.matcher(data);
 				if (matcher.find()) {
-					String result = matcher.group();
+					result = matcher.group();
 					if (StringUtils.isEmpty(result)) {
 						result = value;
 					}
-					return result;
 				}
 			} catch (Exception e) {
 				// Ignore matching exceptions
 			}
-			return null;
+			if (statistics.finish(start, System.nanoTime() - start, data.length(), result != null)) {
+				ConcurrentUtils.HANDLER.post(() -> AutohideStorage.getInstance().onRuleSuspended(this));
+			} else {
+				AutohideStorage.getInstance().onStatisticsChanged();
+			}
+			return result;
+		}
+
+		public Statistics getStatistics() {
+			return statistics;
+		}
+
+		// Matching can't be interrupted, so rules which repeatedly take too long
+		// regardless of the input length are suspended until changed
+		public static class Statistics {
+			private static final long MATCH_TIMEOUT = 50 * 1000000L;
+			private static final long MATCH_TIMEOUT_PER_CHAR = 20 * 1000L;
+			private static final int SUSPEND_TIMEOUT_MATCHES = 5;
+			private static final long MATCH_HANG_TIME = 5000 * 1000000L;
+			private static final long SLOW_MATCH_TIME = 1000000L;
+			private static final int SLOW_MIN_MATCHES = 20;
+
+			private int matches;
+			private int hits;
+			private int timeoutMatches;
+			private long totalTime;
+			private long maxTime;
+			private volatile boolean suspended;
+
+			// Start times of the matches which are running now
+			private long[] runningStarts = new long[4];
+			private int runningCount;
+
+			private synchronized void start(long start) {
+				if (runningCount == runningStarts.length) {
+					long[] runningStarts = new long[this.runningStarts.length * 2];
+					System.arraycopy(this.runningStarts, 0, runningStarts, 0, runningCount);
+					this.runningStarts = runningStarts;
+				}
+				runningStarts[runningCount++] = start;
+			}
+
+			private boolean removeRunning(long start) {
+				for (int i = 0; i < runningCount; i++) {
+					if (runningStarts[i] == start) {
+						runningStarts[i] = runningStarts[--runningCount];
+						return true;
+					}
+				}
+				return false;
+			}
+
+			// Returns true when the rule has just been suspended
+			private synchronized boolean finish(long start, long time, int length, boolean hit) {
+				if (!removeRunning(start)) {
+					// Already counted by watchdog
+					maxTime = Math.max(maxTime, time);
+					return false;
+				}
+				matches++;
+				if (hit) {
+					hits++;
+				}
+				totalTime += time;
+				maxTime = Math.max(maxTime, time);
+				if (!suspended && time >= MATCH_TIMEOUT && time >= MATCH_TIMEOUT_PER_CHAR * length) {
+					timeoutMatches++;
+					if (timeoutMatches >= SUSPEND_TIMEOUT_MATCHES) {
+						suspended = true;
+						return true;
+					}
+				}
+				return false;
+			}
+
+			// Returns true when the rule has just been suspended
+			private synchronized boolean checkRunning(long time) {
+				boolean suspend = false;
+				for (int i = runningCount - 1; i >= 0; i--) {
+					long start = runningStarts[i];
+					if (time - start >= MATCH_HANG_TIME) {
+						removeRunning(start);
+						matches++;
+						timeoutMatches++;
+						totalTime += time - start;
+						maxTime = Math.max(maxTime, time - start);
+						suspend = true;
+					}
+				}
+				if (suspend && !suspended) {
+					suspended = true;
+					return true;
+				}
+				return false;
+			}
+
+			private synchronized boolean isRunning() {
+				return runningCount > 0;
+			}
+
+			private synchronized void copy(Statistics statistics) {
+				synchronized (statistics) {
+					matches = statistics.matches;
+					hits = statistics.hits;
+					timeoutMatches = statistics.timeoutMatches;
+					totalTime = statistics.totalTime;
+					maxTime = statistics.maxTime;
+					suspended = statistics.suspended;
+				}
+			}
+
+			private synchronized JSONObject serialize() throws JSONException {
+				if (matches == 0 && !suspended) {
+					return null;
+				}
+				JSONObject jsonObject = new JSONObject();
+				jsonObject.put(KEY_MATCHES, matches);
+				jsonObject.put(KEY_HITS, hits);
+				jsonObject.put(KEY_TIMEOUT_MATCHES, timeoutMatches);
+				jsonObject.put(KEY_TOTAL_TIME, totalTime);
+				jsonObject.put(KEY_MAX_TIME, maxTime);
+				putJson(jsonObject, KEY_SUSPENDED, suspended);
+				return jsonObject;
+			}
+
+			private synchronized void deserialize(JSONObject jsonObject) {
+				matches = Math.max(0, jsonObject.optInt(KEY_MATCHES));
+				hits = Math.max(0, jsonObject.optInt(KEY_HITS));
+				timeoutMatches = Math.max(0, jsonObject.optInt(KEY_TIMEOUT_MATCHES));
+				totalTime = Math.max(0, jsonObject.optLong(KEY_TOTAL_TIME));
+				maxTime = Math.max(0, jsonObject.optLong(KEY_MAX_TIME));
+				suspended = jsonObject.optBoolean(KEY_SUSPENDED);
+			}
+
+			public boolean isSuspended() {
+				return suspended;
+			}
+
+			public synchronized int getHits() {
+				return hits;
+			}
+
+			public synchronized long getAverageTime() {
+				return matches > 0 ? totalTime / matches : 0;
+			}
+
+			public synchronized long getMaxTime() {
+				return maxTime;
+			}
+
+			public synchronized boolean isSlow() {
+				return suspended || matches >= SLOW_MIN_MATCHES && totalTime / matches >= SLOW_MATCH_TIME;
+			}
 		}
 
 		public enum ReasonSource {NAME, SUBJECT, COMMENT, FILE}
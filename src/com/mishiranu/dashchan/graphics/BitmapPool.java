@@ -0,0 +1,199 @@
+package com.mishiranu.dashchan.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import com.mishiranu.dashchan.C;
+import com.mishiranu.dashchan.content.MainApplication;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class BitmapPool {
+	private static final BitmapPool INSTANCE = new BitmapPool();
+
+	public static BitmapPool getInstance() {
+		return INSTANCE;
+	}
+
+	// Reused bitmap can't be much larger than requested one, otherwise the memory is wasted
+	private static final float MAX_SIZE_FACTOR = 4f;
+	// Thumbnails are kept in memory cache for a long time, so only a close size match is allowed
+	private static final float MAX_SIZE_FACTOR_RETAINED = 1.5f;
+
+	private final TreeMap<Integer, ArrayList<Bitmap>> buckets = new TreeMap<>();
+	private final LinkedHashSet<Bitmap> bitmaps = new LinkedHashSet<>();
+	private final long maxSize;
+
+	private long size;
+
+	private BitmapPool() {
+		maxSize = Runtime.getRuntime().maxMemory() / (MainApplication.getInstance().isLowRam() ? 16 : 8);
+	}
+
+	public interface Decoder {
+		Bitmap decode(BitmapFactory.Options options) throws IOException;
+	}
+
+	private static boolean isSupported() {
+		// Bitmaps of any size can be reused since KitKat only
+		return C.API_KITKAT;
+	}
+
+	private static int getByteCount(int width, int height) {
+		long byteCount = 4L * width * height;
+		return byteCount > Integer.MAX_VALUE ? -1 : (int) byteCount;
+	}
+
+	public Bitmap get(int width, int height) {
+		return get(width, height, MAX_SIZE_FACTOR);
+	}
+
+	private Bitmap get(int width, int height, float maxSizeFactor) {
+		if (!isSupported() || width <= 0 || height <= 0) {
+			return null;
+		}
+		int byteCount = getByteCount(width, height);
+		if (byteCount <= 0) {
+			return null;
+		}
+		synchronized (this) {
+			Map.Entry<Integer, ArrayList<Bitmap>> entry = buckets.ceilingEntry(byteCount);
+			if (entry == null || entry.getKey() > (long) (maxSizeFactor * byteCount)) {
+				return null;
+			}
+			ArrayList<Bitmap> bucket = entry.getValue();
+			Bitmap bitmap = bucket.remove(bucket.size() - 1);
+			if (bucket.isEmpty()) {
+				buckets.remove(entry.getKey());
+			}
+			bitmaps.remove(bitmap);
+			size -= entry.getKey();
+			return bitmap;
+		}
+	}
+
+	public void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		if (!isSupported() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+			bitmap.recycle();
+			return;
+		}
+		int byteCount = bitmap.getAllocationByteCount();
+		if (byteCount > maxSize / 2) {
+			bitmap.recycle();
+			return;
+		}
+		synchronized (this) {
+			if (!bitmaps.add(bitmap)) {
+				return;
+			}
+			ArrayList<Bitmap> bucket = buckets.get(byteCount);
+			if (bucket == null) {
+				bucket = new ArrayList<>();
+				buckets.put(byteCount, bucket);
+			}
+			bucket.add(bitmap);
+			size += byteCount;
+			Iterator<Bitmap> iterator = bitmaps.iterator();
+			while (size > maxSize && iterator.hasNext()) {
+				Bitmap oldBitmap = iterator.next();
+				iterator.remove();
+				int oldByteCount = oldBitmap.getAllocationByteCount();
+				ArrayList<Bitmap> oldBucket = buckets.get(oldByteCount);
+				oldBucket.remove(oldBitmap);
+				if (oldBucket.isEmpty()) {
+					buckets.remove(oldByteCount);
+				}
+				size -= oldByteCount;
+				oldBitmap.recycle();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		for (Bitmap bitmap : bitmaps) {
+			bitmap.recycle();
+		}
+		bitmaps.clear();
+		buckets.clear();
+		size = 0;
+	}
+
+	public Bitmap decode(BitmapFactory.Options options, int width, int height, Decoder decoder) throws IOException {
+		return decode(options, width, height, MAX_SIZE_FACTOR, decoder);
+	}
+
+	private Bitmap decode(BitmapFactory.Options options, int width, int height,
+			float maxSizeFactor, Decoder decoder) throws IOException {
+		Bitmap inBitmap = options.inJustDecodeBounds ? null : get(width, height, maxSizeFactor);
+		if (inBitmap != null) {
+			options.inBitmap = inBitmap;
+			options.inMutable = true;
+			try {
+				Bitmap bitmap = decoder.decode(options);
+				if (bitmap != inBitmap) {
+					put(inBitmap);
+				}
+				return bitmap;
+			} catch (IllegalArgumentException e) {
+				// Bitmap can't be reused for this image
+				put(inBitmap);
+			} finally {
+				options.inBitmap = null;
+			}
+		}
+		return decoder.decode(options);
+	}
+
+	private static int getSampledSize(int size, int inSampleSize) {
+		return inSampleSize > 1 ? (size + inSampleSize - 1) / inSampleSize : size;
+	}
+
+	public Bitmap decode(BitmapFactory.Options options, Decoder decoder) throws IOException {
+		return decode(options, MAX_SIZE_FACTOR, decoder);
+	}
+
+	private Bitmap decode(BitmapFactory.Options options, float maxSizeFactor, Decoder decoder) throws IOException {
+		if (!isSupported()) {
+			return decoder.decode(options);
+		}
+		BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+		boundsOptions.inJustDecodeBounds = true;
+		decoder.decode(boundsOptions);
+		int width = getSampledSize(boundsOptions.outWidth, options.inSampleSize);
+		int height = getSampledSize(boundsOptions.outHeight, options.inSampleSize);
+		return decode(options, width, height, maxSizeFactor, decoder);
+	}
+
+	public Bitmap decode(BitmapFactory.Options options, int width, int height, int inSampleSize,
+			Decoder decoder) throws IOException {
+		return decode(options, getSampledSize(width, inSampleSize), getSampledSize(height, inSampleSize), decoder);
+	}
+
+	public Bitmap decodeByteArray(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return decode(new BitmapFactory.Options(), MAX_SIZE_FACTOR_RETAINED,
+					o -> BitmapFactory.decodeByteArray(bytes, 0, bytes.length, o));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public Bitmap decodeFile(File file) {
+		String path = file.getPath();
+		try {
+			return decode(new BitmapFactory.Options(), MAX_SIZE_FACTOR_RETAINED, o -> BitmapFactory.decodeFile(path, o));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -11,28 +11,45 @@ import android.graphics.RectF;
 import android.view.View;
 import androidx.annotation.NonNull;
 import com.mishiranu.dashchan.C;
+import com.mishiranu.dashchan.content.MainApplication;
 import com.mishiranu.dashchan.content.async.ExecutorTask;
 import com.mishiranu.dashchan.content.model.FileHolder;
 import com.mishiranu.dashchan.util.ConcurrentUtils;
 import com.mishiranu.dashchan.util.GraphicsUtils;
 import com.mishiranu.dashchan.util.LruCache;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.concurrent.Executor;
 
 public class DecoderDrawable extends BaseDrawable {
-	private static final Executor EXECUTOR = ConcurrentUtils.newSingleThreadPool(20000, "DecoderDrawable", null);
+	private static final int THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+	private static final Executor EXECUTOR = ConcurrentUtils.newThreadPool(0, THREADS, 20000,
+			"DecoderDrawable", null);
 	private static final Bitmap NULL_BITMAP = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
 
 	private static final int FRAGMENT_SIZE = 512;
 	private static final int MIN_MAX_ENTRIES = 16;
 
 	private final Bitmap scaledBitmap;
-	private final BitmapRegionDecoder decoder;
+	private final FileHolder fileHolder;
+
+	// Region decoder serializes decoding internally, so every worker needs its own instance
+	private final ArrayList<BitmapRegionDecoder> idleDecoders = new ArrayList<>();
+	private final int maxDecoders;
+	private int decodersCount;
+	private boolean decodersRecycled;
 
 	private final LinkedHashMap<Integer, DecodeTask> tasks = new LinkedHashMap<>();
-	private final LruCache<Integer, Bitmap> fragments = new LruCache<>(MIN_MAX_ENTRIES, (k, v) -> v.recycle());
+	private final ArrayList<DecodeTask> pendingTasks = new ArrayList<>();
+	private final HashSet<Integer> visibleKeys = new HashSet<>();
+	private int runningTasks;
+	private int centerX;
+	private int centerY;
+	private final LruCache<Integer, Bitmap> fragments = new LruCache<>(MIN_MAX_ENTRIES,
+			(k, v) -> releaseFragment(v));
 
 	private final int width;
 	private final int height;
@@ -51,7 +68,10 @@ public class DecoderDrawable extends BaseDrawable {
 		if (!fileHolder.isImageRegionDecoderSupported()) {
 			throw new IOException("Decoder drawable is not supported");
 		}
-		decoder = BitmapRegionDecoder.newInstance(fileHolder.openInputStream(), false);
+		this.fileHolder = fileHolder;
+		idleDecoders.add(BitmapRegionDecoder.newInstance(fileHolder.openInputStream(), false));
+		decodersCount = 1;
+		maxDecoders = MainApplication.getInstance().isLowRam() ? 1 : THREADS;
 		width = fileHolder.getImageWidth();
 		height = fileHolder.getImageHeight();
 		rotation = fileHolder.getImageRotation();
@@ -99,11 +119,13 @@ public class DecoderDrawable extends BaseDrawable {
 			drawScaled = true;
 		}
 		int size = FRAGMENT_SIZE * scale;
+		visibleKeys.clear();
 		if (enabled && !drawScaled) {
 			for (int y = 0; y < height; y += size) {
 				for (int x = 0; x < width; x += size) {
 					if (rect.intersects(x, y, x + size, y + size)) {
 						int key = calculateKey(x, y, scale);
+						visibleKeys.add(key);
 						Bitmap fragment = fragments.get(key);
 						boolean drawScaledFragment = false;
 						if (fragment != null) {
@@ -117,8 +139,8 @@ public class DecoderDrawable extends BaseDrawable {
 							DecodeTask task = tasks.get(key);
 							if (task == null) {
 								task = new DecodeTask(key, x, y, scale);
-								task.execute(EXECUTOR);
 								tasks.put(key, task);
+								pendingTasks.add(task);
 							}
 							drawScaledFragment = true;
 						}
@@ -139,12 +161,85 @@ public class DecoderDrawable extends BaseDrawable {
 		}
 		maxEntries = Math.max(MIN_MAX_ENTRIES, maxEntries);
 		fragments.setMaxEntries(maxEntries);
-		int cancel = tasks.size() - maxEntries;
-		if (cancel > 0) {
+		if (!tasks.isEmpty()) {
 			Iterator<DecodeTask> iterator = tasks.values().iterator();
-			while (iterator.hasNext() && cancel-- > 0) {
-				iterator.next().cancel();
-				iterator.remove();
+			while (iterator.hasNext()) {
+				DecodeTask task = iterator.next();
+				if (!visibleKeys.contains(task.key)) {
+					if (!pendingTasks.remove(task)) {
+						task.cancel();
+					}
+					iterator.remove();
+				}
+			}
+			centerX = rect.centerX();
+			centerY = rect.centerY();
+			scheduleTasks();
+		}
+	}
+
+	private void scheduleTasks() {
+		while (runningTasks < maxDecoders && !pendingTasks.isEmpty()) {
+			int index = 0;
+			long minDistance = Long.MAX_VALUE;
+			for (int i = 0; i < pendingTasks.size(); i++) {
+				long distance = pendingTasks.get(i).getDistance(centerX, centerY);
+				if (distance < minDistance) {
+					minDistance = distance;
+					index = i;
+				}
+			}
+			DecodeTask task = pendingTasks.remove(index);
+			runningTasks++;
+			task.execute(EXECUTOR);
+		}
+	}
+
+	private void onTaskFinished() {
+		runningTasks--;
+		if (!recycled) {
+			scheduleTasks();
+		}
+	}
+
+	private BitmapRegionDecoder obtainDecoder() throws IOException, InterruptedException {
+		synchronized (idleDecoders) {
+			while (true) {
+				if (decodersRecycled) {
+					return null;
+				}
+				if (!idleDecoders.isEmpty()) {
+					return idleDecoders.remove(idleDecoders.size() - 1);
+				}
+				if (decodersCount < maxDecoders) {
+					decodersCount++;
+					break;
+				}
+				idleDecoders.wait();
+			}
+		}
+		boolean success = false;
+		try {
+			BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(fileHolder.openInputStream(), false);
+			success = true;
+			return decoder;
+		} finally {
+			if (!success) {
+				synchronized (idleDecoders) {
+					decodersCount--;
+					idleDecoders.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void releaseDecoder(BitmapRegionDecoder decoder) {
+		synchronized (idleDecoders) {
+			if (decodersRecycled) {
+				decoder.recycle();
+			} else {
+				idleDecoders.add(decoder);
+				idleDecoders.notifyAll();
 			}
 		}
 	}
@@ -165,15 +260,21 @@ public class DecoderDrawable extends BaseDrawable {
 
 	private void clear() {
 		for (DecodeTask task : tasks.values()) {
-			task.cancel();
+			if (!pendingTasks.contains(task)) {
+				task.cancel();
+			}
 		}
 		tasks.clear();
-		for (Bitmap fragment : fragments.values()) {
-			fragment.recycle();
-		}
+		pendingTasks.clear();
 		fragments.clear();
 	}
 
+	private static void releaseFragment(Bitmap fragment) {
+		if (fragment != NULL_BITMAP) {
+			BitmapPool.getInstance().put(fragment);
+		}
+	}
+
 	public void setEnabled(boolean enabled) {
 		if (this.enabled != enabled) {
 			this.enabled = enabled;
@@ -191,12 +292,17 @@ public class DecoderDrawable extends BaseDrawable {
 		if (!recycled) {
 			recycled = true;
 			clear();
-			synchronized (this) {
-				decoder.recycle();
+			synchronized (idleDecoders) {
+				decodersRecycled = true;
+				for (BitmapRegionDecoder decoder : idleDecoders) {
+					decoder.recycle();
+				}
+				idleDecoders.clear();
+				idleDecoders.notifyAll();
 			}
 		}
 		if (recycleScaled) {
-			scaledBitmap.recycle();
+			BitmapPool.getInstance().put(scaledBitmap);
 		}
 	}
 
@@ -206,6 +312,8 @@ public class DecoderDrawable extends BaseDrawable {
 
 	private class DecodeTask extends ExecutorTask<Void, Bitmap> {
 		private final int key;
+		private final int fragmentCenterX;
+		private final int fragmentCenterY;
 		private final Rect rect;
 		private final BitmapFactory.Options options = new BitmapFactory.Options();
 
@@ -215,6 +323,8 @@ public class DecoderDrawable extends BaseDrawable {
 			this.key = key;
 			rect = new Rect(x, y, Math.min(x + FRAGMENT_SIZE * scale, width),
 					Math.min(y + FRAGMENT_SIZE * scale, height));
+			fragmentCenterX = rect.centerX();
+			fragmentCenterY = rect.centerY();
 			if (rotation != 0) {
 				Matrix matrix = new Matrix();
 				matrix.setRotate(rotation);
@@ -232,21 +342,40 @@ public class DecoderDrawable extends BaseDrawable {
 			options.inSampleSize = scale;
 		}
 
+		public long getDistance(int x, int y) {
+			long dx = fragmentCenterX - x;
+			long dy = fragmentCenterY - y;
+			return dx * dx + dy * dy;
+		}
+
 		@Override
 		protected Bitmap run() {
+			BitmapRegionDecoder decoder = null;
 			try {
-				synchronized (DecoderDrawable.this) {
-					Bitmap bitmap = decoder.decodeRegion(rect, options);
-					bitmap = GraphicsUtils.applyRotation(bitmap, rotation);
-					if (gammaCorrection != null) {
-						bitmap = GraphicsUtils.applyGammaCorrection(bitmap, gammaCorrection);
-					}
-					return bitmap;
+				decoder = obtainDecoder();
+				if (decoder == null || isCancelled()) {
+					return null;
 				}
+				BitmapRegionDecoder regionDecoder = decoder;
+				// Region decoder doesn't resize reused bitmaps, so tiles are decoded into new ones,
+				// which are mutable to be reused by other decoders later
+				options.inMutable = true;
+				Bitmap bitmap = regionDecoder.decodeRegion(rect, options);
+				bitmap = GraphicsUtils.applyRotation(bitmap, rotation);
+				if (gammaCorrection != null) {
+					bitmap = GraphicsUtils.applyGammaCorrection(bitmap, gammaCorrection);
+				}
+				return bitmap;
+			} catch (InterruptedException e) {
+				return null;
 			} catch (Throwable t) {
 				error = true;
 				t.printStackTrace();
 				return null;
+			} finally {
+				if (decoder != null) {
+					releaseDecoder(decoder);
+				}
 			}
 		}
 
@@ -260,14 +389,16 @@ public class DecoderDrawable extends BaseDrawable {
 
 		@Override
 		protected void onCancel(Bitmap bitmap) {
-			if (bitmap != null) {
-				bitmap.recycle();
-			}
+			BitmapPool.getInstance().put(bitmap);
+			onTaskFinished();
 		}
 
 		@Override
 		protected void onComplete(Bitmap bitmap) {
-			tasks.remove(key);
+			if (tasks.get(key) == this) {
+				tasks.remove(key);
+			}
+			onTaskFinished();
 			if (error) {
 				recycle(false);
 			} else {
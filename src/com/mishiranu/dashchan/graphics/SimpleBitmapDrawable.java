@@ -41,7 +41,7 @@ public class SimpleBitmapDrawable extends BaseDrawable {
 
 	public void recycle() {
 		if (allowRecycle) {
-			bitmap.recycle();
+			BitmapPool.getInstance().put(bitmap);
 		}
 	}
 }
@@ -3,102 +3,122 @@ package com.mishiranu.dashchan.media;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.SystemClock;
+import android.os.ParcelFileDescriptor;
 import androidx.annotation.NonNull;
 import com.mishiranu.dashchan.content.model.FileHolder;
-import com.mishiranu.dashchan.graphics.BaseDrawable;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.util.GraphicsUtils;
 import com.mishiranu.dashchan.util.IOUtils;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.CRC32;
 
-public class AnimatedPngDecoder implements Runnable {
-	private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+public class AnimatedPngDecoder implements FrameProducer.Source {
 	private static final byte[] IEND_CHUNK = {0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xae, 0x42, 0x60, (byte) 0x82};
+	private static final byte[] IDAT_NAME = {'I', 'D', 'A', 'T'};
 
-	private final Bitmap bitmap;
-	private final Canvas canvas;
+	private final FileInputStream input;
+	private final FileChannel channel;
+	private final byte[] head;
 	private final Frame[] frames;
-	private final int duration;
-
-	private long startTime;
+	private final Float gammaCorrection;
+	private final FrameProducer frameProducer;
 
 	private static class Frame {
-		public byte[] bytes;
-		public Bitmap bitmap;
-
 		public final int width, height;
 		public final int x, y;
-		public final int startTime;
+		public final int delay;
 
 		public final boolean restoreBackground;
 		public final boolean restorePrevious;
 		public final boolean blendOver;
 
-		public Frame(int width, int height, int x, int y, int startTime, boolean restoreBackground,
+		// Image data chunks are read from the file on demand
+		public long[] offsets = new long[1];
+		public int[] lengths = new int[1];
+		public int[] crcs = new int[1];
+		public int chunksCount;
+
+		public Frame(int width, int height, int x, int y, int delay, boolean restoreBackground,
 				boolean restorePrevious, boolean blendOver) {
 			this.width = width;
 			this.height = height;
 			this.x = x;
 			this.y = y;
-			this.startTime = startTime;
+			this.delay = delay;
 			this.restoreBackground = restoreBackground;
 			this.restorePrevious = restorePrevious;
 			this.blendOver = blendOver;
 		}
+
+		public void addChunk(long offset, int length, int crc) {
+			if (chunksCount == offsets.length) {
+				int size = chunksCount * 2;
+				long[] offsets = new long[size];
+				int[] lengths = new int[size];
+				int[] crcs = new int[size];
+				System.arraycopy(this.offsets, 0, offsets, 0, chunksCount);
+				System.arraycopy(this.lengths, 0, lengths, 0, chunksCount);
+				System.arraycopy(this.crcs, 0, crcs, 0, chunksCount);
+				this.offsets = offsets;
+				this.lengths = lengths;
+				this.crcs = crcs;
+			}
+			offsets[chunksCount] = offset;
+			lengths[chunksCount] = length;
+			crcs[chunksCount] = crc;
+			chunksCount++;
+		}
 	}
 
 	public AnimatedPngDecoder(FileHolder fileHolder) throws IOException {
-		// Transform APNG to multiple PNG images and decode them
+		// Index frame chunks, every frame will be transformed to a single PNG image when needed
 		byte[] buffer = new byte[8192];
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ByteArrayOutputStream headOutput = new ByteArrayOutputStream();
 		boolean validFile = false;
-		byte[] head = null;
 		Frame currentFrame = null;
 		Frame[] frames = null;
 		int framesCount = 0;
-		int totalTime = 0;
+		long position = 0;
 		CRC32 crc32 = new CRC32();
 		try (InputStream input = new BufferedInputStream(fileHolder.openInputStream())) {
 			if (!IOUtils.readExactlyCheck(input, buffer, 0, 8)) {
 				throw new IOException();
 			}
-			output.write(buffer, 0, 8);
+			headOutput.write(buffer, 0, 8);
+			position += 8;
 			while (true) {
 				if (!IOUtils.readExactlyCheck(input, buffer, 0, 8)) {
 					throw new IOException();
 				}
+				position += 8;
 				int length = IOUtils.bytesToInt(false, 0, 4, buffer);
 				if (length < 0) {
 					break;
 				}
-				length += 4;
 				String name = new String(buffer, 4, 4);
-				if (GraphicsUtils.isUselessPngChunk(name)) {
-					if (!IOUtils.skipExactlyCheck(input, length)) {
-						throw new IOException();
-					}
-					continue;
+				if ("IEND".equals(name)) {
+					validFile = true;
+					break;
 				}
 				switch (name) {
 					case "acTL": {
-						if (length != 12) {
+						if (length != 8) {
 							throw new IOException();
 						}
 						if (!IOUtils.readExactlyCheck(input, buffer, 0, 12)) {
 							throw new IOException();
 						}
+						position += 12;
 						int totalFramesCount = IOUtils.bytesToInt(false, 0, 4, buffer);
 						if (totalFramesCount <= 0) {
 							throw new IOException();
@@ -113,18 +133,13 @@ public class AnimatedPngDecoder implements Runnable {
 						if (framesCount == frames.length) {
 							throw new IOException();
 						}
-						if (length != 30) {
+						if (length != 26) {
 							throw new IOException();
 						}
 						if (!IOUtils.readExactlyCheck(input, buffer, 0, 30)) {
 							throw new IOException();
 						}
-						if (currentFrame == null) {
-							head = output.toByteArray();
-						} else {
-							currentFrame.bytes = output.toByteArray();
-						}
-						output.reset();
+						position += 30;
 						int width = IOUtils.bytesToInt(false, 4, 4, buffer);
 						int height = IOUtils.bytesToInt(false, 8, 4, buffer);
 						int x = IOUtils.bytesToInt(false, 12, 4, buffer);
@@ -143,40 +158,35 @@ public class AnimatedPngDecoder implements Runnable {
 						boolean restoreBackground = dispose == 1;
 						boolean restorePrevious = dispose == 2;
 						boolean blendOver = blend == 1;
-						currentFrame = new Frame(width, height, x, y, totalTime,
+						currentFrame = new Frame(width, height, x, y, delay,
 								restoreBackground, restorePrevious, blendOver);
-						totalTime += delay;
 						frames[framesCount++] = currentFrame;
 						continue;
 					}
 					case "fdAT": {
-						if (frames == null) {
+						if (currentFrame == null || length < 4) {
 							throw new IOException();
 						}
-						IOUtils.intToBytes(length - 8, false, 0, 4, buffer);
-						output.write(buffer, 0, 4);
-						@SuppressWarnings("CharsetObjectCanBeUsed")
-						byte[] nameBytes = "IDAT".getBytes("ISO-8859-1");
-						output.write(nameBytes);
-						crc32.update(nameBytes);
+						// Sequence number is dropped, so CRC must be calculated for IDAT chunk
 						if (!IOUtils.skipExactlyCheck(input, 4)) {
 							throw new IOException();
 						}
-						length -= 8;
-						while (length > 0) {
-							int count = input.read(buffer, 0, Math.min(buffer.length, length));
+						long offset = position + 4;
+						crc32.update(IDAT_NAME);
+						int left = length - 4;
+						while (left > 0) {
+							int count = input.read(buffer, 0, Math.min(buffer.length, left));
 							if (count == -1) {
 								throw new IOException();
 							}
-							output.write(buffer, 0, count);
 							crc32.update(buffer, 0, count);
-							length -= count;
+							left -= count;
 						}
 						if (!IOUtils.skipExactlyCheck(input, 4)) {
 							throw new IOException();
 						}
-						IOUtils.intToBytes((int) crc32.getValue(), false, 0, 4, buffer);
-						output.write(buffer, 0, 4);
+						position += length + 4;
+						currentFrame.addChunk(offset, length - 4, (int) crc32.getValue());
 						crc32.reset();
 						continue;
 					}
@@ -184,158 +194,172 @@ public class AnimatedPngDecoder implements Runnable {
 						if (frames == null) {
 							throw new IOException();
 						}
-						break;
+						if (!IOUtils.skipExactlyCheck(input, length)) {
+							throw new IOException();
+						}
+						if (!IOUtils.readExactlyCheck(input, buffer, 0, 4)) {
+							throw new IOException();
+						}
+						// Default image is not a part of animation when it goes before the first fcTL
+						if (currentFrame != null) {
+							currentFrame.addChunk(position, length, IOUtils.bytesToInt(false, 0, 4, buffer));
+						}
+						position += length + 4;
+						continue;
 					}
 				}
-				output.write(buffer, 0, 8);
-				while (length > 0) {
-					int count = input.read(buffer, 0, Math.min(buffer.length, length));
-					output.write(buffer, 0, count);
-					length -= count;
-				}
-				if ("IEND".equals(name)) {
-					if (head == null) {
-						throw new IOException();
+				if (framesCount == 0 && !GraphicsUtils.isUselessPngChunk(name)) {
+					headOutput.write(buffer, 0, 8);
+					int left = length + 4;
+					while (left > 0) {
+						int count = input.read(buffer, 0, Math.min(buffer.length, left));
+						if (count == -1) {
+							throw new IOException();
+						}
+						headOutput.write(buffer, 0, count);
+						left -= count;
 					}
-					currentFrame.bytes = output.toByteArray();
-					validFile = true;
-					break;
+				} else if (!IOUtils.skipExactlyCheck(input, length + 4)) {
+					throw new IOException();
 				}
+				position += length + 4;
 			}
 		}
-		if (!validFile) {
-			throw new IOException();
-		}
-		if (framesCount != frames.length) {
+		if (!validFile || frames == null || framesCount != frames.length) {
 			throw new IOException();
 		}
 		for (Frame frame : frames) {
-			if (frame.bytes == null) {
+			if (frame.chunksCount == 0) {
 				throw new IOException();
 			}
 		}
-		try {
-			for (Frame frame : frames) {
-				IOUtils.intToBytes(frame.width, false, 16, 4, head);
-				IOUtils.intToBytes(frame.height, false, 20, 4, head);
-				crc32.update(head, 12, 17);
-				IOUtils.intToBytes((int) crc32.getValue(), false, 29, 4, head);
-				crc32.reset();
-				frame.bitmap = BitmapFactory.decodeStream(new FrameInputStream(head, frame));
-				Float gammaCorrection = fileHolder.getImageGammaCorrectionForSkia();
-				if (gammaCorrection != null) {
-					frame.bitmap = GraphicsUtils.applyGammaCorrection(frame.bitmap, gammaCorrection);
-				}
-				if (frame.bitmap == null) {
-					recycleFrames(frames);
-					throw new IOException();
-				}
-			}
-			bitmap = Bitmap.createBitmap(frames[0].width, frames[0].height, Bitmap.Config.ARGB_8888);
-			canvas = new Canvas(bitmap);
-		} catch (OutOfMemoryError e) {
-			recycleFrames(frames);
-			throw new IOException(e);
+		head = headOutput.toByteArray();
+		// IHDR chunk must go first
+		if (head.length < 33 || !"IHDR".equals(new String(head, 12, 4))) {
+			throw new IOException();
 		}
 		this.frames = frames;
-		duration = totalTime;
-		startTime = SystemClock.elapsedRealtime();
-	}
-
-	private static void recycleFrames(Frame[] frames) {
-		for (Frame frame : frames) {
-			if (frame.bitmap != null) {
-				frame.bitmap.recycle();
-				frame.bitmap = null;
-			}
+		gammaCorrection = fileHolder.getImageGammaCorrectionForSkia();
+		ParcelFileDescriptor descriptor = fileHolder.openFileDescriptor();
+		input = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+		channel = input.getChannel();
+		try {
+			frameProducer = new FrameProducer(this, frames[0].width, frames[0].height);
+		} catch (IOException e) {
+			IOUtils.close(input);
+			throw e;
 		}
 	}
 
-	private static class FrameInputStream extends InputStream {
-		private final byte[] head;
+	private class FrameInputStream extends InputStream {
 		private final Frame frame;
+		private final byte[] head;
+		private final byte[] chunkHead = new byte[8];
 
-		private int position;
+		// Segments: head, then chunk head, data and CRC for every chunk, then IEND chunk
+		private int segment;
+		private int segmentPosition;
 
-		private int getTotalCount() {
-			return head.length + frame.bytes.length + IEND_CHUNK.length;
+		public FrameInputStream(Frame frame) {
+			this.frame = frame;
+			head = AnimatedPngDecoder.this.head.clone();
+			IOUtils.intToBytes(frame.width, false, 16, 4, head);
+			IOUtils.intToBytes(frame.height, false, 20, 4, head);
+			CRC32 crc32 = new CRC32();
+			crc32.update(head, 12, 17);
+			IOUtils.intToBytes((int) crc32.getValue(), false, 29, 4, head);
+			System.arraycopy(IDAT_NAME, 0, chunkHead, 4, 4);
 		}
 
-		public FrameInputStream(byte[] head, Frame frame) {
-			this.head = head;
-			this.frame = frame;
+		private int getSegmentsCount() {
+			return 3 * frame.chunksCount + 2;
 		}
 
 		@Override
-		public int read() {
-			int position = this.position;
-			if (position < head.length) {
-				this.position++;
-				return head[position] & 0xff;
-			}
-			position -= head.length;
-			if (position < frame.bytes.length) {
-				this.position++;
-				return frame.bytes[position] & 0xff;
-			}
-			position -= frame.bytes.length;
-			if (position < IEND_CHUNK.length) {
-				this.position++;
-				return IEND_CHUNK[position] & 0xff;
-			}
-			return -1;
+		public int read() throws IOException {
+			byte[] buffer = new byte[1];
+			return read(buffer, 0, 1) == 1 ? buffer[0] & 0xff : -1;
 		}
 
 		@Override
-		public int read(@NonNull byte[] buffer) {
+		public int read(@NonNull byte[] buffer) throws IOException {
 			return read(buffer, 0, buffer.length);
 		}
 
 		@Override
-		public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) {
-			int position = this.position;
-			if (position < head.length) {
-				return copy(buffer, byteOffset, byteCount, head, position);
-			}
-			position -= head.length;
-			if (position < frame.bytes.length) {
-				return copy(buffer, byteOffset, byteCount, frame.bytes, position);
+		public int read(@NonNull byte[] buffer, int byteOffset, int byteCount) throws IOException {
+			if (byteCount == 0) {
+				return 0;
 			}
-			position -= frame.bytes.length;
-			if (position < IEND_CHUNK.length) {
-				return copy(buffer, byteOffset, byteCount, IEND_CHUNK, position);
+			int segmentsCount = getSegmentsCount();
+			while (segment < segmentsCount) {
+				int count;
+				if (segment == 0) {
+					count = copy(buffer, byteOffset, byteCount, head);
+				} else if (segment == segmentsCount - 1) {
+					count = copy(buffer, byteOffset, byteCount, IEND_CHUNK);
+				} else {
+					int chunk = (segment - 1) / 3;
+					switch ((segment - 1) % 3) {
+						case 0: {
+							IOUtils.intToBytes(frame.lengths[chunk], false, 0, 4, chunkHead);
+							count = copy(buffer, byteOffset, byteCount, chunkHead);
+							break;
+						}
+						case 1: {
+							int left = frame.lengths[chunk] - segmentPosition;
+							count = 0;
+							if (left > 0) {
+								count = channel.read(ByteBuffer.wrap(buffer, byteOffset,
+										Math.min(left, byteCount)), frame.offsets[chunk] + segmentPosition);
+								if (count <= 0) {
+									throw new IOException();
+								}
+								segmentPosition += count;
+							}
+							break;
+						}
+						case 2: {
+							byte[] crc = IOUtils.intToBytes(frame.crcs[chunk], false, 0, 4, new byte[4]);
+							count = copy(buffer, byteOffset, byteCount, crc);
+							break;
+						}
+						default: {
+							throw new IllegalStateException();
+						}
+					}
+				}
+				if (count > 0) {
+					return count;
+				}
+				segment++;
+				segmentPosition = 0;
 			}
 			return -1;
 		}
 
-		private int copy(byte[] buffer, int byteOffset, int byteCount, byte[] from, int position) {
-			int count = Math.min(from.length - position, byteCount);
-			System.arraycopy(from, position, buffer, byteOffset, count);
-			this.position += count;
-			return count;
-		}
-
-		@Override
-		public long skip(long byteCount) {
-			int totalCount = getTotalCount();
-			int left = totalCount - position;
-			if (left < byteCount) {
-				position = totalCount;
-				return left;
-			} else {
-				position += byteCount;
-				return byteCount;
+		private int copy(byte[] buffer, int byteOffset, int byteCount, byte[] from) {
+			int count = Math.min(from.length - segmentPosition, byteCount);
+			if (count > 0) {
+				System.arraycopy(from, segmentPosition, buffer, byteOffset, count);
+				segmentPosition += count;
 			}
-		}
-
-		@Override
-		public int available() {
-			return getTotalCount() - position;
+			return Math.max(count, 0);
 		}
 	}
 
 	public void recycle() {
-		recycleFrames(frames);
+		frameProducer.recycle();
+	}
+
+	@Override
+	public void release() {
+		IOUtils.close(input);
+	}
+
+	@Override
+	public int getFramesCount() {
+		return frames.length;
 	}
 
 	private int lastIndex = -1;
@@ -348,7 +372,21 @@ public class AnimatedPngDecoder implements Runnable {
 
 	private final Paint drawPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-	private void drawImage(int index) {
+	private Bitmap decodeFrame(Frame frame) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inMutable = true;
+		Bitmap bitmap = BitmapPool.getInstance().decode(options, frame.width, frame.height,
+				o -> BitmapFactory.decodeStream(new FrameInputStream(frame), null, o));
+		if (bitmap != null && gammaCorrection != null) {
+			bitmap = GraphicsUtils.applyGammaCorrection(bitmap, gammaCorrection);
+		}
+		if (bitmap == null) {
+			throw new IOException();
+		}
+		return bitmap;
+	}
+
+	private void drawImage(Bitmap bitmap, Canvas canvas, int index) throws IOException {
 		if (index > 0) {
 			Frame frame = frames[index - 1];
 			if (frame.restoreBackground) {
@@ -371,104 +409,42 @@ public class AnimatedPngDecoder implements Runnable {
 		} else {
 			hasPrevious = false;
 		}
-		if (!frame.blendOver) {
-			canvas.drawRect(frame.x, frame.y, frame.x + frame.width, frame.y + frame.height, clearPaint);
+		Bitmap frameBitmap = decodeFrame(frame);
+		try {
+			if (!frame.blendOver) {
+				canvas.drawRect(frame.x, frame.y, frame.x + frame.width, frame.y + frame.height, clearPaint);
+			}
+			canvas.drawBitmap(frameBitmap, frame.x, frame.y, drawPaint);
+		} finally {
+			BitmapPool.getInstance().put(frameBitmap);
 		}
-		canvas.drawBitmap(frame.bitmap, frame.x, frame.y, drawPaint);
 	}
 
-	private int draw() {
-		int position = 0;
-		if (duration > 0) {
-			long time = SystemClock.elapsedRealtime();
-			if (startTime == 0) {
-				startTime = time;
-			}
-			position = (int) ((time - startTime) % duration);
-		}
-		int index = 0;
-		int delay = -1;
-		int count = frames.length;
-		for (int i = 0; i < count; i++) {
-			if (position >= frames[i].startTime) {
-				index = i;
-			} else {
-				break;
-			}
-		}
-		if (count > 1) {
-			delay = (index + 1 < count ? frames[index + 1].startTime : duration) - position;
-		}
-		if (lastIndex != index) {
-			if (index > lastIndex) {
+	@Override
+	public int drawFrame(Bitmap bitmap, int index) {
+		Canvas canvas = new Canvas(bitmap);
+		try {
+			if (lastIndex >= 0 && index > lastIndex) {
 				for (int i = lastIndex + 1; i <= index; i++) {
-					drawImage(i);
+					drawImage(bitmap, canvas, i);
+					lastIndex = i;
 				}
 			} else {
 				hasPrevious = false;
 				bitmap.eraseColor(0x00000000);
 				for (int i = 0; i <= index; i++) {
-					drawImage(i);
+					drawImage(bitmap, canvas, i);
+					lastIndex = i;
 				}
 			}
-			lastIndex = index;
+		} catch (IOException | OutOfMemoryError e) {
+			lastIndex = -1;
+			return -1;
 		}
-		return delay;
+		return frames[index].delay;
 	}
 
-	private Drawable drawable;
-
 	public Drawable getDrawable() {
-		if (drawable == null) {
-			drawable = new BaseDrawable() {
-				private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
-
-				@Override
-				public int getIntrinsicWidth() {
-					return frames[0].width;
-				}
-
-				@Override
-				public int getIntrinsicHeight() {
-					return frames[0].height;
-				}
-
-				@Override
-				public void setColorFilter(ColorFilter colorFilter) {
-					paint.setColorFilter(colorFilter);
-				}
-
-				@Override
-				public void setAlpha(int alpha) {
-					paint.setAlpha(alpha);
-				}
-
-				@Override
-				public void draw(@NonNull Canvas canvas) {
-					Rect bounds = getBounds();
-					canvas.save();
-					canvas.scale((float) bounds.width() / getIntrinsicWidth(),
-							(float) bounds.height() / getIntrinsicHeight());
-					int delay = AnimatedPngDecoder.this.draw();
-					canvas.drawBitmap(bitmap, 0, 0, paint);
-					canvas.restore();
-					if (delay >= 0) {
-						delay -= 20;
-						if (delay > 0) {
-							delay = Math.min(delay, 500);
-							HANDLER.postDelayed(AnimatedPngDecoder.this, delay);
-						} else {
-							invalidateSelf();
-						}
-					}
-				}
-			};
-		}
-		return drawable;
-	}
-
-	@Override
-	public void run() {
-		drawable.invalidateSelf();
+		return frameProducer.getDrawable();
 	}
 }
@@ -0,0 +1,240 @@
+package com.mishiranu.dashchan.media;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import com.mishiranu.dashchan.graphics.BaseDrawable;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+public class FrameProducer {
+	private static final int THREADS = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+	private static final Executor EXECUTOR = ConcurrentUtils.newThreadPool(0, THREADS, 20000,
+			"FrameProducer", null);
+	private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+	public interface Source {
+		int getFramesCount();
+
+		// Composes frame over the previous one, returns frame delay or -1 on failure
+		int drawFrame(Bitmap bitmap, int index);
+
+		void release();
+	}
+
+	private final Source source;
+	private final int width;
+	private final int height;
+	private final int framesCount;
+
+	private Bitmap frontBitmap;
+	private Bitmap backBitmap;
+	private int frontIndex;
+	private int frontDelay;
+
+	private boolean started;
+	private boolean backRequested;
+	private boolean backReady;
+	private long nextFrameTime;
+
+	// Handed over between main and worker threads through executor and handler
+	private int backIndex;
+	private int backDelay;
+
+	private boolean rendering;
+	private boolean recycled;
+
+	private final Paint copyPaint = new Paint(); {
+		copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+	}
+
+	public FrameProducer(Source source, int width, int height) throws IOException {
+		this.source = source;
+		this.width = width;
+		this.height = height;
+		framesCount = source.getFramesCount();
+		try {
+			frontBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			if (framesCount > 1) {
+				backBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			}
+		} catch (OutOfMemoryError e) {
+			recycleBitmaps();
+			throw new IOException(e);
+		}
+		// First frame is decoded on the caller thread, so the drawable is ready to be displayed
+		frontDelay = source.drawFrame(frontBitmap, 0);
+		if (frontDelay < 0) {
+			recycleBitmaps();
+			throw new IOException();
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public void recycle() {
+		HANDLER.removeCallbacks(invalidateRunnable);
+		synchronized (this) {
+			if (recycled) {
+				return;
+			}
+			recycled = true;
+			if (rendering) {
+				// Worker thread will release resources when frame is ready
+				return;
+			}
+		}
+		release();
+	}
+
+	private void recycleBitmaps() {
+		if (frontBitmap != null) {
+			frontBitmap.recycle();
+		}
+		if (backBitmap != null) {
+			backBitmap.recycle();
+		}
+	}
+
+	private void release() {
+		recycleBitmaps();
+		source.release();
+	}
+
+	private void requestFrame(int index) {
+		backRequested = true;
+		backIndex = index;
+		EXECUTOR.execute(renderRunnable);
+	}
+
+	private final Runnable renderRunnable = () -> {
+		synchronized (this) {
+			if (recycled) {
+				return;
+			}
+			rendering = true;
+		}
+		int delay = -1;
+		try {
+			// Front bitmap is not modified until back bitmap is ready, so it can be read safely
+			new Canvas(backBitmap).drawBitmap(frontBitmap, 0, 0, copyPaint);
+			delay = source.drawFrame(backBitmap, backIndex);
+		} finally {
+			boolean recycled;
+			synchronized (this) {
+				rendering = false;
+				recycled = this.recycled;
+			}
+			if (recycled) {
+				release();
+			} else if (delay >= 0) {
+				backDelay = delay;
+				HANDLER.post(readyRunnable);
+			}
+		}
+	};
+
+	private final Runnable readyRunnable = () -> {
+		if (!recycled) {
+			backRequested = false;
+			backReady = true;
+			if (SystemClock.uptimeMillis() >= nextFrameTime) {
+				invalidateRunnable.run();
+			}
+		}
+	};
+
+	private final Runnable invalidateRunnable = () -> {
+		if (drawable != null) {
+			drawable.invalidateSelf();
+		}
+	};
+
+	private void updateFrame() {
+		if (backBitmap == null) {
+			return;
+		}
+		long time = SystemClock.uptimeMillis();
+		if (!started) {
+			started = true;
+			nextFrameTime = time + frontDelay;
+		} else if (backReady && time >= nextFrameTime) {
+			Bitmap bitmap = frontBitmap;
+			frontBitmap = backBitmap;
+			backBitmap = bitmap;
+			frontIndex = backIndex;
+			frontDelay = backDelay;
+			backReady = false;
+			nextFrameTime += frontDelay;
+			if (nextFrameTime < time) {
+				nextFrameTime = time + frontDelay;
+			}
+		}
+		if (!backReady && !backRequested) {
+			requestFrame((frontIndex + 1) % framesCount);
+		}
+		HANDLER.removeCallbacks(invalidateRunnable);
+		if (backReady) {
+			HANDLER.postAtTime(invalidateRunnable, nextFrameTime);
+		}
+	}
+
+	private Drawable drawable;
+
+	public Drawable getDrawable() {
+		if (drawable == null) {
+			drawable = new BaseDrawable() {
+				private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.DITHER_FLAG);
+
+				@Override
+				public int getIntrinsicWidth() {
+					return width;
+				}
+
+				@Override
+				public int getIntrinsicHeight() {
+					return height;
+				}
+
+				@Override
+				public void setColorFilter(ColorFilter colorFilter) {
+					paint.setColorFilter(colorFilter);
+				}
+
+				@Override
+				public void setAlpha(int alpha) {
+					paint.setAlpha(alpha);
+				}
+
+				@Override
+				public void draw(@NonNull Canvas canvas) {
+					if (!recycled) {
+						updateFrame();
+						Rect bounds = getBounds();
+						canvas.save();
+						canvas.scale((float) bounds.width() / width, (float) bounds.height() / height);
+						canvas.drawBitmap(frontBitmap, 0, 0, paint);
+						canvas.restore();
+					}
+				}
+			};
+		}
+		return drawable;
+	}
+}
@@ -15,8 +15,6 @@ import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.Locator;
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
 
 public class HtmlParser<E, D, S extends HtmlParser.SpanProvider<E>> implements ContentHandler {
 	public static <E, D, S extends SpanProvider<E>> CharSequence spanify(String source,
@@ -103,16 +101,15 @@ public class HtmlParser<E, D, S extends HtmlParser.SpanProvider<E>> implements C
 	public static final HTMLSchema SCHEMA = new HTMLSchema();
 
 	public CharSequence convert() {
-		Parser parser = new Parser();
-		try {
-			parser.setProperty(Parser.schemaProperty, SCHEMA);
-		} catch (SAXNotRecognizedException | SAXNotSupportedException e) {
-			throw new RuntimeException(e);
-		}
-		parser.setContentHandler(this);
 		StringBuilder builder = this.builder;
 		try {
-			parser.parse(new InputSource(new StringReader(source)));
+			// TagSoup is only required for markup which needs error recovery
+			if (!HtmlTokenizer.parse(source, SCHEMA, this)) {
+				Parser parser = new Parser();
+				parser.setProperty(Parser.schemaProperty, SCHEMA);
+				parser.setContentHandler(this);
+				parser.parse(new InputSource(new StringReader(source)));
+			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,503 @@
+package com.mishiranu.dashchan.text;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import org.ccil.cowan.tagsoup.Element;
+import org.ccil.cowan.tagsoup.ElementType;
+import org.ccil.cowan.tagsoup.Schema;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+// Produces the same events as TagSoup parser for well-formed markup,
+// markup which requires error recovery is rejected before any event is passed to handler
+public class HtmlTokenizer {
+	private static final int EVENT_START = 0;
+	private static final int EVENT_END = 1;
+	private static final int EVENT_TEXT = 2;
+
+	// Windows-1252 characters in place of C1 controls
+	private static final char[] WIN_MAP = {
+		'\u20ac', '\ufffd', '\u201a', '\u0192', '\u201e', '\u2026', '\u2020', '\u2021',
+		'\u02c6', '\u2030', '\u0160', '\u2039', '\u0152', '\ufffd', '\u017d', '\ufffd',
+		'\ufffd', '\u2018', '\u2019', '\u201c', '\u201d', '\u2022', '\u2013', '\u2014',
+		'\u02dc', '\u2122', '\u0161', '\u203a', '\u0153', '\ufffd', '\u017e', '\u0178'
+	};
+
+	private static class UnsupportedException extends Exception {}
+
+	private final Schema schema;
+	private final ElementType rootType;
+	private final ElementType htmlType;
+	private final ElementType bodyType;
+	private final ElementType pcdataType;
+
+	private final char[] source;
+	private final int length;
+	private final char[] text;
+	private int textStart;
+	private int textLength;
+
+	private final ArrayList<Element> elements = new ArrayList<>();
+	private int[] stack = new int[8];
+	private int stackSize;
+	private int[] events = new int[48];
+	private int eventsLength;
+
+	private HtmlTokenizer(String source, Schema schema) {
+		this.schema = schema;
+		rootType = schema.getElementType("<root>");
+		htmlType = schema.getElementType("html");
+		bodyType = schema.getElementType("body");
+		pcdataType = schema.getElementType("<pcdata>");
+		// Normalize characters the same way as TagSoup scanner does
+		int sourceLength = source.length();
+		char[] chars = new char[sourceLength];
+		int length = 0;
+		for (int i = sourceLength > 0 && source.charAt(0) == '\ufeff' ? 1 : 0; i < sourceLength; i++) {
+			char c = source.charAt(i);
+			if (c >= 0x80 && c <= 0x9f) {
+				c = WIN_MAP[c - 0x80];
+			} else if (c == '\r') {
+				if (i + 1 < sourceLength && source.charAt(i + 1) == '\n') {
+					continue;
+				}
+				c = '\n';
+			}
+			if (c >= 0x20 || c == '\n' || c == '\t') {
+				chars[length++] = c;
+			}
+		}
+		this.source = chars;
+		this.length = length;
+		text = new char[length];
+	}
+
+	public static boolean parse(String source, Schema schema, ContentHandler handler) throws SAXException {
+		HtmlTokenizer tokenizer = new HtmlTokenizer(source, schema);
+		try {
+			tokenizer.tokenize();
+		} catch (UnsupportedException e) {
+			return false;
+		}
+		tokenizer.replay(handler);
+		return true;
+	}
+
+	private void replay(ContentHandler handler) throws SAXException {
+		int[] events = this.events;
+		for (int i = 0; i < eventsLength; i += 3) {
+			switch (events[i]) {
+				case EVENT_START: {
+					Element element = elements.get(events[i + 1]);
+					handler.startElement(element.namespace(), element.localName(), element.name(), element.atts());
+					break;
+				}
+				case EVENT_END: {
+					Element element = elements.get(events[i + 1]);
+					handler.endElement(element.namespace(), element.localName(), element.name());
+					break;
+				}
+				case EVENT_TEXT: {
+					handler.characters(text, events[i + 1], events[i + 2]);
+					break;
+				}
+			}
+		}
+	}
+
+	private void tokenize() throws UnsupportedException {
+		char[] source = this.source;
+		int length = this.length;
+		int i = 0;
+		while (i < length) {
+			char c = source[i];
+			if (c == '<') {
+				flushText();
+				if (i + 1 >= length) {
+					throw new UnsupportedException();
+				}
+				char next = source[i + 1];
+				if (isWhitespace(next)) {
+					text[textLength++] = c;
+					text[textLength++] = next;
+					i += 2;
+				} else if (next == '/') {
+					i = parseEndTag(i + 2);
+				} else if (next == '!') {
+					i = skipComment(i + 2);
+				} else if (isAsciiLetter(next)) {
+					i = parseStartTag(i + 1);
+				} else {
+					throw new UnsupportedException();
+				}
+			} else if (c == '&') {
+				flushText();
+				i = parseEntity(i + 1);
+			} else {
+				text[textLength++] = c;
+				i++;
+			}
+		}
+		flushText();
+		if (stackSize == 0) {
+			startBody(pcdataType);
+		}
+		while (stackSize > 0) {
+			pop();
+		}
+	}
+
+	private void addEvent(int type, int first, int second) {
+		if (eventsLength + 3 > events.length) {
+			int[] events = new int[this.events.length * 2];
+			System.arraycopy(this.events, 0, events, 0, eventsLength);
+			this.events = events;
+		}
+		events[eventsLength++] = type;
+		events[eventsLength++] = first;
+		events[eventsLength++] = second;
+	}
+
+	private Element getTop() {
+		return elements.get(stack[stackSize - 1]);
+	}
+
+	private void push(Element element) {
+		element.clean();
+		int index = elements.size();
+		elements.add(element);
+		if (stackSize == stack.length) {
+			int[] stack = new int[this.stack.length * 2];
+			System.arraycopy(this.stack, 0, stack, 0, stackSize);
+			this.stack = stack;
+		}
+		stack[stackSize++] = index;
+		addEvent(EVENT_START, index, 0);
+	}
+
+	private void pop() {
+		addEvent(EVENT_END, stack[--stackSize], 0);
+	}
+
+	// Opens implicit html and body elements which TagSoup creates for the first content
+	private void startBody(ElementType type) throws UnsupportedException {
+		if (rootType.canContain(type) || type.parent() != bodyType || rootType.canContain(bodyType) ||
+				bodyType.parent() != htmlType || !rootType.canContain(htmlType)) {
+			throw new UnsupportedException();
+		}
+		push(new Element(htmlType, true));
+		push(new Element(bodyType, true));
+	}
+
+	private void flushText() throws UnsupportedException {
+		int start = textStart;
+		int count = textLength - start;
+		if (count > 0) {
+			boolean whitespace = true;
+			for (int i = start; i < textLength; i++) {
+				if (!Character.isWhitespace(text[i])) {
+					whitespace = false;
+					break;
+				}
+			}
+			boolean canContain = stackSize > 0 && getTop().type().canContain(pcdataType);
+			if (canContain || !whitespace) {
+				if (!canContain) {
+					if (stackSize > 0) {
+						throw new UnsupportedException();
+					}
+					startBody(pcdataType);
+				}
+				addEvent(EVENT_TEXT, start, count);
+			} else {
+				textLength = start;
+			}
+			textStart = textLength;
+		}
+	}
+
+	private int parseStartTag(int i) throws UnsupportedException {
+		char[] source = this.source;
+		int length = this.length;
+		int start = i;
+		while (i < length && (isAsciiLetter(source[i]) || isAsciiDigit(source[i]))) {
+			i++;
+		}
+		if (i >= length || !isWhitespace(source[i]) && source[i] != '>' && source[i] != '/') {
+			throw new UnsupportedException();
+		}
+		ElementType type = schema.getElementType(new String(source, start, i - start));
+		if (type == null || type == htmlType || type == bodyType || (type.flags() & Schema.F_CDATA) != 0) {
+			throw new UnsupportedException();
+		}
+		Element element = new Element(type, true);
+		boolean empty = false;
+		while (true) {
+			if (i >= length) {
+				throw new UnsupportedException();
+			}
+			char c = source[i];
+			if (isWhitespace(c)) {
+				i++;
+			} else if (c == '>') {
+				i++;
+				break;
+			} else if (c == '/') {
+				if (i + 1 < length && source[i + 1] == '>') {
+					empty = true;
+					i += 2;
+					break;
+				}
+				throw new UnsupportedException();
+			} else if (isAsciiLetter(c) || c == '_') {
+				i = parseAttribute(element, i);
+			} else {
+				throw new UnsupportedException();
+			}
+		}
+		if (stackSize == 0) {
+			startBody(type);
+		} else if (!getTop().type().canContain(type)) {
+			throw new UnsupportedException();
+		}
+		push(element);
+		if (empty || type.model() == Schema.M_EMPTY) {
+			pop();
+		}
+		return i;
+	}
+
+	private int parseAttribute(Element element, int i) throws UnsupportedException {
+		char[] source = this.source;
+		int length = this.length;
+		int start = i;
+		while (i < length && (isAsciiLetter(source[i]) || isAsciiDigit(source[i]) ||
+				source[i] == '_' || source[i] == '-' || source[i] == '.')) {
+			i++;
+		}
+		if (i >= length) {
+			throw new UnsupportedException();
+		}
+		String name = new String(source, start, i - start).toLowerCase(Locale.getDefault());
+		char c = source[i];
+		if (c == '>' || c == '/') {
+			element.setAttribute(name, null, name);
+			return i;
+		} else if (isWhitespace(c)) {
+			while (i < length && isWhitespace(source[i])) {
+				i++;
+			}
+			if (i >= length || source[i] == '/') {
+				throw new UnsupportedException();
+			} else if (source[i] != '=') {
+				element.setAttribute(name, null, name);
+				return i;
+			}
+		} else if (c != '=') {
+			throw new UnsupportedException();
+		}
+		i++;
+		while (i < length && isWhitespace(source[i])) {
+			i++;
+		}
+		if (i >= length) {
+			throw new UnsupportedException();
+		}
+		c = source[i];
+		String value;
+		if (c == '"' || c == '\'') {
+			int end = i + 1;
+			while (end < length && source[end] != c) {
+				end++;
+			}
+			if (end >= length) {
+				throw new UnsupportedException();
+			}
+			value = expandEntities(i + 1, end);
+			i = end + 1;
+		} else if (c == '>') {
+			value = "";
+		} else {
+			int end = i;
+			while (end < length && !isWhitespace(source[end]) && source[end] != '>') {
+				end++;
+			}
+			if (end >= length) {
+				throw new UnsupportedException();
+			}
+			value = expandEntities(i, end);
+			i = end;
+		}
+		element.setAttribute(name, null, value);
+		return i;
+	}
+
+	// Expands only properly terminated references like TagSoup does
+	private String expandEntities(int start, int end) {
+		char[] source = this.source;
+		boolean plain = true;
+		for (int i = start; i < end; i++) {
+			char c = source[i];
+			if (c == '&' || c == '\n' || c == '\t') {
+				plain = false;
+				break;
+			}
+		}
+		if (plain) {
+			return new String(source, start, end - start);
+		}
+		char[] result = new char[end - start];
+		int length = 0;
+		int referenceStart = -1;
+		for (int i = start; i < end; i++) {
+			char c = source[i];
+			if (c == '\n' || c == '\t') {
+				c = ' ';
+			}
+			result[length++] = c;
+			if (c == '&' && referenceStart == -1) {
+				referenceStart = length;
+			} else if (referenceStart == -1 || Character.isLetter(c) || Character.isDigit(c) || c == '#') {
+				// Not in reference or valid reference character
+			} else if (c == ';') {
+				int value = getEntity(result, referenceStart, length - referenceStart - 1);
+				if (value > 0xffff) {
+					value -= 0x10000;
+					result[referenceStart - 1] = (char) ((value >> 10) + 0xd800);
+					result[referenceStart] = (char) ((value & 0x3ff) + 0xdc00);
+					length = referenceStart + 1;
+				} else if (value != 0) {
+					result[referenceStart - 1] = (char) value;
+					length = referenceStart;
+				}
+				referenceStart = -1;
+			} else {
+				referenceStart = -1;
+			}
+		}
+		return new String(result, 0, length);
+	}
+
+	private int getEntity(char[] chars, int start, int count) {
+		if (count < 1) {
+			return 0;
+		}
+		if (chars[start] == '#') {
+			try {
+				if (count > 1 && (chars[start + 1] == 'x' || chars[start + 1] == 'X')) {
+					return Integer.parseInt(new String(chars, start + 2, count - 2), 16);
+				}
+				return Integer.parseInt(new String(chars, start + 1, count - 1), 10);
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return schema.getEntity(new String(chars, start, count));
+	}
+
+	private int parseEntity(int i) throws UnsupportedException {
+		char[] source = this.source;
+		int length = this.length;
+		int start = i;
+		if (i < length && source[i] == '#') {
+			i++;
+			boolean hex = i < length && (source[i] == 'x' || source[i] == 'X');
+			if (hex) {
+				i++;
+			}
+			while (i < length && (isAsciiDigit(source[i]) || hex && isAsciiHexLetter(source[i]))) {
+				i++;
+			}
+			if (i < length && (Character.isDigit(source[i]) || !hex && (source[i] == 'x' || source[i] == 'X'))) {
+				throw new UnsupportedException();
+			}
+		} else {
+			while (i < length && (isAsciiLetter(source[i]) || isAsciiDigit(source[i]))) {
+				i++;
+			}
+			if (i < length && (Character.isLetterOrDigit(source[i]) || source[i] == '#')) {
+				throw new UnsupportedException();
+			}
+		}
+		int value = getEntity(source, start, i - start);
+		if (value == 0) {
+			// Unknown references remain as is
+			text[textLength++] = '&';
+			int count = i - start;
+			System.arraycopy(source, start, text, textLength, count);
+			textLength += count;
+			return i;
+		}
+		if (value >= 0x80 && value <= 0x9f) {
+			value = WIN_MAP[value - 0x80];
+		}
+		if (value > 0x10ffff) {
+			throw new UnsupportedException();
+		} else if (value > 0xffff) {
+			value -= 0x10000;
+			text[textLength++] = (char) ((value >> 10) + 0xd800);
+			text[textLength++] = (char) ((value & 0x3ff) + 0xdc00);
+		} else if (value >= 0x20 && (value < 0xd800 || value > 0xdfff)) {
+			// Control characters and surrogates are dropped
+			text[textLength++] = (char) value;
+		}
+		return i < length && source[i] == ';' ? i + 1 : i;
+	}
+
+	private int parseEndTag(int i) throws UnsupportedException {
+		char[] source = this.source;
+		int length = this.length;
+		int start = i;
+		while (i < length && (isAsciiLetter(source[i]) || isAsciiDigit(source[i]))) {
+			i++;
+		}
+		int end = i;
+		while (i < length && isWhitespace(source[i])) {
+			i++;
+		}
+		if (end == start || i >= length || source[i] != '>') {
+			throw new UnsupportedException();
+		}
+		ElementType type = schema.getElementType(new String(source, start, end - start));
+		if (type != null) {
+			for (int j = stackSize - 1; j >= 0; j--) {
+				if (elements.get(stack[j]).type() == type) {
+					if (j != stackSize - 1 || type == htmlType || type == bodyType) {
+						// Requires implicit closing of elements
+						throw new UnsupportedException();
+					}
+					pop();
+					break;
+				}
+			}
+		}
+		return i + 1;
+	}
+
+	private int skipComment(int i) throws UnsupportedException {
+		if (i + 1 < length && source[i] == '-' && source[i + 1] == '-') {
+			for (int j = i + 2; j + 2 < length; j++) {
+				if (source[j] == '-' && source[j + 1] == '-' && source[j + 2] == '>') {
+					return j + 3;
+				}
+			}
+		}
+		throw new UnsupportedException();
+	}
+
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\n' || c == '\t';
+	}
+
+	private static boolean isAsciiLetter(char c) {
+		return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+	}
+
+	private static boolean isAsciiDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isAsciiHexLetter(char c) {
+		return c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+}
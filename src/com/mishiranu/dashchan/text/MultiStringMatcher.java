@@ -0,0 +1,159 @@
+package com.mishiranu.dashchan.text;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+// Aho-Corasick automaton, finds all strings in a single pass over the text ignoring case
+public class MultiStringMatcher {
+	private static final int[] EMPTY = new int[0];
+
+	private final char[][] edgeChars;
+	private final int[][] edgeNodes;
+	private final int[] failures;
+	private final int[][] outputs;
+
+	public MultiStringMatcher(List<String> strings) {
+		ArrayList<HashMap<Character, Integer>> children = new ArrayList<>();
+		ArrayList<ArrayList<Integer>> nodeOutputs = new ArrayList<>();
+		children.add(new HashMap<>());
+		nodeOutputs.add(null);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < strings.size(); i++) {
+			builder.setLength(0);
+			appendFolded(builder, strings.get(i));
+			int node = 0;
+			for (int j = 0; j < builder.length(); j++) {
+				char c = builder.charAt(j);
+				Integer next = children.get(node).get(c);
+				if (next == null) {
+					next = children.size();
+					children.add(new HashMap<>());
+					nodeOutputs.add(null);
+					children.get(node).put(c, next);
+				}
+				node = next;
+			}
+			if (node > 0) {
+				ArrayList<Integer> output = nodeOutputs.get(node);
+				if (output == null) {
+					output = new ArrayList<>(1);
+					nodeOutputs.set(node, output);
+				}
+				output.add(i);
+			}
+		}
+
+		int count = children.size();
+		edgeChars = new char[count][];
+		edgeNodes = new int[count][];
+		for (int i = 0; i < count; i++) {
+			HashMap<Character, Integer> nodeChildren = children.get(i);
+			char[] chars = new char[nodeChildren.size()];
+			int j = 0;
+			for (char c : nodeChildren.keySet()) {
+				chars[j++] = c;
+			}
+			Arrays.sort(chars);
+			int[] nodes = new int[chars.length];
+			for (j = 0; j < chars.length; j++) {
+				nodes[j] = nodeChildren.get(chars[j]);
+			}
+			edgeChars[i] = chars;
+			edgeNodes[i] = nodes;
+		}
+
+		// Breadth-first traversal, so failure nodes are always handled before their targets
+		failures = new int[count];
+		outputs = new int[count][];
+		outputs[0] = EMPTY;
+		int[] queue = new int[count];
+		int head = 0;
+		int tail = 0;
+		for (int child : edgeNodes[0]) {
+			queue[tail++] = child;
+		}
+		while (head < tail) {
+			int node = queue[head++];
+			ArrayList<Integer> output = nodeOutputs.get(node);
+			int[] failureOutput = outputs[failures[node]];
+			if (output == null) {
+				outputs[node] = failureOutput;
+			} else {
+				int[] merged = Arrays.copyOf(failureOutput, failureOutput.length + output.size());
+				for (int i = 0; i < output.size(); i++) {
+					merged[failureOutput.length + i] = output.get(i);
+				}
+				outputs[node] = merged;
+			}
+			char[] chars = edgeChars[node];
+			int[] nodes = edgeNodes[node];
+			for (int i = 0; i < chars.length; i++) {
+				int child = nodes[i];
+				int failure = failures[node];
+				int next;
+				while ((next = findChild(failure, chars[i])) < 0 && failure > 0) {
+					failure = failures[failure];
+				}
+				failures[child] = next >= 0 ? next : 0;
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	private int findChild(int node, char c) {
+		char[] chars = edgeChars[node];
+		int index = chars.length == 1 ? chars[0] == c ? 0 : -1 : Arrays.binarySearch(chars, c);
+		return index >= 0 ? edgeNodes[node][index] : -1;
+	}
+
+	public void find(CharSequence text, BitSet result) {
+		if (text == null) {
+			return;
+		}
+		int node = 0;
+		int length = text.length();
+		for (int i = 0; i < length;) {
+			int codePoint = Character.codePointAt(text, i);
+			i += Character.charCount(codePoint);
+			codePoint = fold(codePoint);
+			if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				node = next(node, (char) codePoint);
+			} else {
+				for (char c : Character.toChars(codePoint)) {
+					node = next(node, c);
+				}
+			}
+			for (int output : outputs[node]) {
+				result.set(output);
+			}
+		}
+	}
+
+	private int next(int node, char c) {
+		while (true) {
+			int child = findChild(node, c);
+			if (child >= 0) {
+				return child;
+			} else if (node == 0) {
+				return 0;
+			}
+			node = failures[node];
+		}
+	}
+
+	// Folds the characters which are equal in case insensitive regular expressions
+	public static int fold(int codePoint) {
+		return Character.toLowerCase(Character.toUpperCase(codePoint));
+	}
+
+	private static void appendFolded(StringBuilder builder, String string) {
+		for (int i = 0; i < string.length();) {
+			int codePoint = string.codePointAt(i);
+			builder.appendCodePoint(fold(codePoint));
+			i += Character.charCount(codePoint);
+		}
+	}
+}
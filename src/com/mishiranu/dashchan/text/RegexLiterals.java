@@ -0,0 +1,376 @@
+package com.mishiranu.dashchan.text;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Extracts strings, at least one of which must be present in any text matched by regular expression
+public class RegexLiterals {
+	private static final int MIN_LENGTH = 2;
+
+	private static class UnsupportedException extends Exception {}
+
+	private final String regex;
+	private int index;
+
+	private RegexLiterals(String regex) {
+		this.regex = regex;
+	}
+
+	public static List<String> extract(String regex) {
+		RegexLiterals literals = new RegexLiterals(regex);
+		try {
+			List<String> result = literals.parseAlternation();
+			return literals.index == regex.length() ? result : null;
+		} catch (UnsupportedException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private List<String> parseAlternation() throws UnsupportedException {
+		ArrayList<String> result = new ArrayList<>();
+		boolean known = true;
+		while (true) {
+			List<String> branch = parseSequence();
+			if (branch == null) {
+				known = false;
+			} else if (known) {
+				result.addAll(branch);
+			}
+			if (index < regex.length() && regex.charAt(index) == '|') {
+				index++;
+			} else {
+				break;
+			}
+		}
+		return known && !result.isEmpty() ? result : null;
+	}
+
+	private List<String> parseSequence() throws UnsupportedException {
+		StringBuilder run = new StringBuilder();
+		List<String> best = null;
+		while (index < regex.length()) {
+			char c = regex.charAt(index);
+			if (c == '|' || c == ')') {
+				break;
+			}
+			String literal = null;
+			List<String> group = null;
+			switch (c) {
+				case '\\': {
+					literal = parseEscape();
+					break;
+				}
+				case '[': {
+					skipClass();
+					break;
+				}
+				case '(': {
+					group = parseGroup();
+					break;
+				}
+				case '.':
+				case '^':
+				case '$': {
+					index++;
+					break;
+				}
+				case '*':
+				case '+':
+				case '?':
+				case '{': {
+					throw new UnsupportedException();
+				}
+				default: {
+					int codePoint = regex.codePointAt(index);
+					index += Character.charCount(codePoint);
+					literal = new String(Character.toChars(codePoint));
+					break;
+				}
+			}
+			int min = parseQuantifier();
+			if (literal != null && !literal.isEmpty()) {
+				if (min < 0) {
+					run.append(literal);
+				} else {
+					// Quantifier is applied to the last character only
+					int last = literal.length() - Character.charCount(literal.codePointBefore(literal.length()));
+					run.append(literal, 0, last);
+					if (min > 0) {
+						run.append(literal, last, literal.length());
+					}
+					best = choose(best, run);
+				}
+			} else {
+				best = choose(best, run);
+				if (group != null && min != 0) {
+					best = choose(best, group);
+				}
+			}
+		}
+		return choose(best, run);
+	}
+
+	private List<String> parseGroup() throws UnsupportedException {
+		index++;
+		boolean required = true;
+		if (regex.charAt(index) == '?') {
+			index++;
+			char c = regex.charAt(index);
+			if (c == ':' || c == '=' || c == '>') {
+				index++;
+			} else if (c == '!') {
+				index++;
+				required = false;
+			} else if (c == '<') {
+				index++;
+				c = regex.charAt(index);
+				if (c == '=') {
+					index++;
+				} else if (c == '!') {
+					index++;
+					required = false;
+				} else {
+					// Named group
+					index = regex.indexOf('>', index) + 1;
+					if (index == 0) {
+						throw new UnsupportedException();
+					}
+				}
+			} else {
+				// Inline flags, comments mode changes the syntax
+				int start = index;
+				while (Character.isLetter(regex.charAt(index)) || regex.charAt(index) == '-') {
+					index++;
+				}
+				if (regex.substring(start, index).indexOf('x') >= 0) {
+					throw new UnsupportedException();
+				}
+				c = regex.charAt(index++);
+				if (c == ')') {
+					return null;
+				} else if (c != ':') {
+					throw new UnsupportedException();
+				}
+			}
+		}
+		List<String> result = parseAlternation();
+		if (index >= regex.length() || regex.charAt(index) != ')') {
+			throw new UnsupportedException();
+		}
+		index++;
+		return required ? result : null;
+	}
+
+	private String parseEscape() throws UnsupportedException {
+		index++;
+		char c = regex.charAt(index++);
+		switch (c) {
+			case 'Q': {
+				int end = regex.indexOf("\\E", index);
+				String literal = regex.substring(index, end >= 0 ? end : regex.length());
+				index = end >= 0 ? end + 2 : regex.length();
+				return literal;
+			}
+			case 't': {
+				return "\t";
+			}
+			case 'n': {
+				return "\n";
+			}
+			case 'r': {
+				return "\r";
+			}
+			case 'f': {
+				return "\f";
+			}
+			case 'a': {
+				return "\u0007";
+			}
+			case 'e': {
+				return "\u001b";
+			}
+			case 'x': {
+				int codePoint;
+				if (regex.charAt(index) == '{') {
+					int end = regex.indexOf('}', index);
+					codePoint = parseNumber(index + 1, end, 16);
+					index = end + 1;
+				} else {
+					codePoint = parseNumber(index, index + 2, 16);
+					index += 2;
+				}
+				return new String(Character.toChars(codePoint));
+			}
+			case 'u': {
+				int codePoint = parseNumber(index, index + 4, 16);
+				index += 4;
+				return String.valueOf((char) codePoint);
+			}
+			case '0': {
+				int end = index;
+				while (end < regex.length() && end - index < 3 && regex.charAt(end) >= '0' &&
+						regex.charAt(end) <= '7' && parseNumber(index, end + 1, 8) <= 0377) {
+					end++;
+				}
+				int codePoint = parseNumber(index, end, 8);
+				index = end;
+				return String.valueOf((char) codePoint);
+			}
+			case 'c': {
+				return String.valueOf((char) (regex.charAt(index++) ^ 64));
+			}
+			case 'p':
+			case 'P': {
+				if (regex.charAt(index) == '{') {
+					index = regex.indexOf('}', index) + 1;
+					if (index == 0) {
+						throw new UnsupportedException();
+					}
+				} else {
+					index++;
+				}
+				return null;
+			}
+			case 'k': {
+				index = regex.indexOf('>', index) + 1;
+				if (index == 0) {
+					throw new UnsupportedException();
+				}
+				return null;
+			}
+			case 'N': {
+				throw new UnsupportedException();
+			}
+			default: {
+				if (c >= '1' && c <= '9') {
+					// Back reference
+					while (index < regex.length() && Character.isDigit(regex.charAt(index))) {
+						index++;
+					}
+					return null;
+				} else if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z') {
+					// Character classes and boundary matchers
+					return null;
+				} else {
+					return String.valueOf(c);
+				}
+			}
+		}
+	}
+
+	private int parseNumber(int start, int end, int radix) throws UnsupportedException {
+		try {
+			return Integer.parseInt(regex.substring(start, end), radix);
+		} catch (NumberFormatException e) {
+			throw new UnsupportedException();
+		}
+	}
+
+	private void skipClass() throws UnsupportedException {
+		index++;
+		if (regex.charAt(index) == '^') {
+			index++;
+		}
+		if (regex.charAt(index) == ']') {
+			index++;
+		}
+		while (true) {
+			char c = regex.charAt(index);
+			if (c == '\\') {
+				index++;
+				c = regex.charAt(index++);
+				if (c == 'Q') {
+					int end = regex.indexOf("\\E", index);
+					if (end < 0) {
+						throw new UnsupportedException();
+					}
+					index = end + 2;
+				} else if ((c == 'p' || c == 'P' || c == 'x') && regex.charAt(index) == '{') {
+					index = regex.indexOf('}', index) + 1;
+					if (index == 0) {
+						throw new UnsupportedException();
+					}
+				}
+			} else if (c == '[') {
+				skipClass();
+			} else if (c == ']') {
+				index++;
+				break;
+			} else {
+				index++;
+			}
+		}
+	}
+
+	// Returns the minimum count of repetitions or -1 if there is no quantifier
+	private int parseQuantifier() throws UnsupportedException {
+		if (index >= regex.length()) {
+			return -1;
+		}
+		int min;
+		char c = regex.charAt(index);
+		if (c == '*' || c == '?') {
+			index++;
+			min = 0;
+		} else if (c == '+') {
+			index++;
+			min = 1;
+		} else if (c == '{') {
+			int end = regex.indexOf('}', index);
+			if (end < 0) {
+				throw new UnsupportedException();
+			}
+			String quantifier = regex.substring(index + 1, end);
+			int comma = quantifier.indexOf(',');
+			String minString = comma >= 0 ? quantifier.substring(0, comma) : quantifier;
+			try {
+				min = Integer.parseInt(minString.trim());
+			} catch (NumberFormatException e) {
+				throw new UnsupportedException();
+			}
+			index = end + 1;
+		} else {
+			return -1;
+		}
+		if (index < regex.length()) {
+			c = regex.charAt(index);
+			if (c == '?' || c == '+') {
+				// Lazy or possessive quantifier
+				index++;
+			}
+		}
+		return min;
+	}
+
+	private static int getScore(List<String> literals) {
+		int score = Integer.MAX_VALUE;
+		for (String literal : literals) {
+			score = Math.min(score, literal.length());
+		}
+		return score;
+	}
+
+	private static List<String> choose(List<String> best, StringBuilder run) {
+		if (run.length() > 0) {
+			best = choose(best, Collections.singletonList(run.toString()));
+			run.setLength(0);
+		}
+		return best;
+	}
+
+	private static List<String> choose(List<String> best, List<String> literals) {
+		if (literals == null) {
+			return best;
+		}
+		int score = getScore(literals);
+		if (score < MIN_LENGTH) {
+			return best;
+		}
+		if (best == null) {
+			return literals;
+		}
+		int bestScore = getScore(best);
+		return score > bestScore || score == bestScore && literals.size() < best.size() ? literals : best;
+	}
+}
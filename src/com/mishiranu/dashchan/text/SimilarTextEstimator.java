@@ -1,7 +1,12 @@
 package com.mishiranu.dashchan.text;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
 
 public class SimilarTextEstimator {
@@ -112,4 +117,96 @@ public class SimilarTextEstimator {
 			this.count = count;
 		}
 	}
+
+	// MinHash index, only words sets from the same buckets are compared
+	public static class Index<E> {
+		private static final int LINEAR_LIMIT = 32;
+		private static final int BANDS = 64;
+		private static final int ROWS = 2;
+		private static final long[] MULTIPLIERS = new long[BANDS * ROWS];
+		private static final long[] ADDENDS = new long[BANDS * ROWS];
+
+		static {
+			Random random = new Random(0);
+			for (int i = 0; i < MULTIPLIERS.length; i++) {
+				MULTIPLIERS[i] = random.nextLong() | 1;
+				ADDENDS[i] = random.nextLong();
+			}
+		}
+
+		private final ArrayList<WordsData<E>> wordsDataList;
+		private final HashMap<Long, ArrayList<Integer>> buckets;
+
+		public Index(List<WordsData<E>> wordsDataList) {
+			this.wordsDataList = new ArrayList<>(wordsDataList);
+			if (wordsDataList.size() >= LINEAR_LIMIT) {
+				buckets = new HashMap<>();
+				for (int i = 0; i < wordsDataList.size(); i++) {
+					for (long key : getBandKeys(wordsDataList.get(i).words)) {
+						ArrayList<Integer> bucket = buckets.get(key);
+						if (bucket == null) {
+							bucket = new ArrayList<>(1);
+							buckets.put(key, bucket);
+						}
+						bucket.add(i);
+					}
+				}
+			} else {
+				buckets = null;
+			}
+		}
+
+		public WordsData<E> findSimilar(SimilarTextEstimator estimator, WordsData<E> wordsData) {
+			if (buckets == null) {
+				for (WordsData<E> similarWordsData : wordsDataList) {
+					if (estimator.checkSimiliar(wordsData, similarWordsData)) {
+						return similarWordsData;
+					}
+				}
+			} else {
+				BitSet candidates = new BitSet(wordsDataList.size());
+				for (long key : getBandKeys(wordsData.words)) {
+					ArrayList<Integer> bucket = buckets.get(key);
+					if (bucket != null) {
+						for (int index : bucket) {
+							candidates.set(index);
+						}
+					}
+				}
+				// Keep the order of the list, so the first similar item is returned
+				for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+					WordsData<E> similarWordsData = wordsDataList.get(i);
+					if (estimator.checkSimiliar(wordsData, similarWordsData)) {
+						return similarWordsData;
+					}
+				}
+			}
+			return null;
+		}
+
+		private static long[] getBandKeys(Set<String> words) {
+			long[] minHashes = new long[BANDS * ROWS];
+			for (int i = 0; i < minHashes.length; i++) {
+				minHashes[i] = Long.MAX_VALUE;
+			}
+			for (String word : words) {
+				long hash = word.hashCode() & 0xffffffffL;
+				for (int i = 0; i < minHashes.length; i++) {
+					long value = (hash * MULTIPLIERS[i] + ADDENDS[i]) >>> 1;
+					if (value < minHashes[i]) {
+						minHashes[i] = value;
+					}
+				}
+			}
+			long[] keys = new long[BANDS];
+			for (int i = 0; i < BANDS; i++) {
+				long key = i;
+				for (int j = 0; j < ROWS; j++) {
+					key = key * 0x9e3779b97f4a7c15L + minHashes[i * ROWS + j];
+				}
+				keys[i] = key;
+			}
+			return keys;
+		}
+	}
 }
@@ -3,6 +3,8 @@ package com.mishiranu.dashchan.text;
 import android.net.Uri;
 import android.util.Pair;
 import chan.util.StringUtils;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Locale;
@@ -26,10 +28,13 @@ public class WakabaLikeHtmlBuilder {
 		DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("Etc/GMT"));
 	}
 
+	// Each post is built separately and written to output, so the whole document is never kept in memory
 	private final StringBuilder builder = new StringBuilder();
+	private final Writer writer;
 
-	public WakabaLikeHtmlBuilder(String threadTitle, String boardName, String boardTitle,
-			String chanTitle, Uri threadUri, int postsCount, int filesCount) {
+	public WakabaLikeHtmlBuilder(Writer writer, String threadTitle, String boardName, String boardTitle,
+			String chanTitle, Uri threadUri, int postsCount, int filesCount) throws IOException {
+		this.writer = writer;
 		StringBuilder builder = this.builder;
 		builder.append("<!DOCTYPE html>\n<html>\n<head>\n")
 				.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\" />\n");
@@ -83,6 +88,12 @@ public class WakabaLikeHtmlBuilder {
 		builder.append("</div>\n<hr />\n<div id=\"delform\" data-thread-uri=\"").append(threadUri.toString())
 				.append("\" data-posts=\"").append(postsCount).append("\" data-files=\"")
 				.append(filesCount).append("\">\n");
+		flush();
+	}
+
+	private void flush() throws IOException {
+		writer.append(builder);
+		builder.setLength(0);
 	}
 
 	private boolean originalPost = true;
@@ -135,7 +146,7 @@ public class WakabaLikeHtmlBuilder {
 
 	public void addPost(String number, String subject, String name, String identifier, String tripcode, String capcode,
 			String email, boolean sage, boolean originalPoster, long timestamp, boolean deleted,
-			boolean useDefaultName, String comment) {
+			boolean useDefaultName, String comment) throws IOException {
 		closePost();
 		this.number = number;
 		this.subject = subject;
@@ -176,7 +187,7 @@ public class WakabaLikeHtmlBuilder {
 		fileItems.add(new FileItem(imageFile, thumbnailFile, displayName, originalName, size, width, height));
 	}
 
-	private void closePost() {
+	private void closePost() throws IOException {
 		String number = this.number;
 		if (number != null) {
 			StringBuilder builder = this.builder;
@@ -194,6 +205,7 @@ public class WakabaLikeHtmlBuilder {
 				appendComment();
 				builder.append("</td>\n</tr>\n</tbody>\n</table>\n");
 			}
+			flush();
 		}
 		this.number = null;
 		iconItems.clear();
@@ -424,11 +436,13 @@ public class WakabaLikeHtmlBuilder {
 		}
 	}
 
-	public String build() {
+	public void finish() throws IOException {
 		closePost();
-		return builder.append("<br style=\"clear: left;\" />\n<hr />\n</div>\n")
+		builder.append("<br style=\"clear: left;\" />\n<hr />\n</div>\n")
 				.append("<p class=\"footer\">\n- <a href=\"").append(CLIENT_URI).append("\">dashchan</a> + ")
 				.append("<a href=\"http://wakaba.c3.cx/\">wakaba</a> + ")
-				.append("<a href=\"http://www.2chan.net/\">futaba</a> -\n</p>\n</body>\n</html>").toString();
+				.append("<a href=\"http://www.2chan.net/\">futaba</a> -\n</p>\n</body>\n</html>");
+		flush();
+		writer.flush();
 	}
 }
@@ -1977,7 +1977,7 @@ public class MainActivity extends StateActivity implements DrawerForm.Callback,
 		UpdateViewModel viewModel = new ViewModelProvider(this).get(UpdateViewModel.class);
 		if (allowStart && !viewModel.hasTaskOrValue() && Preferences.isCheckUpdatesOnStart() &&
 				System.currentTimeMillis() - Preferences.getLastUpdateCheck() >= 12 * 60 * 60 * 1000) {
-			ReadUpdateTask task = new ReadUpdateTask(this, viewModel.callback);
+			ReadUpdateTask task = new ReadUpdateTask(this, viewModel.callback, true);
 			task.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
 			viewModel.attach(task);
 		}
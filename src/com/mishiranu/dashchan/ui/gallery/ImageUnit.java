@@ -11,9 +11,6 @@ import android.util.Pair;
 import androidx.fragment.app.FragmentManager;
 import chan.content.Chan;
 import com.mishiranu.dashchan.R;
-import com.mishiranu.dashchan.content.CacheManager;
-import com.mishiranu.dashchan.content.NetworkObserver;
-import com.mishiranu.dashchan.content.Preferences;
 import com.mishiranu.dashchan.content.async.ExecutorTask;
 import com.mishiranu.dashchan.content.async.ReadFileTask;
 import com.mishiranu.dashchan.content.model.ErrorItem;
@@ -35,12 +32,14 @@ import java.util.concurrent.Executor;
 
 public class ImageUnit {
 	private final PagerInstance instance;
+	private final PreloadUnit preloadUnit;
 
 	private ReadFileTask readFileTask;
 	private ReadBitmapCallback readBitmapCallback;
 
-	public ImageUnit(PagerInstance instance) {
+	public ImageUnit(PagerInstance instance, PreloadUnit preloadUnit) {
 		this.instance = instance;
+		this.preloadUnit = preloadUnit;
 	}
 
 	public void interrupt(boolean force) {
@@ -64,8 +63,15 @@ public class ImageUnit {
 		}
 	}
 
+	public boolean isLoading(GalleryItem galleryItem) {
+		return readBitmapCallback != null && readBitmapCallback.galleryItem == galleryItem;
+	}
+
 	public void applyImage(Uri uri, File file, boolean reload) {
-		if (!reload && file.exists()) {
+		if (reload) {
+			preloadUnit.cancel(file);
+		}
+		if (!reload && file.exists() && !preloadUnit.isLoading(file)) {
 			applyImageFromFile(file);
 		} else {
 			loadImage(uri, file, instance.currentHolder);
@@ -90,19 +96,6 @@ public class ImageUnit {
 		DecodeBitmapTask decodeBitmapTask = new DecodeBitmapTask(file, fileHolder);
 		decodeBitmapTask.execute(EXECUTOR);
 		holder.decodeBitmapTask = decodeBitmapTask;
-		PagerInstance.ViewHolder nextHolder = instance.scrollingLeft ? instance.leftHolder : instance.rightHolder;
-		if (nextHolder != null && Preferences.getLoadNearestImage()
-				.isNetworkAvailable(NetworkObserver.getInstance())) {
-			GalleryItem nextGalleryItem = nextHolder.galleryItem;
-			Chan chan = Chan.get(instance.galleryInstance.chanName);
-			if (nextGalleryItem.isImage(chan)) {
-				Uri nextUri = nextGalleryItem.getFileUri(chan);
-				File nextCachedFile = CacheManager.getInstance().getMediaFile(nextUri, true);
-				if (nextCachedFile != null && !nextCachedFile.exists()) {
-					loadImage(nextUri, nextCachedFile, nextHolder);
-				}
-			}
-		}
 	}
 
 	private void loadImage(Uri uri, File cachedFile, PagerInstance.ViewHolder holder) {
@@ -113,9 +106,12 @@ public class ImageUnit {
 			readFileTask.cancel();
 		}
 		readBitmapCallback = new ReadBitmapCallback(holder.galleryItem);
-		Chan chan = Chan.getPreferred(instance.galleryInstance.chanName, uri);
-		readFileTask = ReadFileTask.createCachedMediaFile(readBitmapCallback, chan, uri, cachedFile);
-		readFileTask.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
+		readFileTask = preloadUnit.take(cachedFile, readBitmapCallback);
+		if (readFileTask == null) {
+			Chan chan = Chan.getPreferred(instance.galleryInstance.chanName, uri);
+			readFileTask = ReadFileTask.createCachedMediaFile(readBitmapCallback, chan, uri, cachedFile);
+			readFileTask.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
+		}
 	}
 
 	private boolean attachReadBitmapCallback(PagerInstance.ViewHolder holder) {
@@ -48,6 +48,7 @@ public class PagerUnit implements PagerInstance.Callback {
 
 	private final ImageUnit imageUnit;
 	private final VideoUnit videoUnit;
+	private final PreloadUnit preloadUnit;
 
 	private final FrameLayout viewPagerParent;
 	private final PhotoViewPager viewPager;
@@ -56,7 +57,8 @@ public class PagerUnit implements PagerInstance.Callback {
 	public PagerUnit(GalleryInstance instance) {
 		galleryInstance = instance;
 		pagerInstance = new PagerInstance(instance, this);
-		imageUnit = new ImageUnit(pagerInstance);
+		preloadUnit = new PreloadUnit(pagerInstance);
+		imageUnit = new ImageUnit(pagerInstance, preloadUnit);
 		videoUnit = new VideoUnit(pagerInstance);
 		float density = ResourceUtils.obtainDensity(instance.context);
 		viewPagerParent = new FrameLayout(instance.context);
@@ -147,6 +149,7 @@ public class PagerUnit implements PagerInstance.Callback {
 		updateActive();
 		if (galleryMode) {
 			interrupt(true);
+			preloadUnit.cancelAll();
 			pagerInstance.leftHolder = null;
 			pagerInstance.currentHolder = null;
 			pagerInstance.rightHolder = null;
@@ -253,6 +256,7 @@ public class PagerUnit implements PagerInstance.Callback {
 			}
 		}
 		interrupt(true);
+		preloadUnit.cancelAll();
 		viewPager.postDelayed(() -> {
 			pagerAdapter.recycleAll();
 			System.gc();
@@ -566,6 +570,7 @@ public class PagerUnit implements PagerInstance.Callback {
 				galleryInstance.callback.invalidateOptionsMenu();
 				galleryInstance.callback.modifySystemUiVisibility(GalleryInstance.Flags.LOCKED_ERROR, false);
 			}
+			preloadUnit.update(galleryItems, index, imageUnit);
 			galleryInstance.callback.updateTitle();
 			if (galleryItem.postNumber != null && resumed && !galleryInstance.callback.isGalleryMode()) {
 				galleryInstance.callback.navigatePost(galleryItem, false, false);
@@ -0,0 +1,175 @@
+package com.mishiranu.dashchan.ui.gallery;
+
+import android.net.Uri;
+import chan.content.Chan;
+import com.mishiranu.dashchan.content.CacheManager;
+import com.mishiranu.dashchan.content.NetworkObserver;
+import com.mishiranu.dashchan.content.Preferences;
+import com.mishiranu.dashchan.content.async.ReadFileTask;
+import com.mishiranu.dashchan.content.model.ErrorItem;
+import com.mishiranu.dashchan.content.model.GalleryItem;
+import com.mishiranu.dashchan.util.ConcurrentUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class PreloadUnit {
+	private static final Executor EXECUTOR = ConcurrentUtils.newThreadPool(0, 2, 20000, "PreloadUnit", null);
+
+	private final PagerInstance instance;
+	private final HashMap<File, PreloadCallback> callbacks = new HashMap<>();
+
+	public PreloadUnit(PagerInstance instance) {
+		this.instance = instance;
+	}
+
+	public void update(List<GalleryItem> galleryItems, int index, ImageUnit imageUnit) {
+		if (!Preferences.getLoadNearestImage().isNetworkAvailable(NetworkObserver.getInstance()) ||
+				!CacheManager.getInstance().isCacheAvailable()) {
+			cancelAll();
+			return;
+		}
+		int count = Preferences.getNearestImagesCount();
+		long maxSize = Preferences.getNearestImageMaxSize() * 1024L * 1024L;
+		Chan chan = Chan.get(instance.galleryInstance.chanName);
+		ArrayList<GalleryItem> preloadItems = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			// Items in scrolling direction go first
+			int nextIndex = instance.scrollingLeft ? index - i : index + i;
+			int previousIndex = instance.scrollingLeft ? index + i : index - i;
+			if (nextIndex >= 0 && nextIndex < galleryItems.size()) {
+				preloadItems.add(galleryItems.get(nextIndex));
+			}
+			if (previousIndex >= 0 && previousIndex < galleryItems.size()) {
+				preloadItems.add(galleryItems.get(previousIndex));
+			}
+		}
+		LinkedHashMap<File, Uri> files = new LinkedHashMap<>();
+		for (GalleryItem galleryItem : preloadItems) {
+			// Items of unknown size are not preloaded since they can be arbitrarily large
+			if (galleryItem.isImage(chan) && galleryItem.size > 0 && galleryItem.size <= maxSize &&
+					!imageUnit.isLoading(galleryItem)) {
+				Uri uri = galleryItem.getFileUri(chan);
+				File file = CacheManager.getInstance().getMediaFile(uri, true);
+				if (file != null && (callbacks.containsKey(file) || !file.exists())) {
+					files.put(file, uri);
+				}
+			}
+		}
+		Iterator<Map.Entry<File, PreloadCallback>> iterator = callbacks.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<File, PreloadCallback> entry = iterator.next();
+			if (!files.containsKey(entry.getKey())) {
+				iterator.remove();
+				entry.getValue().task.cancel();
+			}
+		}
+		for (Map.Entry<File, Uri> entry : files.entrySet()) {
+			File file = entry.getKey();
+			if (!callbacks.containsKey(file)) {
+				Uri uri = entry.getValue();
+				PreloadCallback callback = new PreloadCallback(file);
+				callback.task = ReadFileTask.createCachedMediaFile(callback,
+						Chan.getPreferred(instance.galleryInstance.chanName, uri), uri, file);
+				callbacks.put(file, callback);
+				callback.task.execute(EXECUTOR);
+			}
+		}
+	}
+
+	public boolean isLoading(File file) {
+		return callbacks.containsKey(file);
+	}
+
+	public ReadFileTask take(File file, ReadFileTask.FileCallback target) {
+		PreloadCallback callback = callbacks.remove(file);
+		if (callback == null) {
+			return null;
+		}
+		if (!callback.task.isStarted()) {
+			// Task is still queued behind other preloads, so it's faster to start a new one
+			callback.task.cancel();
+			return null;
+		}
+		callback.setTarget(target);
+		return callback.task;
+	}
+
+	public void cancel(File file) {
+		PreloadCallback callback = callbacks.remove(file);
+		if (callback != null) {
+			callback.task.cancel();
+		}
+	}
+
+	public void cancelAll() {
+		ArrayList<PreloadCallback> callbacks = new ArrayList<>(this.callbacks.values());
+		this.callbacks.clear();
+		for (PreloadCallback callback : callbacks) {
+			callback.task.cancel();
+		}
+	}
+
+	private class PreloadCallback implements ReadFileTask.FileCallback {
+		private final File file;
+
+		public ReadFileTask task;
+		private ReadFileTask.FileCallback target;
+
+		private boolean started;
+		private long progress;
+		private long progressMax;
+
+		public PreloadCallback(File file) {
+			this.file = file;
+		}
+
+		public void setTarget(ReadFileTask.FileCallback target) {
+			this.target = target;
+			if (started) {
+				target.onStartDownloading();
+				if (progressMax > 0) {
+					target.onUpdateProgress(progress, progressMax);
+				}
+			}
+		}
+
+		@Override
+		public void onStartDownloading() {
+			started = true;
+			if (target != null) {
+				target.onStartDownloading();
+			}
+		}
+
+		@Override
+		public void onFinishDownloading(boolean success, Uri uri, File file, ErrorItem errorItem) {
+			if (target != null) {
+				target.onFinishDownloading(success, uri, file, errorItem);
+			} else if (callbacks.get(this.file) == this) {
+				callbacks.remove(this.file);
+			}
+		}
+
+		@Override
+		public void onCancelDownloading() {
+			if (target != null) {
+				target.onCancelDownloading();
+			}
+		}
+
+		@Override
+		public void onUpdateProgress(long progress, long progressMax) {
+			this.progress = progress;
+			this.progressMax = progressMax;
+			if (target != null) {
+				target.onUpdateProgress(progress, progressMax);
+			}
+		}
+	}
+}
@@ -460,13 +460,6 @@ public class PostsAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 		}
 	}
 
-	public void invalidateHidden() {
-		cancelPreloading();
-		for (PostItem postItem : this) {
-			postItem.setHidden(PostItem.HideState.UNDEFINED, null);
-		}
-	}
-
 	public void setHighlightText(Collection<String> highlightText) {
 		demandSet.highlightText = highlightText;
 		notifyDataSetChanged();
@@ -1450,6 +1450,7 @@ public class DialogUnit {
 
 	public static final String OPTION_THUMBNAILS = "thumbnails";
 	public static final String OPTION_FILES = "files";
+	public static final String OPTION_ZIP = "zip";
 
 	private static void performSendArchiveThreadInternal(Context context, FragmentManager fragmentManager,
 			SendMultifunctionalTask.State state, String archiveChanName, Collection<Post> posts) {
@@ -1458,6 +1459,7 @@ public class DialogUnit {
 			archivation = new ChanConfiguration.Archivation();
 			archivation.options.add(new Pair<>(OPTION_THUMBNAILS, context.getString(R.string.save_thumbnails)));
 			archivation.options.add(new Pair<>(OPTION_FILES, context.getString(R.string.save_files)));
+			archivation.options.add(new Pair<>(OPTION_ZIP, context.getString(R.string.save_as_zip_archive)));
 		} else {
 			Chan archiveChan = Chan.get(archiveChanName);
 			archivation = archiveChan.configuration.safe().obtainArchivation();
@@ -1627,7 +1629,8 @@ public class DialogUnit {
 				} else {
 					startLocalArchiveProcess(provider.getFragmentManager(), state.chanName,
 							state.boardName, state.threadNumber, posts,
-							options.contains(OPTION_THUMBNAILS), options.contains(OPTION_FILES));
+							options.contains(OPTION_THUMBNAILS), options.contains(OPTION_FILES),
+							options.contains(OPTION_ZIP));
 				}
 			} else {
 				startMultifunctionalProcess(provider.getFragmentManager(), state, type, text, options);
@@ -1705,11 +1708,11 @@ public class DialogUnit {
 
 	public static class LocalArchiveViewModel extends TaskViewModel<SendLocalArchiveTask,
 			SendLocalArchiveTask.DownloadResult> implements SendLocalArchiveTask.Callback {
-		public final MutableLiveData<Integer> progress = new MutableLiveData<>();
+		public final MutableLiveData<int[]> progress = new MutableLiveData<>();
 
 		@Override
-		public void onLocalArchivationProgressUpdate(int handledPostsCount) {
-			progress.setValue(handledPostsCount);
+		public void onLocalArchivationProgressUpdate(int handledCount, int totalCount) {
+			progress.setValue(new int[] {handledCount, totalCount});
 		}
 
 		@Override
@@ -1720,7 +1723,7 @@ public class DialogUnit {
 
 	private static void startLocalArchiveProcess(FragmentManager fragmentManager,
 			String chanName, String boardName, String threadNumber, Collection<Post> posts,
-			boolean saveThumbnails, boolean saveFiles) {
+			boolean saveThumbnails, boolean saveFiles, boolean zip) {
 		new InstanceDialog(fragmentManager, null, provider -> {
 			Context context = provider.getContext();
 			ProgressDialog dialog = new ProgressDialog(context, "%d / %d");
@@ -1729,7 +1732,7 @@ public class DialogUnit {
 			LocalArchiveViewModel viewModel = provider.getViewModel(LocalArchiveViewModel.class);
 			if (!viewModel.hasTaskOrValue()) {
 				SendLocalArchiveTask task = new SendLocalArchiveTask(viewModel, Chan.get(chanName),
-						boardName, threadNumber, posts, saveThumbnails, saveFiles);
+						boardName, threadNumber, posts, saveThumbnails, saveFiles, zip);
 				task.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
 				viewModel.attach(task);
 			}
@@ -1742,7 +1745,10 @@ public class DialogUnit {
 					result.run(uiManager.callback().getDownloadBinder());
 				}
 			});
-			viewModel.progress.observe(provider.getLifecycleOwner(), dialog::setValue);
+			viewModel.progress.observe(provider.getLifecycleOwner(), progress -> {
+				dialog.setMax(progress[1]);
+				dialog.setValue(progress[0]);
+			});
 			return dialog;
 		});
 	}
@@ -41,6 +41,7 @@ import com.mishiranu.dashchan.content.HidePerformer;
 import com.mishiranu.dashchan.content.Preferences;
 import com.mishiranu.dashchan.content.WatcherNotifications;
 import com.mishiranu.dashchan.content.async.CallbackProxy;
+import com.mishiranu.dashchan.content.async.CheckHiddenPostsTask;
 import com.mishiranu.dashchan.content.async.ExtractPostsTask;
 import com.mishiranu.dashchan.content.async.TaskViewModel;
 import com.mishiranu.dashchan.content.database.CommonDatabase;
@@ -89,7 +90,8 @@ import java.util.Locale;
 import java.util.Set;
 
 public class PostsPage extends ListPage implements PostsAdapter.Callback, FavoritesStorage.Observer,
-		UiManager.Observer, ExtractPostsTask.Callback, WatcherService.Session.Callback {
+		UiManager.Observer, ExtractPostsTask.Callback, CheckHiddenPostsTask.Callback,
+		WatcherService.Session.Callback {
 	private static class RetainableExtra implements Retainable {
 		public static final ExtraFactory<RetainableExtra> FACTORY = RetainableExtra::new;
 
@@ -268,6 +270,7 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 
 	private Replyable replyable;
 	private HidePerformer hidePerformer;
+	private CheckHiddenPostsTask checkHiddenPostsTask;
 
 	private ActionMode selectionMode;
 
@@ -518,6 +521,10 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 			searchWorker.cancel();
 			searchWorker = null;
 		}
+		if (checkHiddenPostsTask != null) {
+			checkHiddenPostsTask.cancel();
+			checkHiddenPostsTask = null;
+		}
 		getRecyclerView().removeOnScrollListener(scrollListener);
 		if (AndroidUtils.hasCallbacks(ConcurrentUtils.HANDLER, storePositionRunnable)) {
 			ConcurrentUtils.HANDLER.removeCallbacks(storePositionRunnable);
@@ -610,6 +617,43 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 				retainableExtra.hiddenPosts.get(postItem.getPostNumber()), userPost);
 	}
 
+	private void checkHiddenPosts() {
+		if (checkHiddenPostsTask != null) {
+			checkHiddenPostsTask.cancel();
+		}
+		checkHiddenPostsTask = new CheckHiddenPostsTask(this, getChan(),
+				hidePerformer.getRules(), getAdapter().copyItems());
+		checkHiddenPostsTask.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
+	}
+
+	@Override
+	public void onCheckHiddenPostsComplete(HidePerformer.Rules rules) {
+		checkHiddenPostsTask = null;
+		PostsAdapter adapter = getAdapter();
+		adapter.cancelPreloading();
+		boolean changed = false;
+		for (int i = 0; i < adapter.getItemCount(); i++) {
+			PostItem postItem = adapter.getItem(i);
+			PostItem.HideState hideState = postItem.getHideState();
+			if (hideState != PostItem.HideState.UNDEFINED) {
+				// Rules results are cached, so only the posts which state is changed are updated
+				String hideReason = postItem.getHideReason();
+				postItem.setHidden(PostItem.HideState.UNDEFINED, null);
+				postStateProvider.isHiddenResolve(postItem);
+				if (postItem.getHideState() != hideState ||
+						!CommonUtils.equals(postItem.getHideReason(), hideReason)) {
+					adapter.notifyItemChanged(i);
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			onNotifyAllAdaptersChanged();
+		}
+		adapter.preloadPosts(((LinearLayoutManager) getRecyclerView().getLayoutManager())
+				.findFirstVisibleItemPosition());
+	}
+
 	private void setPostHideState(PostItem postItem, PostItem.HideState hideState) {
 		RetainableExtra retainableExtra = getRetainableExtra(RetainableExtra.FACTORY);
 		retainableExtra.hiddenPosts.set(postItem.getPostNumber(), hideState);
@@ -881,12 +925,8 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 						}
 					}
 					if (hasDeleted) {
-						PostsAdapter adapter = postsPage.getAdapter();
-						adapter.invalidateHidden();
-						postsPage.notifyAllAdaptersChanged();
+						postsPage.checkHiddenPosts();
 						postsPage.encodeAndStoreThreadExtra();
-						adapter.preloadPosts(((LinearLayoutManager) postsPage.getRecyclerView()
-								.getLayoutManager()).findFirstVisibleItemPosition());
 					}
 				})
 				.setNegativeButton(android.R.string.cancel, null)
@@ -1344,7 +1384,8 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 		}
 		ExtractViewModel extractViewModel = getViewModel(ExtractViewModel.class);
 		ExtractPostsTask task = new ExtractPostsTask(extractViewModel.callback, retainableExtra.cache,
-				getChan(), page.boardName, page.threadNumber, retainableExtra.initialExtract, cleanup);
+				getChan(), page.boardName, page.threadNumber, retainableExtra.initialExtract, cleanup,
+				hidePerformer.getRules());
 		task.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
 		extractViewModel.attach(task);
 	}
@@ -1533,6 +1574,7 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 					keepPositionPair = transformListPositionToPair(listPosition);
 				}
 				adapter.insertItems(result.postItems, result.removedPosts);
+				hidePerformer.invalidateReplies();
 				updateAdapters = true;
 			}
 			if (result.flags != null) {
@@ -1791,15 +1833,17 @@ public class PostsPage extends ListPage implements PostsAdapter.Callback, Favori
 				}
 				if (result == HidePerformer.AddResult.SUCCESS) {
 					setPostHideState(postItem, PostItem.HideState.UNDEFINED);
-					adapter.invalidateHidden();
-					notifyAllAdaptersChanged();
+					getUiManager().sendPostItemMessage(postItem, UiManager.Message.POST_INVALIDATE_ALL_VIEWS);
+					checkHiddenPosts();
 					encodeAndStoreThreadExtra();
-				} else if (result == HidePerformer.AddResult.EXISTS && !postItem.getHideState().hidden) {
-					setPostHideState(postItem, PostItem.HideState.UNDEFINED);
-					notifyAllAdaptersChanged();
+				} else {
+					if (result == HidePerformer.AddResult.EXISTS && !postItem.getHideState().hidden) {
+						setPostHideState(postItem, PostItem.HideState.UNDEFINED);
+						notifyAllAdaptersChanged();
+					}
+					adapter.preloadPosts(((LinearLayoutManager) recyclerView.getLayoutManager())
+							.findFirstVisibleItemPosition());
 				}
-				adapter.preloadPosts(((LinearLayoutManager) recyclerView.getLayoutManager())
-						.findFirstVisibleItemPosition());
 				break;
 			}
 			case PERFORM_GO_TO_POST: {
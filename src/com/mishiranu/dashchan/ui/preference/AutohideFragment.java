@@ -30,6 +30,7 @@ import com.mishiranu.dashchan.ui.FragmentHandler;
 import com.mishiranu.dashchan.util.ListViewUtils;
 import com.mishiranu.dashchan.util.ResourceUtils;
 import com.mishiranu.dashchan.util.ViewUtils;
+import com.mishiranu.dashchan.widget.ClickableToast;
 import com.mishiranu.dashchan.widget.CustomSearchView;
 import com.mishiranu.dashchan.widget.ErrorEditTextSetter;
 import com.mishiranu.dashchan.widget.MenuExpandListener;
@@ -183,6 +184,9 @@ public class AutohideFragment extends BaseListFragment {
 
 	private void onEditComplete(AutohideStorage.AutohideItem autohideItem, int index) {
 		Adapter adapter = (Adapter) getRecyclerView().getAdapter();
+		if (AutohideStorage.AutohideItem.findNestedRepetition(autohideItem.value) >= 0) {
+			ClickableToast.show(R.string.nested_repetition_may_be_very_slow__sentence);
+		}
 		if (index == -1) {
 			AutohideStorage.getInstance().add(autohideItem);
 			items.add(autohideItem);
@@ -339,10 +343,26 @@ public class AutohideFragment extends BaseListFragment {
 				}
 				builder.append("false");
 			}
+			AutohideStorage.AutohideItem.Statistics statistics = autohideItem.getStatistics();
+			if (statistics.isSlow()) {
+				String text;
+				if (statistics.isSuspended()) {
+					text = getString(R.string.suspended_number_ms__format,
+							formatMatchTime(statistics.getMaxTime()));
+				} else {
+					text = getString(R.string.slow_number_ms_number_hits__format,
+							formatMatchTime(statistics.getAverageTime()), statistics.getHits());
+				}
+				builder.insert(0, text + " \u2022 ");
+			}
 			viewHolder.text2.setText(builder);
 		}
 	}
 
+	private static String formatMatchTime(long time) {
+		return String.format(Locale.US, "%.1f", time / 1000000f);
+	}
+
 	public static class AutohideDialog extends DialogFragment implements ChanMultiChoiceDialog.Callback {
 		private static final String EXTRA_ITEM = "item";
 		private static final String EXTRA_INDEX = "index";
@@ -594,7 +614,12 @@ public class AutohideFragment extends BaseListFragment {
 				Pattern pattern = null;
 				try {
 					pattern = AutohideStorage.AutohideItem.makePattern(s.toString());
-					updateError(-1, null);
+					int index = AutohideStorage.AutohideItem.findNestedRepetition(s.toString());
+					if (index >= 0) {
+						updateError(index + 1, getString(R.string.nested_repetition_may_be_very_slow__sentence));
+					} else {
+						updateError(-1, null);
+					}
 				} catch (PatternSyntaxException e) {
 					updateError(e.getIndex(), e.getDescription());
 				}
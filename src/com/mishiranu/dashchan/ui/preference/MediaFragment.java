@@ -64,12 +64,20 @@ public class MediaFragment extends PreferenceFragment implements FragmentHandler
 		addList(Preferences.KEY_LOAD_NEAREST_IMAGE, enumList(Preferences.NetworkMode.values(), v -> v.value),
 				Preferences.DEFAULT_LOAD_NEAREST_IMAGE.value, R.string.load_nearest_image,
 				enumResList(Preferences.NetworkMode.values(), v -> v.titleResId));
+		addSeek(Preferences.KEY_NEAREST_IMAGES_COUNT, Preferences.DEFAULT_NEAREST_IMAGES_COUNT,
+				getString(R.string.nearest_images_count), "%d", null, Preferences.MIN_NEAREST_IMAGES_COUNT,
+				Preferences.MAX_NEAREST_IMAGES_COUNT, Preferences.STEP_NEAREST_IMAGES_COUNT);
+		addSeek(Preferences.KEY_NEAREST_IMAGE_MAX_SIZE, Preferences.DEFAULT_NEAREST_IMAGE_MAX_SIZE,
+				getString(R.string.max_nearest_image_size), "%d MB", null, Preferences.MIN_NEAREST_IMAGE_MAX_SIZE,
+				Preferences.MAX_NEAREST_IMAGE_MAX_SIZE, Preferences.STEP_NEAREST_IMAGE_MAX_SIZE);
 
 		addHeader(R.string.downloads);
 		addCheck(true, Preferences.KEY_DOWNLOAD_DETAIL_NAME, Preferences.DEFAULT_DOWNLOAD_DETAIL_NAME,
 				R.string.detailed_file_name, R.string.detailed_file_name__summary);
 		addCheck(true, Preferences.KEY_DOWNLOAD_ORIGINAL_NAME, Preferences.DEFAULT_DOWNLOAD_ORIGINAL_NAME,
 				R.string.original_file_name, R.string.original_file_name__summary);
+		addCheck(true, Preferences.KEY_DOWNLOAD_SKIP_DUPLICATES, Preferences.DEFAULT_DOWNLOAD_SKIP_DUPLICATES,
+				R.string.skip_duplicate_files, R.string.skip_duplicate_files__summary);
 		if (C.USE_SAF) {
 			downloadUriTreePreference = addButton(getString(R.string.download_directory),
 					p -> DataFile.obtain(DataFile.Target.DOWNLOADS, null).getName());
@@ -92,6 +100,12 @@ public class MediaFragment extends PreferenceFragment implements FragmentHandler
 		subdirectoryPreference.setDescription(BUILDER_SUBDIRECTORY.fromHtmlReduced(subdirectoryHtml));
 		subdirectoryPreference.setNeutralButton(getString(R.string.more_info),
 				() -> showSubdirectoryInfoDialog(getChildFragmentManager()));
+		addSeek(Preferences.KEY_DOWNLOAD_THREADS, Preferences.DEFAULT_DOWNLOAD_THREADS,
+				getString(R.string.parallel_downloads), "%d", null, Preferences.MIN_DOWNLOAD_THREADS,
+				Preferences.MAX_DOWNLOAD_THREADS, Preferences.STEP_DOWNLOAD_THREADS);
+		addSeek(Preferences.KEY_DOWNLOAD_SEGMENTS, Preferences.DEFAULT_DOWNLOAD_SEGMENTS,
+				getString(R.string.connections_per_file), "%d", null, Preferences.MIN_DOWNLOAD_SEGMENTS,
+				Preferences.MAX_DOWNLOAD_SEGMENTS, Preferences.STEP_DOWNLOAD_SEGMENTS);
 		if (C.API_LOLLIPOP) {
 			addCheck(true, Preferences.KEY_NOTIFY_DOWNLOAD_COMPLETE, Preferences.DEFAULT_NOTIFY_DOWNLOAD_COMPLETE,
 					R.string.notify_when_download_is_completed, R.string.notify_when_download_is_completed__summary);
@@ -140,6 +154,10 @@ public class MediaFragment extends PreferenceFragment implements FragmentHandler
 		});
 		clearCachePreference.invalidate();
 
+		addDependency(Preferences.KEY_NEAREST_IMAGES_COUNT, Preferences.KEY_LOAD_NEAREST_IMAGE, false,
+				Preferences.NetworkMode.NEVER.value);
+		addDependency(Preferences.KEY_NEAREST_IMAGE_MAX_SIZE, Preferences.KEY_LOAD_NEAREST_IMAGE, false,
+				Preferences.NetworkMode.NEVER.value);
 		addDependency(Preferences.KEY_SUBDIR_PATTERN, Preferences.KEY_DOWNLOAD_SUBDIR, false,
 				Preferences.DownloadSubdirMode.DISABLED.value);
 	}
@@ -173,7 +173,7 @@ public class UpdateFragment extends BaseListFragment {
 				progressView.setVisibility(View.VISIBLE);
 				UpdateViewModel viewModel = new ViewModelProvider(this).get(UpdateViewModel.class);
 				if (!viewModel.hasTaskOrValue()) {
-					ReadUpdateTask task = new ReadUpdateTask(requireContext(), viewModel.callback);
+					ReadUpdateTask task = new ReadUpdateTask(requireContext(), viewModel.callback, false);
 					task.execute(ConcurrentUtils.PARALLEL_EXECUTOR);
 					viewModel.attach(task);
 				}
@@ -21,6 +21,7 @@ import androidx.core.graphics.ColorUtils;
 import com.mishiranu.dashchan.C;
 import com.mishiranu.dashchan.content.MainApplication;
 import com.mishiranu.dashchan.content.model.FileHolder;
+import com.mishiranu.dashchan.graphics.BitmapPool;
 import com.mishiranu.dashchan.graphics.ScriptC_GammaCorrection;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
@@ -193,7 +194,7 @@ public class GraphicsUtils {
 		}
 		Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, (int) (width * scale), (int) (height * scale), true);
 		if (recycleOld && resizedBitmap != bitmap) {
-			bitmap.recycle();
+			BitmapPool.getInstance().put(bitmap);
 		}
 		return resizedBitmap;
 	}
@@ -482,7 +483,7 @@ public class GraphicsUtils {
 		try {
 			return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, false);
 		} finally {
-			bitmap.recycle();
+			BitmapPool.getInstance().put(bitmap);
 		}
 	}
 
@@ -0,0 +1,205 @@
+package com.mishiranu.dashchan.text;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.ccil.cowan.tagsoup.HTMLSchema;
+import org.ccil.cowan.tagsoup.Parser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+// Compares events produced by tokenizer with events produced by TagSoup for the same input
+public class HtmlTokenizerTest {
+	private static final String CORPUS_FILE_NAME = "html-tokenizer-corpus.txt";
+
+	private static final long GENERATED_SEED = 0x64617368L;
+	private static final int GENERATED_CASES = 100000;
+	private static final int GENERATED_MAX_PIECES = 30;
+
+	private static final HTMLSchema SCHEMA = new HTMLSchema();
+
+	private static final String[] PIECES = {"<b>", "</b>", "<i>", "</i>", "<span class=\"quote\">", "</span>",
+		"<br>", "<br/>", "<br />", "<a href=\"/b/res/1.html#2\">", "<a href=x>", "</a>", "<p>", "</p>",
+		"<div>", "</div>", "<strong>", "</strong>", "<em>", "</em>", "<s>", "</s>", "<u>", "</u>",
+		"<pre>", "</pre>", "<code>", "</code>", "<ul>", "<li>", "</li>", "</ul>", "<table>", "<tr>", "<td>",
+		"</td>", "</tr>", "</table>", "<sup>", "</sup>", "<font color=red>", "</font>",
+		"&amp;", "&lt;", "&gt;", "&quot;", "&#39;", "&#x27;", "&nbsp;", "&foo;", "&amp", "&", "&#", "&#x",
+		"&#128;", "&#0;", "&#65536;", " ", "\n", "\r\n", "\r", "\t", "text", ">>123", "a < b", "x", "\u0085",
+		"\u0001", "\ud83d\ude00", "<!-- c -->", "<!--", "-->", "<img src=a.png>", "<hr>", "<span>",
+		"<blockquote>", "</blockquote>", "<h1>", "</h1>", "<small>", "</small>", "<del>", "</del>", "<q>", "</q>",
+		"<a href='q&amp;r'>", "<b class=\"a b\" id=c>", "<B>", "</B>", "<input checked>", "<option>", "<select>",
+		"<dd>", "<dl>", "<dt>", "<unknown>", "</unknown>", "<script>", "</script>", "<!doctype html>", "<", ">",
+		"</>", "<a title=\"x\ny\">", "<span style = 'color: red' >", "<a data-x=&lt;&gt>"};
+
+	private static class EventRecorder extends DefaultHandler {
+		private final StringBuilder events = new StringBuilder();
+		private final StringBuilder text = new StringBuilder();
+
+		private void flushText() {
+			// TagSoup might split text into several events
+			if (text.length() > 0) {
+				events.append("text[").append(text).append("]\n");
+				text.setLength(0);
+			}
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			flushText();
+			events.append("start[").append(uri).append(' ').append(localName).append(' ').append(qName);
+			for (int i = 0; i < attributes.getLength(); i++) {
+				events.append(' ').append(attributes.getQName(i)).append('=').append(attributes.getType(i))
+						.append(':').append(attributes.getValue(i));
+			}
+			events.append("]\n");
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			flushText();
+			events.append("end[").append(uri).append(' ').append(localName).append(' ').append(qName).append("]\n");
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			text.append(ch, start, length);
+		}
+
+		public String getEvents() {
+			flushText();
+			return events.toString();
+		}
+	}
+
+	private static String escape(String source) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < source.length(); i++) {
+			char c = source.charAt(i);
+			if (c == '\\') {
+				builder.append("\\\\");
+			} else if (c == '\n') {
+				builder.append("\\n");
+			} else if (c == '\r') {
+				builder.append("\\r");
+			} else if (c == '\t') {
+				builder.append("\\t");
+			} else if (c < 0x20 || c >= 0x7f) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static String unescape(String line) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length()) {
+				char next = line.charAt(++i);
+				switch (next) {
+					case 'n': {
+						builder.append('\n');
+						break;
+					}
+					case 'r': {
+						builder.append('\r');
+						break;
+					}
+					case 't': {
+						builder.append('\t');
+						break;
+					}
+					case 'u': {
+						builder.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+						i += 4;
+						break;
+					}
+					default: {
+						builder.append(next);
+						break;
+					}
+				}
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static List<String> readCorpus() throws IOException {
+		InputStream input = HtmlTokenizerTest.class.getResourceAsStream(CORPUS_FILE_NAME);
+		Assert.assertNotNull("Corpus is missing", input);
+		ArrayList<String> cases = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// Escape sequences are used for line breaks and control characters
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					cases.add(unescape(line));
+				}
+			}
+		}
+		return cases;
+	}
+
+	private static boolean compare(String source) throws IOException, SAXException {
+		EventRecorder tokenizerRecorder = new EventRecorder();
+		if (!HtmlTokenizer.parse(source, SCHEMA, tokenizerRecorder)) {
+			Assert.assertEquals("Events were passed before fallback: " + escape(source),
+					"", tokenizerRecorder.getEvents());
+			return false;
+		}
+		EventRecorder parserRecorder = new EventRecorder();
+		Parser parser = new Parser();
+		parser.setProperty(Parser.schemaProperty, SCHEMA);
+		parser.setContentHandler(parserRecorder);
+		parser.parse(new InputSource(new StringReader(source)));
+		Assert.assertEquals("Different events: " + escape(source),
+				parserRecorder.getEvents(), tokenizerRecorder.getEvents());
+		return true;
+	}
+
+	@Test
+	public void testCorpus() throws IOException, SAXException {
+		List<String> cases = readCorpus();
+		int tokenized = 0;
+		for (String source : cases) {
+			if (compare(source)) {
+				tokenized++;
+			}
+		}
+		// Most of the corpus is regular post markup which must not fall back to TagSoup
+		Assert.assertTrue("Only " + tokenized + " of " + cases.size() + " cases were tokenized",
+				2 * tokenized > cases.size());
+	}
+
+	@Test
+	public void testGenerated() throws IOException, SAXException {
+		Random random = new Random(Long.getLong("htmlTokenizer.seed", GENERATED_SEED));
+		int count = Integer.getInteger("htmlTokenizer.cases", GENERATED_CASES);
+		int tokenized = 0;
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			builder.setLength(0);
+			int pieces = 1 + random.nextInt(GENERATED_MAX_PIECES);
+			for (int j = 0; j < pieces; j++) {
+				builder.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+			if (compare(builder.toString())) {
+				tokenized++;
+			}
+		}
+		Assert.assertTrue("No generated cases were tokenized", tokenized > 0);
+	}
+}